@@ -0,0 +1,231 @@
+/* An Aggregate summarises a table with one of the functions count, sum, min,
+max or avg, either over the whole table or in groups given by the values in
+another column. The rows are visited in a single pass, keeping one accumulator
+per group. A large table is split up using its spliterator, the parts are
+summarised in parallel with fork-join, and the partial accumulators are merged.
+Group values are matched in a case-insensitive way, like keys, and the groups
+come out in the same order as keys. Blank fields are ignored, except by
+count(*), and sum and avg also ignore fields which are not numbers. */
+import java.util.*;
+import java.util.concurrent.*;
+
+class Aggregate {
+    enum Function { COUNT, SUM, MIN, MAX, AVG }
+
+    // Tables smaller than this are summarised in a single thread.
+    static final int PARALLEL = 50000;
+
+    private Function function;
+    private int col, group;
+
+    // Create an aggregate over the given column, or over whole rows if the
+    // column is -1, grouped by the given column, or not grouped if it is -1.
+    Aggregate(Function function, int col, int group) {
+        if (function == null) throw new Error("No function");
+        if (col < 0 && function != Function.COUNT) throw new Error("No column");
+        this.function = function;
+        this.col = col;
+        this.group = group;
+    }
+
+    // Find a function by name, case-insensitively, or return null.
+    static Function function(String name) {
+        for (Function f : Function.values()) {
+            if (f.name().equalsIgnoreCase(name)) return f;
+        }
+        return null;
+    }
+
+    // Return the column names of the result, e.g. Owner, count(*)
+    Record header(Table t) {
+        String name = function.name().toLowerCase() + "(";
+        name = name + (col < 0 ? "*" : t.column(col)) + ")";
+        if (group < 0) return new Record(name);
+        return new Record(t.column(group), name);
+    }
+
+    // Summarise the table, returning one row per group.
+    List<Record> run(Table t) {
+        Map<String,Accumulator> groups;
+        int n = t.height();
+        if (n < PARALLEL) groups = scan(t.spliterator());
+        else {
+            Task task = new Task(t.spliterator(), n);
+            groups = ForkJoinPool.commonPool().invoke(task);
+        }
+        List<Record> rows = new ArrayList<>();
+        if (group < 0 && groups.isEmpty()) groups.put("", new Accumulator(""));
+        for (Accumulator a : groups.values()) {
+            if (group < 0) rows.add(new Record(a.result()));
+            else rows.add(new Record(a.name, a.result()));
+        }
+        return rows;
+    }
+
+    // Summarise part of a table in the current thread.
+    private Map<String,Accumulator> scan(Spliterator<Record> part) {
+        Map<String,Accumulator> groups = new TreeMap<>();
+        part.forEachRemaining(r -> {
+            String name = group < 0 ? "" : r.get(group);
+            String key = name.toLowerCase();
+            Accumulator a = groups.get(key);
+            if (a == null) {
+                a = new Accumulator(name);
+                groups.put(key, a);
+            }
+            a.add(col < 0 ? null : r.get(col));
+        });
+        return groups;
+    }
+
+    // Merge one set of partial results into another.
+    private static void merge(Map<String,Accumulator> into,
+        Map<String,Accumulator> from) {
+        for (String key : from.keySet()) {
+            Accumulator a = into.get(key);
+            if (a == null) into.put(key, from.get(key));
+            else a.merge(from.get(key));
+        }
+    }
+
+    // Split the rows until the parts are small enough to scan directly. The
+    // table's spliterator doesn't know its size, so each task is given the
+    // number of rows it is expected to hold, starting from the table's height.
+    // A part split off has a known size, and the rest is expected to hold the
+    // remaining rows.
+    private class Task extends RecursiveTask<Map<String,Accumulator>> {
+        private static final long serialVersionUID = 1L;
+        private Spliterator<Record> part;
+        private long rows;
+
+        Task(Spliterator<Record> part, long rows) {
+            this.part = part;
+            this.rows = rows;
+        }
+
+        protected Map<String,Accumulator> compute() {
+            Spliterator<Record> other = null;
+            if (rows > PARALLEL / 4) other = part.trySplit();
+            if (other == null) return scan(part);
+            long n = other.getExactSizeIfKnown();
+            if (n < 0) n = rows / 2;
+            Task left = new Task(other, n);
+            left.fork();
+            Task right = new Task(part, Math.max(0, rows - n));
+            Map<String,Accumulator> groups = right.compute();
+            merge(groups, left.join());
+            return groups;
+        }
+    }
+
+    // The running state for one group. A null field means a whole row.
+    private class Accumulator {
+        String name;
+        long count;
+        double sum;
+        String min, max;
+
+        Accumulator(String name) { this.name = name; }
+
+        void add(String field) {
+            if (field == null) { count++; return; }
+            if (field.length() == 0) return;
+            if (function == Function.SUM || function == Function.AVG) {
+                if (! Values.isNumber(field)) return;
+                sum += Double.parseDouble(field);
+            }
+            count++;
+            if (min == null || Values.compare(field, min) < 0) min = field;
+            if (max == null || Values.compare(field, max) > 0) max = field;
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            sum += other.sum;
+            if (min == null || (other.min != null &&
+                Values.compare(other.min, min) < 0)) min = other.min;
+            if (max == null || (other.max != null &&
+                Values.compare(other.max, max) > 0)) max = other.max;
+        }
+
+        String result() {
+            switch (function) {
+                case COUNT: return "" + count;
+                case SUM: return Values.format(sum);
+                case MIN: return min == null ? "" : min;
+                case MAX: return max == null ? "" : max;
+                case AVG: return count == 0 ? "" : Values.format(sum / count);
+                default: throw new Error("Unknown function");
+            }
+        }
+    }
+
+    private static Table example() {
+        Table t = new Table("Id", "Name", "Kind", "Owner");
+        t.insert(new Record("1", "Fido", "dog", "ab123"));
+        t.insert(new Record("2", "Wanda", "fish", "ef789"));
+        t.insert(new Record("3", "Garfield", "cat", "AB123"));
+        t.insert(new Record("4", "Rex", "dog", ""));
+        return t;
+    }
+
+    private static void testCount() {
+        Table t = example();
+        List<Record> rows = new Aggregate(Function.COUNT, -1, -1).run(t);
+        assert(rows.size() == 1 && rows.get(0).get(0).equals("4"));
+        rows = new Aggregate(Function.COUNT, 3, -1).run(t);
+        assert(rows.get(0).get(0).equals("3"));
+        assert(new Aggregate(Function.COUNT, -1, -1).header(t).get(0)
+            .equals("count(*)"));
+    }
+
+    private static void testGroups() {
+        Table t = example();
+        Aggregate a = new Aggregate(Function.COUNT, -1, 3);
+        List<Record> rows = a.run(t);
+        assert(rows.size() == 3);
+        assert(rows.get(0).get(0).equals("") && rows.get(0).get(1).equals("1"));
+        assert(rows.get(1).get(0).equals("ab123"));
+        assert(rows.get(1).get(1).equals("2"));
+        assert(a.header(t).get(0).equals("Owner"));
+    }
+
+    private static void testNumbers() {
+        Table t = example();
+        assert(new Aggregate(Function.SUM, 0, -1).run(t).get(0).get(0)
+            .equals("10"));
+        assert(new Aggregate(Function.AVG, 0, -1).run(t).get(0).get(0)
+            .equals("2.5"));
+        assert(new Aggregate(Function.MAX, 1, -1).run(t).get(0).get(0)
+            .equals("Wanda"));
+        assert(new Aggregate(Function.SUM, 1, -1).run(t).get(0).get(0)
+            .equals("0"));
+        Table empty = new Table("Id");
+        assert(new Aggregate(Function.MIN, 0, -1).run(empty).get(0).get(0)
+            .equals(""));
+    }
+
+    private static void testParallel() {
+        Table t = new Table("Id", "Kind");
+        int n = 4 * PARALLEL;
+        for (int i = 0; i < n; i++) {
+            t.insert(new Record("" + i, i % 2 == 0 ? "even" : "odd"));
+        }
+        List<Record> rows = new Aggregate(Function.COUNT, -1, 1).run(t);
+        assert(rows.size() == 2);
+        assert(rows.get(0).get(1).equals("" + n / 2));
+        rows = new Aggregate(Function.SUM, 0, -1).run(t);
+        assert(rows.get(0).get(0).equals("" + (long) n * (n - 1) / 2));
+        rows = new Aggregate(Function.MAX, 0, -1).run(t);
+        assert(rows.get(0).get(0).equals("" + (n - 1)));
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testCount();
+        testGroups();
+        testNumbers();
+        testParallel();
+        System.out.println("Aggregate class OK");
+    }
+}
@@ -0,0 +1,227 @@
+/* An Analysis holds statistics about the columns of a table, gathered by the
+analyze command reading all its records, for estimating how many rows a command
+will read or produce. For each column, it keeps an estimate of the number of
+different values, made with a HyperLogLog, the number of blank fields, the
+smallest and largest values, and a histogram. There are no nulls, so blanks are
+counted instead. Different values are counted ignoring case, as in joins and
+groups. Keys, whatever their type, are ordered as their lowercase text, as in
+the table, so that key ranges can be estimated. Other values are ordered by
+their column's type, so integers are compared as numbers, and text as text.
+
+The histogram is equi-depth: it divides the non-blank values, in order, into
+buckets holding the same number of records, and keeps the values at the
+boundaries. So the fraction of the records with values in a range can be
+estimated from the buckets it covers. The boundaries come from a random sample
+of the values, so the histogram takes little time and memory to build.
+
+An analysis isn't kept up to date as the table changes. Instead, it records
+the table's count of changes, so that it can say how far out of date it is. */
+import java.util.*;
+
+class Analysis {
+    static final int BUCKETS = 10, SAMPLE = 1000;
+    private long rows, changes;
+    private Column[] columns;
+
+    // The statistics for one column.
+    static class Column {
+        private String name;
+        private boolean key, numeric;
+        private long distinct, blanks, seen;
+        private String min, max;
+        private String[] bounds;
+        private HyperLogLog values = new HyperLogLog();
+        private List<String> sample = new ArrayList<>();
+
+        Column(String name, boolean key, Codec codec) {
+            this.name = name;
+            this.key = key;
+            numeric = ! key && codec == Codec.INT;
+        }
+
+        // Compare values in the column's order. Integers can have any number
+        // of digits, so they are compared by sign, then length, then digits.
+        private int compare(String a, String b) {
+            if (! numeric) return a.compareTo(b);
+            boolean an = a.startsWith("-"), bn = b.startsWith("-");
+            if (an != bn) return an ? -1 : 1;
+            int n = a.length() != b.length() ?
+                Integer.compare(a.length(), b.length()) : a.compareTo(b);
+            return an ? -n : n;
+        }
+
+        // Add a field to the statistics, keeping a sample by reservoir
+        // sampling.
+        private void add(String v, Random random) {
+            if (key) v = v.toLowerCase();
+            if (v.isEmpty()) { blanks++; return; }
+            values.add(key ? v : v.toLowerCase());
+            if (min == null || compare(v, min) < 0) min = v;
+            if (max == null || compare(v, max) > 0) max = v;
+            seen++;
+            if (sample.size() < SAMPLE) sample.add(v);
+            else {
+                long i = (long) (random.nextDouble() * seen);
+                if (i < SAMPLE) sample.set((int) i, v);
+            }
+        }
+
+        // Work out the estimates, and the histogram boundaries, from the
+        // values seen.
+        private void finish() {
+            distinct = Math.min(values.estimate(), seen);
+            if (key) distinct = seen;
+            sample.sort(this::compare);
+            int n = sample.size();
+            bounds = new String[n == 0 ? 0 : BUCKETS + 1];
+            for (int b = 0; b < bounds.length; b++) {
+                bounds[b] = sample.get(Math.min(n - 1, b * n / BUCKETS));
+            }
+            if (n > 0) { bounds[0] = min; bounds[BUCKETS] = max; }
+            values = null;
+            sample = null;
+        }
+
+        String name() { return name; }
+
+        long distinct() { return distinct; }
+
+        long blanks() { return blanks; }
+
+        // Return the smallest and largest values, or null if all are blank.
+        String min() { return min; }
+
+        String max() { return max; }
+
+        // Return the histogram's boundaries, the first being the smallest
+        // value and the last the largest, or none if all are blank.
+        List<String> bounds() { return List.of(bounds); }
+
+        // Estimate the fraction of the non-blank values which are from one
+        // value up to but not including another, or to the end if null. The
+        // values must be valid for the column's type, though any text will do
+        // for the key.
+        double fraction(String from, String to) {
+            if (bounds.length == 0) return 0;
+            double f = (to == null ? 1 : below(to)) - below(from);
+            return Math.max(0, f);
+        }
+
+        // Estimate the fraction of the non-blank values below a value. A value
+        // inside a bucket is taken to be half way through it.
+        private double below(String v) {
+            if (key) v = v.toLowerCase();
+            if (compare(v, bounds[0]) <= 0) return 0;
+            if (compare(v, bounds[BUCKETS]) > 0) return 1;
+            int b = 0;
+            while (b < BUCKETS - 1 && compare(bounds[b + 1], v) < 0) b++;
+            if (compare(bounds[b + 1], v) == 0) return (b + 1.0) / BUCKETS;
+            return (b + 0.5) / BUCKETS;
+        }
+    }
+
+    private Analysis(Header h, long changes) {
+        this.changes = changes;
+        columns = new Column[h.width()];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = new Column(h.name(c), c == 0, h.codec(c));
+        }
+    }
+
+    // Analyse the records of a table, as they are when the analysis starts.
+    // The sample is chosen with a fixed seed, so that the same table always
+    // gives the same analysis.
+    static Analysis of(Table t) {
+        Analysis a = new Analysis(t.schema(), t.changes());
+        Random random = new Random(42);
+        for (Record r : t) {
+            a.rows++;
+            for (int c = 0; c < a.columns.length; c++) {
+                a.columns[c].add(r.get(c), random);
+            }
+        }
+        for (Column c : a.columns) c.finish();
+        return a;
+    }
+
+    // Return the number of records when the table was analysed.
+    long rows() { return rows; }
+
+    // Return the number of changes made to a table since it was analysed.
+    long age(Table t) { return t.changes() - changes; }
+
+    // Return the statistics of a column, or null if the column was added
+    // after the analysis.
+    Column column(String name) {
+        for (Column c : columns) if (c.name.equalsIgnoreCase(name)) return c;
+        return null;
+    }
+
+    // Summarise the columns, one row each.
+    List<Record> summary() {
+        List<Record> list = new ArrayList<>();
+        for (Column c : columns) {
+            list.add(new Record(c.name, "" + c.distinct, "" + c.blanks,
+                c.min == null ? "" : c.min, c.max == null ? "" : c.max));
+        }
+        return list;
+    }
+
+    // Return the column names of the summary.
+    static Record summaryHeader() {
+        return new Record("column", "distinct", "blanks", "min", "max");
+    }
+
+    private static Table people(int n) {
+        Header h = Header.parse("Id", "Name", "Age:int", "Note");
+        Table t = new Table(h, new MemoryStore());
+        for (int i = 0; i < n; i++) {
+            t.insert(new Record(String.format("P%05d", i), "n" + (i % 300),
+                "" + (i % 90), i % 4 == 0 ? "" : "x"));
+        }
+        return t;
+    }
+
+    // Check the counts, and the smallest and largest values.
+    private static void testColumns() {
+        Table t = people(20000);
+        Analysis a = of(t);
+        assert(a.rows() == 20000 && a.age(t) == 0);
+        Column id = a.column("id"), name = a.column("Name");
+        Column age = a.column("Age"), note = a.column("Note");
+        assert(id.distinct() == 20000 && id.min().equals("p00000"));
+        assert(Math.abs(name.distinct() - 300) < 15);
+        assert(age.min().equals("0") && age.max().equals("89"));
+        assert(note.blanks() == 5000 && note.distinct() == 1);
+        assert(a.summary().get(3).get(2).equals("5000"));
+        t.delete("P00001");
+        assert(a.age(t) == 1 && a.column("Nope") == null);
+        t = new Table(Header.parse("Id", "Size:int"), new MemoryStore());
+        String[] sizes = { "12345678901234567890", "-3", "-12", "7", "" };
+        for (String size : sizes) t.insert(new Record("k" + size, size));
+        Column size = of(t).column("Size");
+        assert(size.min().equals("-12") && size.max().equals(sizes[0]));
+        assert(size.fraction("-12", null) == 1);
+    }
+
+    // Check that ranges are estimated from the histogram.
+    private static void testHistogram() {
+        Table t = people(20000);
+        Analysis a = of(t);
+        Column id = a.column("Id"), age = a.column("Age");
+        assert(id.bounds().size() == BUCKETS + 1);
+        double f = id.fraction("P05000", "P15000");
+        assert(f > 0.4 && f < 0.6);
+        assert(id.fraction("q", null) == 0 && id.fraction("", null) == 1);
+        f = age.fraction("9", "45");
+        assert(f > 0.3 && f < 0.5);
+        Analysis empty = of(new Table("Id"));
+        assert(empty.column("Id").fraction("a", "b") == 0);
+    }
+
+    public static void main(String[] args) {
+        testColumns();
+        testHistogram();
+        System.out.println("Analysis class OK");
+    }
+}
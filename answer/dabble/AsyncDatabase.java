@@ -0,0 +1,205 @@
+/* An AsyncDatabase wraps a database for a program which can't afford to wait,
+e.g. a server handling requests on a few event loop threads. Each operation
+returns a CompletableFuture at once, and the work is done on one of two thread
+pools. Opening and saving, and anything touching a table whose records are on
+disk, go to a pool of threads for I/O, which may block. Work on tables held in
+memory, which only needs the processor, goes to a pool with one thread per
+processor. The threads are daemons, so they don't stop the program ending.
+
+A future completes exceptionally if the operation finds a bug, e.g. an unknown
+table. Changes are checked against foreign keys, as with Dabble's commands, and
+their futures complete with the problem, or null if the change was made. */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.io.*;
+import java.nio.file.*;
+
+class AsyncDatabase implements AutoCloseable {
+    // The number of I/O threads.
+    static int ioThreads = Integer.getInteger("dabble.io", 4);
+
+    private Database db;
+    private ExecutorService io, cpu;
+
+    private AsyncDatabase(Database db, ExecutorService io,
+        ExecutorService cpu) {
+        this.db = db;
+        this.io = io;
+        this.cpu = cpu;
+    }
+
+    // Wrap a database which is already open.
+    AsyncDatabase(Database db) {
+        this(db, pool("io", ioThreads), pool("cpu", cores()));
+    }
+
+    // Open the database in a folder, loading its tables on an I/O thread.
+    static CompletableFuture<AsyncDatabase> open(File folder) {
+        ExecutorService io = pool("io", ioThreads), cpu = pool("cpu", cores());
+        return CompletableFuture.supplyAsync(() -> new Database(folder), io)
+            .thenApply(db -> new AsyncDatabase(db, io, cpu));
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    // Create a pool of daemon threads, named e.g. dabble-io-1.
+    private static ExecutorService pool(String kind, int n) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(n, task -> {
+            Thread t = new Thread(task);
+            t.setName("dabble-" + kind + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Return the wrapped database, for synchronous use.
+    Database database() { return db; }
+
+    // Find a table. The tables are loaded when the database is opened, so
+    // this doesn't need to wait.
+    CompletableFuture<Table> getTable(String name) {
+        return CompletableFuture.completedFuture(db.getTable(name));
+    }
+
+    // Find a table which must exist, inside an operation.
+    private Table table(String name) {
+        Table t = db.getTable(name);
+        if (t == null) throw new Error("No table " + name);
+        return t;
+    }
+
+    // Choose the pool for work on a table, according to where its records are.
+    private Executor executor(String name) {
+        Table t = db.getTable(name);
+        return t == null || ! t.kind().equals("memory") ? io : cpu;
+    }
+
+    // Run a query on a table, e.g. an aggregate, on the table's pool.
+    <T> CompletableFuture<T> query(String name, Function<Table,T> query) {
+        return CompletableFuture.supplyAsync(
+            () -> query.apply(table(name)), executor(name));
+    }
+
+    // Find a record by key, or null.
+    CompletableFuture<Record> select(String name, String key) {
+        return query(name, t -> t.select(key));
+    }
+
+    // Find the records with keys from one key up to, but not including,
+    // another, or to the end if that is null.
+    CompletableFuture<List<Record>> range(String name, String from, String to) {
+        return query(name, t -> list(t.range(from, to)));
+    }
+
+    // Find all the records, in key order.
+    CompletableFuture<List<Record>> records(String name) {
+        return query(name, t -> list(t));
+    }
+
+    // Find the records with all the given words in an indexed column.
+    CompletableFuture<List<Record>> search(String name, String column,
+        String words) {
+        return query(name, t -> {
+            int c = t.column(column);
+            if (c < 0) throw new Error("No column " + column);
+            return t.search(c, words);
+        });
+    }
+
+    private static List<Record> list(Iterable<Record> records) {
+        List<Record> list = new ArrayList<>();
+        for (Record r : records) list.add(r);
+        return list;
+    }
+
+    // Insert or replace a record, completing with the problem, or null.
+    CompletableFuture<String> insert(String name, Record r) {
+        return query(name, t -> {
+            if (r.width() != t.width()) return "Wrong number of fields";
+            int bad = t.schema().invalid(r);
+            if (bad >= 0) return "Not a valid value: " + r.get(bad);
+            return db.references().change(t, r.get(0), r);
+        });
+    }
+
+    // Delete a record, completing with the problem, or null.
+    CompletableFuture<String> delete(String name, String key) {
+        return query(name, t -> {
+            if (t.select(key) == null) return "Can't find record: " + key;
+            return db.references().change(t, key, null);
+        });
+    }
+
+    // Save a table into its file.
+    CompletableFuture<Void> save(String name) {
+        return CompletableFuture.runAsync(() -> db.save(name), io);
+    }
+
+    // Save all the tables, and clear the journal.
+    CompletableFuture<Void> save() {
+        return CompletableFuture.runAsync(() -> db.save(), io);
+    }
+
+    // Delete a table and its file, completing with the problem, or null.
+    CompletableFuture<String> deleteTable(String name) {
+        return CompletableFuture.supplyAsync(() -> {
+            table(name);
+            String by = db.references().referrer(name);
+            if (by != null) return "Table is referred to by: " + by;
+            db.deleteTable(name);
+            db.references().build();
+            return null;
+        }, io);
+    }
+
+    // Stop the threads, once any work already started is finished.
+    public void close() {
+        io.shutdown();
+        cpu.shutdown();
+    }
+
+    // Check that operations complete, on the right threads.
+    private static void testOperations(File folder) {
+        AsyncDatabase a = open(folder).join();
+        assert(a.getTable("pets").join() != null);
+        assert(a.select("pets", "1").join().get(1).equals("Fido"));
+        assert(a.insert("pets", new Record("2", "Rex", "ab1")).join() == null);
+        assert(a.insert("pets", new Record("3", "Tom", "xx")).join() != null);
+        assert(a.range("pets", "1", "3").join().size() == 2);
+        String thread = a.query("pets",
+            t -> Thread.currentThread().getName()).join();
+        assert(thread.startsWith("dabble-cpu-"));
+        assert(a.delete("people", "ab1").join() != null);
+        assert(a.deleteTable("people").join() != null);
+        a.save().join();
+        a.close();
+    }
+
+    // Check that a bug completes the future exceptionally.
+    private static void testFailure(File folder) {
+        AsyncDatabase a = new AsyncDatabase(new Database(folder));
+        assert(a.records("pets").join().size() == 2);
+        CompletableFuture<Record> f = a.select("nothing", "1");
+        try { f.join(); assert(false); }
+        catch (CompletionException e) { assert(e.getCause() instanceof Error); }
+        a.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        File folder = Files.createTempDirectory("async").toFile();
+        Files.write(new File(folder, "pets.txt").toPath(),
+            List.of("Id, Name, Owner>people", "1, Fido, ab1"));
+        Files.write(new File(folder, "people.txt").toPath(),
+            List.of("Id, Name", "ab1, Jo"));
+        testOperations(folder);
+        testFailure(folder);
+        for (File f : folder.listFiles()) f.delete();
+        folder.delete();
+        System.out.println("AsyncDatabase class OK");
+    }
+}
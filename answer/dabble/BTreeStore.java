@@ -0,0 +1,606 @@
+/* A BTreeStore keeps a table's records in a B+tree file of fixed-size pages,
+keyed on the lowercase key. Page 0 holds the root page number, the number of
+records, the free page list and the column names, so opening a table only
+reads one page. Leaf pages hold keys and record lines, in key order, and are
+chained together for iteration. Internal pages hold separator keys and child
+page numbers. A record line too long for a leaf goes in a chain of overflow
+pages instead. Pages emptied by deletes are left in place rather than merged.
+
+Pages are read through a buffer pool of decoded pages, which evicts the least
+recently used. Changes are made in place in the pool, and a changed page is
+written back when it is evicted or the store is flushed, so a single-row change
+costs a few page writes at most. There is no log, so a crash between flushes
+can leave the file inconsistent. A change of columns, other than renaming,
+rewrites every record. */
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+class BTreeStore implements Store {
+    static final int PAGE = 4096, MAGIC = 0x44424254;
+    // The longest key, and the longest record line kept in a leaf, in bytes.
+    static final int KEY = 1000, INLINE = 1000;
+    static int poolSize = Math.max(16, Integer.getInteger("dabble.pool", 1024));
+
+    private FileChannel channel;
+    private Header header;
+    private int root, pages, size, free, changes;
+    private boolean appending;
+    private Map<Integer,Node> pool;
+
+    // A page, decoded. A leaf has a line, or an overflow page, for each key.
+    // An internal page has one more child than keys.
+    private static class Node {
+        int page, next, bytes;
+        boolean leaf, dirty;
+        List<String> keys = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        List<Integer> overflow = new ArrayList<>();
+        List<Integer> children = new ArrayList<>();
+    }
+
+    // The result of splitting a page: the first key of the new right page.
+    private static class Split {
+        String key;
+        int page;
+        Split(String key, int page) { this.key = key; this.page = page; }
+    }
+
+    // Create a new, empty B+tree file for a table with the given header.
+    static BTreeStore create(File file, Header h) {
+        BTreeStore s = new BTreeStore(file, true);
+        s.header = h;
+        s.pages = 1;
+        s.root = s.newNode(true).page;
+        s.flush();
+        return s;
+    }
+
+    // Open an existing B+tree file, reading only its first page.
+    static BTreeStore open(File file) {
+        BTreeStore s = new BTreeStore(file, false);
+        ByteBuffer b = s.readPage(0);
+        if (b.getInt() != MAGIC) throw new Error("Not a B+tree file " + file);
+        s.root = b.getInt();
+        s.pages = b.getInt();
+        s.size = b.getInt();
+        s.free = b.getInt();
+        s.header = Header.load(getString(b));
+        return s;
+    }
+
+    private BTreeStore(File file, boolean create) {
+        try {
+            if (create) {
+                channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            else {
+                channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        }
+        catch (IOException e) { throw new Error(e); }
+        pool = new LinkedHashMap<Integer,Node>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer,Node> e) {
+                if (size() <= poolSize) return false;
+                if (e.getValue().dirty) write(e.getValue());
+                return true;
+            }
+        };
+    }
+
+    // Return the header of the table.
+    Header header() { return header; }
+
+    public Record get(String key) {
+        Node n = leaf(key);
+        int i = Collections.binarySearch(n.keys, key);
+        return i < 0 ? null : record(n, i);
+    }
+
+    // Find the leaf page which would hold a key.
+    private Node leaf(String key) {
+        Node n = node(root);
+        while (! n.leaf) n = node(n.children.get(child(n, key)));
+        return n;
+    }
+
+    // Find the child of an internal page which would hold a key.
+    private static int child(Node n, String key) {
+        int i = Collections.binarySearch(n.keys, key);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    // Decode the record at a position in a leaf.
+    private Record record(Node n, int i) {
+        int page = n.overflow.get(i);
+        return new Record(header,
+            page == 0 ? n.lines.get(i) : readOverflow(page));
+    }
+
+    public Record put(String key, Record r) {
+        if (bytes(key) > KEY) throw new Error("Key too long");
+        Record[] old = new Record[1];
+        Split s = insert(node(root), key, r.save(), old);
+        if (s != null) {
+            Node top = newNode(false);
+            top.children.add(root);
+            top.keys.add(s.key);
+            top.children.add(s.page);
+            top.bytes = measure(top);
+            root = top.page;
+        }
+        if (old[0] == null) size++;
+        changes++;
+        return old[0];
+    }
+
+    // Insert a line below a page, returning a split if the page overflowed.
+    private Split insert(Node n, String key, String line, Record[] old) {
+        if (n.leaf) {
+            int i = Collections.binarySearch(n.keys, key);
+            if (i >= 0) {
+                old[0] = record(n, i);
+                removeEntry(n, i);
+            }
+            else i = -i - 1;
+            appending = i == n.keys.size() && n.next == 0;
+            addEntry(n, i, key, line);
+            dirty(n);
+            return n.bytes > PAGE ? splitLeaf(n) : null;
+        }
+        int c = child(n, key);
+        Split s = insert(node(n.children.get(c)), key, line, old);
+        if (s == null) return null;
+        n.keys.add(c, s.key);
+        n.children.add(c + 1, s.page);
+        n.bytes += 6 + bytes(s.key);
+        dirty(n);
+        return n.bytes > PAGE ? splitInternal(n) : null;
+    }
+
+    private void addEntry(Node n, int i, String key, String line) {
+        byte[] value = line.getBytes(StandardCharsets.UTF_8);
+        n.keys.add(i, key);
+        if (value.length > INLINE) {
+            n.lines.add(i, null);
+            n.overflow.add(i, writeOverflow(value));
+        }
+        else {
+            n.lines.add(i, line);
+            n.overflow.add(i, 0);
+        }
+        n.bytes += entry(n, i);
+    }
+
+    private void removeEntry(Node n, int i) {
+        n.bytes -= entry(n, i);
+        if (n.overflow.get(i) != 0) freeOverflow(n.overflow.get(i));
+        n.keys.remove(i);
+        n.lines.remove(i);
+        n.overflow.remove(i);
+    }
+
+    // Split a leaf as evenly as possible by bytes. When keys are being added
+    // in order at the end of the last leaf, leave it full instead, so that
+    // loading records in key order fills the pages.
+    private Split splitLeaf(Node n) {
+        int k = n.keys.size();
+        int[] before = new int[k + 1];
+        for (int i = 0; i < k; i++) before[i + 1] = before[i] + entry(n, i);
+        int m = appending ? k - 1 : 1;
+        for (int i = 2; i < k && ! appending; i++) {
+            int worst = Math.max(before[i], before[k] - before[i]);
+            if (worst < Math.max(before[m], before[k] - before[m])) m = i;
+        }
+        Node right = newNode(true);
+        move(n.keys, m, right.keys);
+        move(n.lines, m, right.lines);
+        move(n.overflow, m, right.overflow);
+        right.next = n.next;
+        n.next = right.page;
+        n.bytes = measure(n);
+        right.bytes = measure(right);
+        return new Split(right.keys.get(0), right.page);
+    }
+
+    // Split an internal page, moving its middle key up to the parent, or its
+    // last key when appending.
+    private Split splitInternal(Node n) {
+        int k = n.keys.size();
+        int[] before = new int[k + 1];
+        for (int i = 0; i < k; i++) before[i + 1] = before[i] + entry(n, i);
+        int m = appending ? k - 2 : 1;
+        for (int i = 2; i < k - 1 && ! appending; i++) {
+            int worst = Math.max(before[i], before[k] - before[i + 1]);
+            if (worst < Math.max(before[m], before[k] - before[m + 1])) m = i;
+        }
+        String middle = n.keys.get(m);
+        Node right = newNode(false);
+        move(n.keys, m + 1, right.keys);
+        move(n.children, m + 1, right.children);
+        n.keys.remove(m);
+        n.bytes = measure(n);
+        right.bytes = measure(right);
+        return new Split(middle, right.page);
+    }
+
+    // Move the items from a position onwards to the end of another list.
+    private static <T> void move(List<T> from, int i, List<T> to) {
+        List<T> tail = from.subList(i, from.size());
+        to.addAll(tail);
+        tail.clear();
+    }
+
+    public Record remove(String key) {
+        Node n = leaf(key);
+        int i = Collections.binarySearch(n.keys, key);
+        if (i < 0) return null;
+        Record old = record(n, i);
+        removeEntry(n, i);
+        dirty(n);
+        size--;
+        changes++;
+        return old;
+    }
+
+    public int size() { return size; }
+
+    public long memory() { return (long) pool.size() * PAGE; }
+
+    // Rewrite the records, unless the columns are only renamed.
+    public void columns(Header h) {
+        boolean same = h.width() == header.width();
+        for (int c = 0; same && c < h.width(); c++) {
+            same = header.position(h, c) == c;
+        }
+        if (! same) for (Record r : this) put(r.get(0).toLowerCase(), r);
+        header = h;
+    }
+
+    // Write the changed pages and the first page, and force them to disk.
+    public void flush() {
+        for (Node n : pool.values()) if (n.dirty) write(n);
+        ByteBuffer b = ByteBuffer.allocate(PAGE);
+        b.putInt(MAGIC).putInt(root).putInt(pages).putInt(size).putInt(free);
+        String names = header.save();
+        if (bytes(names) > PAGE - 64) throw new Error("Too many columns");
+        putString(b, names);
+        writePage(0, b);
+        try { channel.force(false); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    public void close() {
+        try { channel.close(); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    public String kind() { return "btree"; }
+
+    // Iterate along the chain of leaves. If the store changes between steps,
+    // the iterator finds its place again from the last key it returned.
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            private Node leaf = first();
+            private int index, seen = changes;
+            private String last;
+
+            public boolean hasNext() {
+                if (seen != changes) {
+                    seen = changes;
+                    if (last == null) leaf = first();
+                    else {
+                        leaf = leaf(last);
+                        index = child(leaf, last);
+                    }
+                }
+                while (leaf != null && index >= leaf.keys.size()) {
+                    leaf = leaf.next == 0 ? null : node(leaf.next);
+                    index = 0;
+                }
+                return leaf != null;
+            }
+
+            public Record next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                last = leaf.keys.get(index);
+                return record(leaf, index++);
+            }
+        };
+    }
+
+    public List<Record> scan(String from, int n) {
+        List<Record> batch = new ArrayList<>();
+        Node leaf = leaf(from);
+        int i = Collections.binarySearch(leaf.keys, from);
+        if (i < 0) i = -i - 1;
+        while (leaf != null && batch.size() < n) {
+            if (i < leaf.keys.size()) batch.add(record(leaf, i++));
+            else {
+                leaf = leaf.next == 0 ? null : node(leaf.next);
+                i = 0;
+            }
+        }
+        return batch;
+    }
+
+    // Find the first leaf.
+    private Node first() {
+        Node n = node(root);
+        while (! n.leaf) n = node(n.children.get(0));
+        return n;
+    }
+
+    // Get a page from the buffer pool, reading it in if necessary.
+    private Node node(int page) {
+        Node n = pool.get(page);
+        if (n == null) {
+            n = decode(page, readPage(page));
+            pool.put(page, n);
+        }
+        return n;
+    }
+
+    // Mark a page as changed, putting it back in the pool if it was evicted.
+    private void dirty(Node n) {
+        n.dirty = true;
+        if (pool.get(n.page) != n) pool.put(n.page, n);
+    }
+
+    private Node newNode(boolean leaf) {
+        Node n = new Node();
+        n.page = allocate();
+        n.leaf = leaf;
+        n.bytes = measure(n);
+        dirty(n);
+        return n;
+    }
+
+    // Find the size of the encoded entry at a position in a page.
+    private static int entry(Node n, int i) {
+        int size = 6 + bytes(n.keys.get(i));
+        if (n.leaf && n.overflow.get(i) == 0) size += bytes(n.lines.get(i));
+        return size;
+    }
+
+    // Find the size of an encoded page.
+    private static int measure(Node n) {
+        int size = 7;
+        for (int i = 0; i < n.keys.size(); i++) size += entry(n, i);
+        return size;
+    }
+
+    private static int bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Decode a page: a type byte, a count, then the next leaf and the entries,
+    // or the first child and the key and child pairs.
+    private static Node decode(int page, ByteBuffer b) {
+        Node n = new Node();
+        n.page = page;
+        n.leaf = b.get() == 1;
+        int count = b.getShort();
+        if (n.leaf) n.next = b.getInt();
+        else n.children.add(b.getInt());
+        for (int i = 0; i < count; i++) {
+            n.keys.add(getString(b));
+            int value = b.getInt();
+            if (! n.leaf) n.children.add(value);
+            else if (value < 0) {
+                n.lines.add(null);
+                n.overflow.add(-value);
+            }
+            else {
+                byte[] bytes = new byte[value];
+                b.get(bytes);
+                n.lines.add(new String(bytes, StandardCharsets.UTF_8));
+                n.overflow.add(0);
+            }
+        }
+        n.bytes = measure(n);
+        return n;
+    }
+
+    private void write(Node n) {
+        ByteBuffer b = ByteBuffer.allocate(PAGE);
+        b.put((byte) (n.leaf ? 1 : 2));
+        b.putShort((short) n.keys.size());
+        b.putInt(n.leaf ? n.next : n.children.get(0));
+        for (int i = 0; i < n.keys.size(); i++) {
+            putString(b, n.keys.get(i));
+            if (! n.leaf) b.putInt(n.children.get(i + 1));
+            else if (n.overflow.get(i) != 0) b.putInt(-n.overflow.get(i));
+            else {
+                byte[] bytes = n.lines.get(i).getBytes(StandardCharsets.UTF_8);
+                b.putInt(bytes.length);
+                b.put(bytes);
+            }
+        }
+        writePage(n.page, b);
+        n.dirty = false;
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getShort()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    // Take a page from the free list, or from the end of the file.
+    private int allocate() {
+        if (free == 0) return pages++;
+        int page = free;
+        free = readPage(page).getInt();
+        return page;
+    }
+
+    // Write a line into a chain of overflow pages, each holding the next page
+    // number, a length, and part of the line.
+    private int writeOverflow(byte[] value) {
+        int room = PAGE - 8, count = (value.length + room - 1) / room;
+        int[] chain = new int[count];
+        for (int i = 0; i < count; i++) chain[i] = allocate();
+        for (int i = 0; i < count; i++) {
+            int from = i * room, length = Math.min(room, value.length - from);
+            ByteBuffer b = ByteBuffer.allocate(PAGE);
+            b.putInt(i + 1 < count ? chain[i + 1] : 0).putInt(length);
+            b.put(value, from, length);
+            writePage(chain[i], b);
+        }
+        return chain[0];
+    }
+
+    private String readOverflow(int page) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (page != 0) {
+            ByteBuffer b = readPage(page);
+            page = b.getInt();
+            int length = b.getInt();
+            out.write(b.array(), b.position(), length);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // Put a chain of overflow pages on the free list.
+    private void freeOverflow(int page) {
+        while (page != 0) {
+            int next = readPage(page).getInt();
+            ByteBuffer b = ByteBuffer.allocate(PAGE);
+            b.putInt(free);
+            writePage(page, b);
+            free = page;
+            page = next;
+        }
+    }
+
+    private ByteBuffer readPage(int page) {
+        ByteBuffer b = ByteBuffer.allocate(PAGE);
+        try {
+            while (b.hasRemaining()) {
+                int n = channel.read(b, (long) page * PAGE + b.position());
+                if (n < 0) break;
+            }
+        }
+        catch (IOException e) { throw new Error(e); }
+        b.flip();
+        b.limit(PAGE);
+        return b;
+    }
+
+    private void writePage(int page, ByteBuffer b) {
+        b.clear();
+        try {
+            while (b.hasRemaining()) {
+                channel.write(b, (long) page * PAGE + b.position());
+            }
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    private static void testBasics() throws IOException {
+        File f = File.createTempFile("btree", ".btree");
+        BTreeStore s = create(f, new Header("Id", "Name"));
+        Record r = new Record("A", "Ann");
+        r.attach(s.header());
+        assert(s.put("a", r) == null);
+        assert(s.get("a").get(1).equals("Ann"));
+        assert(s.get("b") == null);
+        assert(s.put("a", new Record("a", "Al")).get(1).equals("Ann"));
+        assert(s.size() == 1);
+        assert(s.remove("a").get(1).equals("Al"));
+        assert(s.remove("a") == null && s.size() == 0);
+        s.close();
+        f.delete();
+    }
+
+    private static void testMany() throws IOException {
+        File f = File.createTempFile("btree", ".btree");
+        int saved = poolSize;
+        poolSize = 16;
+        BTreeStore s = create(f, new Header("Id", "Value"));
+        Random random = new Random(1);
+        TreeMap<String,String> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + random.nextInt(10000);
+            String value = "v" + i;
+            if (i % 1000 == 0) value = "x".repeat(5000) + i;
+            if (i % 3 == 0) {
+                assert((s.remove(key) != null) == expected.containsKey(key));
+                expected.remove(key);
+            }
+            else {
+                s.put(key, new Record(key, value));
+                expected.put(key, value);
+            }
+        }
+        s.flush();
+        s.close();
+        s = open(f);
+        assert(s.size() == expected.size());
+        assert(s.header().name(1).equals("Value"));
+        Iterator<String> keys = expected.keySet().iterator();
+        for (Record r : s) {
+            String key = keys.next();
+            assert(r.get(0).equals(key));
+            assert(r.get(1).equals(expected.get(key)));
+        }
+        assert(! keys.hasNext());
+        keys = expected.tailMap("k5").keySet().iterator();
+        List<Record> batch = s.scan("k5", 100);
+        assert(batch.size() == 100);
+        for (Record r : batch) assert(r.get(0).equals(keys.next()));
+        for (String key : expected.keySet()) {
+            assert(s.get(key).get(1).equals(expected.get(key)));
+        }
+        poolSize = saved;
+        s.close();
+        f.delete();
+    }
+
+    private static void testColumns() throws IOException {
+        File f = File.createTempFile("btree", ".btree");
+        Header h = new Header("Id", "Name");
+        BTreeStore s = create(f, h);
+        for (int i = 0; i < 1000; i++) {
+            Record r = new Record("" + i, "n" + i);
+            r.attach(h);
+            s.put("" + i, r);
+        }
+        Header h2 = h.rename(1, "Called");
+        s.columns(h2);
+        Header h3 = h2.add(1, "Age", "7");
+        s.columns(h3);
+        s.flush();
+        s.close();
+        s = open(f);
+        assert(s.header().name(1).equals("Age"));
+        assert(s.header().name(2).equals("Called"));
+        assert(s.get("123").get(1).equals("7"));
+        assert(s.get("123").get(2).equals("n123"));
+        assert(s.size() == 1000);
+        s.close();
+        f.delete();
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testBasics();
+        testMany();
+        testColumns();
+        System.out.println("BTreeStore class OK");
+    }
+}
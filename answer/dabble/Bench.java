@@ -0,0 +1,207 @@
+/* The Bench program measures the hot paths of the Record, Table and Database
+classes, in the style of JMH: each benchmark is warmed up, then timed over a
+number of rounds, and the mean time per operation and its standard deviation
+are reported. The data is generated, with a number of rows and columns given as
+arguments, defaulting to 100000 rows of width 5. The results are written to
+standard output in the same format as a table file, so they can be saved into
+a database folder, and compared between builds with Dabble itself. For example:
+
+    java Bench 100000 5 > bench.txt
+
+Run it without the -ea option, so that assertions don't affect the timings. */
+import java.util.*;
+import java.io.*;
+
+class Bench {
+    static final int WARMUPS = 5, ROUNDS = 10;
+    static final long ROUND_NANOS = 200_000_000L;
+
+    // Stops the work being optimised away.
+    static volatile Object sink;
+
+    private int rows, width;
+    private String[] lines;
+    private Record[] records;
+    private String[] keys;
+    private File folder;
+
+    // One benchmark. Setup isn't timed. Run does the timed work and returns
+    // the number of operations done.
+    private interface Benchmark {
+        void setup();
+        int run();
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        new Bench(rows, width).runAll();
+    }
+
+    Bench(int rows, int width) {
+        if (rows < 1 || width < 1) throw new Error("Bad size");
+        this.rows = rows;
+        this.width = width;
+        generate();
+    }
+
+    // Make the rows, with some fields needing escapes, and shuffle the keys.
+    private void generate() {
+        Map<String,String> options = new TreeMap<>();
+        options.put("rows", "" + rows);
+        options.put("width", "" + width);
+        options.put("escapes", "0.02");
+        Generator generator = new Generator(options);
+        lines = new String[rows];
+        records = new Record[rows];
+        keys = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            records[i] = generator.record(i);
+            lines[i] = records[i].save();
+            keys[i] = records[i].get(0);
+        }
+        Collections.shuffle(Arrays.asList(keys), new Random(42));
+    }
+
+    // Make an empty table of the right width.
+    private Table empty() {
+        String[] names = new String[width];
+        for (int c = 0; c < width; c++) names[c] = "c" + c;
+        return new Table(names);
+    }
+
+    // Make a table holding copies of all the rows.
+    private Table table() {
+        Table t = empty();
+        for (String line : lines) t.insert(new Record(line));
+        return t;
+    }
+
+    // Write a folder of four tables, for loading.
+    private File folder() {
+        if (folder != null) return folder;
+        try {
+            folder = File.createTempFile("bench", "");
+            folder.delete();
+            folder.mkdir();
+            folder.deleteOnExit();
+            Map<String,String> options = new TreeMap<>();
+            options.put("rows", "" + rows);
+            options.put("width", "" + width);
+            options.put("tables", "4");
+            new Generator(options).writeAll(folder);
+            for (File f : folder.listFiles()) f.deleteOnExit();
+            return folder;
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Run every benchmark, and print the results.
+    void runAll() {
+        System.out.println(new Record("benchmark", "rows", "width",
+            "nanos", "error").save());
+        measure("record.parse", new Benchmark() {
+            public void setup() { }
+            public int run() {
+                for (String line : lines) sink = new Record(line);
+                return rows;
+            }
+        });
+        measure("record.save", new Benchmark() {
+            public void setup() { }
+            public int run() {
+                for (Record r : records) sink = r.save();
+                return rows;
+            }
+        });
+        measure("table.insert", new Benchmark() {
+            Table t;
+            Record[] copies;
+            public void setup() {
+                t = empty();
+                copies = new Record[rows];
+                for (int i = 0; i < rows; i++) copies[i] = new Record(lines[i]);
+            }
+            public int run() {
+                for (Record r : copies) t.insert(r);
+                return rows;
+            }
+        });
+        measure("table.select", new Benchmark() {
+            Table t;
+            public void setup() { if (t == null) t = table(); }
+            public int run() {
+                for (String key : keys) sink = t.select(key);
+                return rows;
+            }
+        });
+        measure("table.delete", new Benchmark() {
+            Table t;
+            public void setup() { t = table(); }
+            public int run() {
+                for (String key : keys) t.delete(key);
+                return rows;
+            }
+        });
+        measure("table.print", new Benchmark() {
+            Table t;
+            PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+            public void setup() { if (t == null) t = table(); }
+            public int run() {
+                t.print(out);
+                return rows;
+            }
+        });
+        measure("table.addColumn", new Benchmark() {
+            Table t;
+            int n;
+            public void setup() {
+                if (t == null || t.width() > 1000) t = table();
+            }
+            public int run() {
+                for (int i = 0; i < 100; i++) {
+                    t.addColumn(t.width(), "extra" + n++);
+                }
+                return 100;
+            }
+        });
+        measure("database.load", new Benchmark() {
+            public void setup() { folder(); }
+            public int run() {
+                sink = new Database(folder);
+                return 4 * rows;
+            }
+        });
+    }
+
+    // Warm up and then time a benchmark, printing the mean and standard
+    // deviation of the time per operation, over the rounds.
+    private void measure(String name, Benchmark b) {
+        for (int i = 0; i < WARMUPS; i++) round(b);
+        double[] times = new double[ROUNDS];
+        double mean = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            times[i] = round(b);
+            mean += times[i] / ROUNDS;
+        }
+        double variance = 0;
+        for (double t : times) variance += (t - mean) * (t - mean) / ROUNDS;
+        String[] result = { name, "" + rows, "" + width,
+            String.format(Locale.ROOT, "%.1f", mean),
+            String.format(Locale.ROOT, "%.1f", Math.sqrt(variance)) };
+        System.out.println(new Record(result).save());
+        System.out.flush();
+    }
+
+    // Repeat a benchmark for a round, returning the nanoseconds per operation.
+    private double round(Benchmark b) {
+        long total = 0, ops = 0;
+        while (total < ROUND_NANOS) {
+            b.setup();
+            long start = System.nanoTime();
+            ops += b.run();
+            total += System.nanoTime() - start;
+        }
+        return (double) total / ops;
+    }
+}
@@ -0,0 +1,98 @@
+/* A Bloom filter records a set of keys in a bit array, so that most lookups of
+keys which aren't in the set can be answered without looking anywhere else. It
+never says that a key which was added is missing, but it says that about one in
+a hundred other keys might be present, when it has ten bits per key and seven
+hashes. The bits for a key are found by double hashing. */
+import java.io.*;
+
+class Bloom {
+    static final int BITS = 10, HASHES = 7;
+    private long[] bits;
+    private int hashes;
+
+    // Create an empty filter with room for the given number of keys.
+    Bloom(int keys) {
+        long n = Math.max(64, (long) keys * BITS);
+        bits = new long[(int) Math.min((n + 63) / 64, Integer.MAX_VALUE / 2)];
+        hashes = HASHES;
+    }
+
+    private Bloom(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    void add(String key) {
+        long h = mix(key.hashCode()), g = mix(h) | 1, n = 64L * bits.length;
+        for (int i = 0; i < hashes; i++) {
+            long b = Math.floorMod(h + i * g, n);
+            bits[(int) (b >>> 6)] |= 1L << b;
+        }
+    }
+
+    // Check whether a key might have been added.
+    boolean mightContain(String key) {
+        long h = mix(key.hashCode()), g = mix(h) | 1, n = 64L * bits.length;
+        for (int i = 0; i < hashes; i++) {
+            long b = Math.floorMod(h + i * g, n);
+            if ((bits[(int) (b >>> 6)] & (1L << b)) == 0) return false;
+        }
+        return true;
+    }
+
+    // Spread the bits of a hash code (the finalizer from MurmurHash3).
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Return the size of the filter in bytes.
+    long memory() { return 8L * bits.length; }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(bits.length);
+        for (long word : bits) out.writeLong(word);
+    }
+
+    static Bloom read(DataInput in) throws IOException {
+        int hashes = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+        return new Bloom(bits, hashes);
+    }
+
+    private static void testFilter() {
+        Bloom b = new Bloom(10000);
+        for (int i = 0; i < 10000; i++) b.add("k" + i);
+        for (int i = 0; i < 10000; i++) assert(b.mightContain("k" + i));
+        int wrong = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (b.mightContain("x" + i)) wrong++;
+        }
+        assert(wrong < 300);
+    }
+
+    private static void testReadWrite() throws IOException {
+        Bloom b = new Bloom(100);
+        b.add("fido");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        b.write(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        Bloom c = read(in);
+        assert(c.mightContain("fido"));
+        assert(c.memory() == b.memory());
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testFilter();
+        testReadWrite();
+        System.out.println("Bloom class OK");
+    }
+}
@@ -0,0 +1,118 @@
+/* A Codec deals with the fields of one type of column, as discussed on the
+extensions page. It checks that a value is valid, encodes it for a line of a
+table file, decodes it again, and says how to align it for display. A header
+holds a codec for each column, so these are lookups rather than repeated
+string work for every row.
+
+Text is escaped, with %p for %, %c for comma and %n for newline, in a single
+pass, and only if it contains one of those characters. An integer is a
+possible minus sign followed by digits, excluding e.g. 042 and -0 so that each
+number has only one form. It can't contain any of the escaped characters, so
+it is stored as it is, and it is right-justified for display. A blank field is
+valid in any column. */
+enum Codec {
+    TEXT {
+        boolean valid(String s) { return true; }
+        String encode(String s) { return escape(s); }
+        String decode(String s) { return unescape(s); }
+    },
+    INT {
+        boolean valid(String s) {
+            int n = s.length(), i = s.startsWith("-") ? 1 : 0;
+            if (n == 0) return true;
+            if (i == n || s.charAt(i) == '0' && (n > i + 1 || i == 1)) {
+                return false;
+            }
+            for (; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') return false;
+            }
+            return true;
+        }
+        String encode(String s) { return s; }
+        String decode(String s) { return s; }
+        boolean right() { return true; }
+    };
+
+    // Check whether a value can be held in a column of this type.
+    abstract boolean valid(String s);
+
+    // Encode a valid value for a line of a table file.
+    abstract String encode(String s);
+
+    // Decode a field from a line of a table file.
+    abstract String decode(String s);
+
+    // Check whether values are right-justified when displayed.
+    boolean right() { return false; }
+
+    // Return the name used in a table file's first line, e.g. int.
+    String save() { return name().toLowerCase(); }
+
+    // Find the codec for a type name, or return null.
+    static Codec of(String name) {
+        for (Codec c : values()) if (c.save().equalsIgnoreCase(name)) return c;
+        return null;
+    }
+
+    // Escape the characters which would upset the layout of a line.
+    static String escape(String s) {
+        int n = s.length(), i = 0;
+        while (i < n && ! special(s.charAt(i))) i++;
+        if (i == n) return s;
+        StringBuilder b = new StringBuilder(n + 8).append(s, 0, i);
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '%') b.append("%p");
+            else if (c == ',') b.append("%c");
+            else if (c == '\n') b.append("%n");
+            else b.append(c);
+        }
+        return b.toString();
+    }
+
+    private static boolean special(char c) {
+        return c == '%' || c == ',' || c == '\n';
+    }
+
+    // Undo the escapes. An unknown escape is left as it is.
+    static String unescape(String s) {
+        int i = s.indexOf('%');
+        if (i < 0) return s;
+        int n = s.length();
+        StringBuilder b = new StringBuilder(n).append(s, 0, i);
+        for (; i < n; i++) {
+            char c = s.charAt(i), d = i + 1 < n ? s.charAt(i + 1) : ' ';
+            if (c != '%') b.append(c);
+            else if (d == 'p') { b.append('%'); i++; }
+            else if (d == 'c') { b.append(','); i++; }
+            else if (d == 'n') { b.append('\n'); i++; }
+            else b.append(c);
+        }
+        return b.toString();
+    }
+
+    private static void testText() {
+        String s = "50%, then\n%c";
+        assert(escape(s).equals("50%p%c then%n%pc"));
+        assert(unescape(escape(s)).equals(s));
+        assert(escape("plain") == "plain" && unescape("plain") == "plain");
+        assert(unescape("%x%").equals("%x%"));
+    }
+
+    private static void testInt() {
+        assert(INT.valid("42") && INT.valid("-7") && INT.valid("0"));
+        assert(INT.valid(""));
+        assert(! INT.valid("042") && ! INT.valid("-0") && ! INT.valid("-"));
+        assert(! INT.valid("4x") && ! INT.valid("+4"));
+        assert(of("INT") == INT && of("text") == TEXT && of("real") == null);
+        assert(INT.right() && ! TEXT.right());
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testText();
+        testInt();
+        System.out.println("Codec class OK");
+    }
+}
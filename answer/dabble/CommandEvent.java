@@ -0,0 +1,15 @@
+/* A CommandEvent is recorded by Java Flight Recorder for each Dabble command,
+when a recording is running, e.g. with java -XX:StartFlightRecording Dabble.
+It holds the command and the table it named, and JFR records its duration. */
+import jdk.jfr.*;
+
+@Name("dabble.Command")
+@Label("Dabble Command")
+@Category("Dabble")
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Table")
+    String table;
+}
@@ -0,0 +1,247 @@
+/* Cost is a small cost model, which estimates how many rows each step of a
+select produces, and roughly how long it takes, so that the cheapest way of
+carrying out a step can be chosen, and the choice explained. Costs are in units
+of the time taken to read one record while scanning a table held in memory.
+The other figures were measured against that: reading from a table on disk
+costs a little more, and looking up a key costs a walk down a tree, which is
+cheap in memory, but may read pages from disk otherwise.
+
+Row counts come from the tables' sizes, and from their statistics, if they
+have been analysed. Without statistics, the usual guesses are made: a range of
+keys holds a third of the records, and a column which isn't the key has a
+tenth as many different values as there are records. */
+import java.util.*;
+
+class Cost {
+    // The costs, per record, of adding to and probing a hash table, of a
+    // comparison while sorting, and of spilling to temporary files.
+    static final double BUILD = 1.5, PROBE = 0.5, COMPARE = 0.1, SPILL = 2;
+
+    // One way of carrying out a step of a select, with its estimates, and
+    // the join method, if it is a join.
+    static class Step {
+        String step, method, table;
+        Join.Method join;
+        long rows;
+        double cost;
+        boolean chosen = true;
+
+        Step(String step, String method, String table, long rows,
+            double cost) {
+            this.step = step;
+            this.method = method;
+            this.table = table;
+            this.rows = rows;
+            this.cost = cost;
+        }
+
+        // Return the step as a row of an explanation.
+        Record record() {
+            return new Record(step, method, table, "" + rows,
+                Values.format(Math.round(cost)), chosen ? "yes" : "no");
+        }
+
+        // Return the column names of an explanation.
+        static Record header() {
+            return new Record("step", "method", "table", "rows", "cost",
+                "chosen");
+        }
+    }
+
+    // Return the cost of reading one record of a table while scanning.
+    static double read(Table t) {
+        return t.kind().equals("memory") ? 1 : 1.5;
+    }
+
+    // Return the cost of looking up one key in a table.
+    static double lookup(Table t) {
+        double depth = Math.log(t.height() + 2) / Math.log(2);
+        return t.kind().equals("memory") ? 1 + depth / 4 : 5 * depth;
+    }
+
+    // Estimate the number of records with a value in a column.
+    static long filled(Table t, int col) {
+        Analysis.Column c = column(t, col);
+        long n = t.height();
+        if (c == null || t.analysis().rows() == 0) return n;
+        return Math.round(n * (1 - (double) c.blanks() / t.analysis().rows()));
+    }
+
+    // Estimate the number of different values in a column.
+    static long distinct(Table t, int col) {
+        long n = t.height();
+        if (col == 0) return n;
+        Analysis.Column c = column(t, col);
+        if (c == null) return Math.max(1, n / 10);
+        return Math.max(1, Math.min(c.distinct(), n));
+    }
+
+    // Find the statistics of a column, or null if there are none.
+    private static Analysis.Column column(Table t, int col) {
+        Analysis a = t.analysis();
+        return a == null ? null : a.column(t.column(col));
+    }
+
+    // Estimate reading all of a table.
+    static Step scan(String name, Table t) {
+        long n = t.height();
+        return new Step("read", "scan", name, n, n * read(t));
+    }
+
+    // Estimate reading the records of a table with keys from one key up to
+    // but not including another, or to the end if that is null.
+    static Step range(String name, Table t, String from, String to) {
+        Analysis.Column c = column(t, 0);
+        long n = t.height();
+        long rows = c == null ? n / 3 : Math.round(n * c.fraction(from, to));
+        return new Step("read", "key range", name, rows,
+            lookup(t) + rows * read(t));
+    }
+
+    // Estimate summarising a table, in groups given by a column, or in one
+    // group if the column is -1.
+    static Step group(String name, Table t, int col) {
+        long n = t.height();
+        long groups = col < 0 ? 1 : distinct(t, col);
+        return new Step("aggregate", col < 0 ? "total" : "hash groups", name,
+            groups, n * PROBE);
+    }
+
+    // Estimate sorting a table, which spills to files if it is too big.
+    static Step sort(String name, Table t) {
+        long n = t.height();
+        double cost = n * Math.log(n + 2) / Math.log(2) * COMPARE;
+        boolean spill = Sorter.spills(t);
+        if (spill) cost += n * SPILL;
+        return new Step("sort", spill ? "merge runs" : "in memory", name, n,
+            cost);
+    }
+
+    // Estimate each method of joining two tables, marking the cheapest as
+    // chosen, and return the steps, starting with the chosen one.
+    static List<Step> join(Join j, String[] names, Table[] tables, int[] cols) {
+        long rows = joined(tables, cols);
+        String both = names[0] + " " + names[1];
+        List<Step> steps = new ArrayList<>();
+        for (Join.Method m : Join.Method.values()) {
+            if (! j.allows(m)) continue;
+            String method = m.name().toLowerCase().replace('_', ' ');
+            Step s = new Step("join", method, both, rows,
+                cost(m, tables, cols));
+            s.join = m;
+            steps.add(s);
+        }
+        steps.sort((a, b) -> Double.compare(a.cost, b.cost));
+        for (Step s : steps) s.chosen = s == steps.get(0);
+        return steps;
+    }
+
+    // Estimate the rows of a join: each value in the column with more
+    // different values matches one in the other, on average.
+    private static long joined(Table[] tables, int[] cols) {
+        long a = filled(tables[0], cols[0]), b = filled(tables[1], cols[1]);
+        long d = Math.max(distinct(tables[0], cols[0]),
+            distinct(tables[1], cols[1]));
+        return Math.round((double) a * b / Math.max(1, d));
+    }
+
+    // Estimate the cost of joining two tables with a method.
+    private static double cost(Join.Method m, Table[] tables, int[] cols) {
+        switch (m) {
+            case PROBE_RIGHT: return probe(tables[0], cols[0], tables[1]);
+            case PROBE_LEFT: return probe(tables[1], cols[1], tables[0]);
+            case HASH_LEFT: return hash(tables[0], cols[0], tables[1]);
+            default: return hash(tables[1], cols[1], tables[0]);
+        }
+    }
+
+    // Streaming a table reads it, and looks up each value in the other. If
+    // the values are the streamed table's keys, they are looked up in order,
+    // each near the last, so they cost about as much as reading.
+    private static double probe(Table stream, int col, Table keyed) {
+        double each = col == 0 ? read(keyed) : lookup(keyed);
+        return stream.height() * read(stream) + filled(stream, col) * each;
+    }
+
+    // Building a hash table reads one table and adds its values, then the
+    // other table is read and its values looked up.
+    private static double hash(Table build, int col, Table stream) {
+        return build.height() * read(build) + filled(build, col) * BUILD +
+            stream.height() * (read(stream) + PROBE);
+    }
+
+    private static Table pets(int n) {
+        Table t = new Table("Id", "Name", "Owner");
+        for (int i = 0; i < n; i++) {
+            String owner = i % 2 == 0 ? "" : "o" + (i % 50);
+            t.insert(new Record(String.format("p%05d", i), "n" + i, owner));
+        }
+        return t;
+    }
+
+    private static Table owners(int n) {
+        Table t = new Table("Id", "Name");
+        for (int i = 0; i < n; i++) t.insert(new Record("o" + i, "m" + i));
+        return t;
+    }
+
+    // Check the row estimates, with and without statistics.
+    private static void testRows() {
+        Table t = pets(30000);
+        assert(scan("p", t).rows == 30000);
+        assert(range("p", t, "p1", "p2").rows == 10000);
+        assert(distinct(t, 2) == 3000 && filled(t, 2) == 30000);
+        t.analyze();
+        Step s = range("p", t, "P00000", "P03000");
+        assert(s.rows > 1000 && s.rows < 5000 && s.cost > s.rows);
+        assert(Math.abs(distinct(t, 2) - 25) < 3 && filled(t, 2) == 15000);
+        assert(group("p", t, 2).rows == distinct(t, 2));
+        assert(group("p", t, -1).rows == 1);
+        assert(sort("p", t).method.equals("in memory"));
+    }
+
+    // Check that a range of an integer key is estimated in the table's order
+    // of keys, i.e. as text, with bounds which aren't numbers.
+    private static void testIntKey() {
+        Table t = new Table(Header.parse("Id:int", "Name"), new MemoryStore());
+        for (int i = 0; i < 1000; i++) t.insert(new Record("" + i, "n"));
+        t.analyze();
+        assert(range("t", t, "a", "z").rows == 0);
+        Step s = range("t", t, "1", "2");
+        assert(s.rows > 50 && s.rows < 200);
+        assert(t.analysis().column("Id").max().equals("999"));
+    }
+
+    // Check that a small table is hashed, rather than probing a big one, and
+    // that a big table is probed, rather than hashing it.
+    private static void testJoin() {
+        Table[] tables = { pets(30000), owners(50) };
+        String[] names = { "pets", "owners" };
+        int[] cols = { 2, 0 };
+        Join j = new Join("pets", tables[0], 2, "owners", tables[1], 0);
+        List<Step> steps = join(j, names, tables, cols);
+        assert(steps.size() == 3 && steps.get(0).chosen);
+        assert(! steps.get(1).chosen && steps.get(0).rows == 500);
+        tables[0].analyze();
+        tables[1].analyze();
+        steps = join(j, names, tables, cols);
+        assert(steps.get(0).join == Join.Method.HASH_RIGHT);
+        assert(Math.abs(steps.get(0).rows - 15000) < 1000);
+        tables = new Table[] { pets(10), owners(30000) };
+        j = new Join("pets", tables[0], 2, "owners", tables[1], 0);
+        steps = join(j, names, tables, cols);
+        assert(steps.get(0).method.equals("probe right"));
+        assert(steps.get(0).record().get(5).equals("yes"));
+        tables = new Table[] { owners(30000), owners(30000) };
+        j = new Join("a", tables[0], 0, "b", tables[1], 0);
+        steps = join(j, names, tables, new int[] { 0, 0 });
+        assert(steps.get(0).join == Join.Method.PROBE_RIGHT);
+    }
+
+    public static void main(String[] args) {
+        testRows();
+        testIntKey();
+        testJoin();
+        System.out.println("Cost class OK");
+    }
+}
@@ -0,0 +1,282 @@
+/* A Cursor is the result of a query, for programs which embed the database.
+It yields rows one at a time, in key order, reading the table's records a batch
+at a time from a snapshot taken when the query was run, so later changes to the
+table aren't seen. The snapshot is released when the rows run out, or when the
+cursor is closed, which should be done if it isn't read to the end, e.g. with
+try-with-resources.
+
+A cursor can also be used as a Flow.Publisher, with one subscriber, instead of
+being iterated. Rows are only read from the table as the subscriber requests
+them, so a slow subscriber never causes more than a batch of records to be held
+in memory. A row is sent on whichever thread requests it, and cancelling the
+subscription closes the cursor. */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public final class Cursor
+    implements Iterator<Row>, Flow.Publisher<Row>, AutoCloseable {
+    private Table.Snapshot snapshot;
+    private Iterator<Record> records;
+    private Header header;
+    private int[] columns, tests;
+    private String[] values;
+    private long limit, count;
+    private Row next;
+    private boolean closed;
+    private AtomicBoolean subscribed = new AtomicBoolean();
+
+    // Create a cursor over records from a snapshot, keeping the ones whose
+    // fields in the test columns equal the given values, up to a limit, and
+    // showing the given columns of the header.
+    Cursor(Table.Snapshot snapshot, Iterator<Record> records, Header header,
+        int[] columns, int[] tests, String[] values, long limit) {
+        this.snapshot = snapshot;
+        this.records = records;
+        this.header = header;
+        this.columns = columns;
+        this.tests = tests;
+        this.values = values;
+        this.limit = limit;
+    }
+
+    /** Check whether there is another row, closing the cursor if not. */
+    public boolean hasNext() {
+        while (next == null && ! closed && count < limit && records.hasNext()) {
+            Record r = records.next();
+            if (matches(r)) next = new Row(header, columns, r);
+        }
+        if (next == null) close();
+        return next != null;
+    }
+
+    private boolean matches(Record r) {
+        for (int i = 0; i < tests.length; i++) {
+            if (! r.get(tests[i]).equals(values[i])) return false;
+        }
+        return true;
+    }
+
+    /** Return the next row. */
+    public Row next() {
+        if (! hasNext()) throw new NoSuchElementException();
+        Row row = next;
+        next = null;
+        count++;
+        return row;
+    }
+
+    /** Send the remaining rows to a subscriber, as it requests them. Only one
+    subscriber is allowed, and the cursor shouldn't be iterated as well. */
+    public void subscribe(Flow.Subscriber<? super Row> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (subscribed.getAndSet(true)) {
+            subscriber.onSubscribe(new Subscription(null));
+            subscriber.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+    /** Release the snapshot. Any further rows are not returned. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        snapshot.close();
+    }
+
+    // A subscription counts the rows requested but not yet sent. Requests and
+    // cancels can come from any thread, even from inside onNext, so whichever
+    // thread finds no other one sending does the sending, until it finds no
+    // more requests or cancels have arrived meanwhile. So the subscriber's
+    // methods are never called at the same time, or recursively.
+    private class Subscription implements Flow.Subscription {
+        private Flow.Subscriber<? super Row> subscriber;
+        private AtomicLong demand = new AtomicLong();
+        private AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable failure;
+        private boolean done;
+
+        // Create a subscription, which is already finished if there is no
+        // subscriber.
+        Subscription(Flow.Subscriber<? super Row> subscriber) {
+            this.subscriber = subscriber;
+            done = subscriber == null;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Bad request " + n);
+            }
+            else demand.getAndAccumulate(n, (a, b) ->
+                a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (work.getAndIncrement() != 0) return;
+            do { if (! done) send(); } while (work.decrementAndGet() != 0);
+        }
+
+        // Send rows while there are requests for them, then finish if the
+        // rows have run out, the subscription is cancelled, or a request or
+        // the subscriber has gone wrong.
+        private void send() {
+            try {
+                while (! cancelled && failure == null && demand.get() > 0 &&
+                    hasNext()) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(next());
+                }
+                if (cancelled) finish();
+                else if (failure != null) fail(failure);
+                else if (! hasNext()) {
+                    finish();
+                    subscriber.onComplete();
+                }
+            }
+            catch (RuntimeException | Error e) { if (! done) fail(e); }
+        }
+
+        private void finish() {
+            done = true;
+            close();
+        }
+
+        private void fail(Throwable e) {
+            finish();
+            subscriber.onError(e);
+        }
+    }
+
+    // A subscriber which asks for rows a few at a time, and can cancel after
+    // a given number.
+    private static class Collector implements Flow.Subscriber<Row> {
+        Flow.Subscription subscription;
+        List<Row> rows = new ArrayList<>();
+        int step, stop = Integer.MAX_VALUE;
+        boolean complete;
+        Throwable error;
+
+        Collector(int step) { this.step = step; }
+
+        public void onSubscribe(Flow.Subscription s) { subscription = s; }
+
+        public void onNext(Row r) {
+            rows.add(r);
+            if (rows.size() == stop) subscription.cancel();
+            else if (rows.size() % step == 0) subscription.request(step);
+        }
+
+        public void onError(Throwable e) { error = e; }
+
+        public void onComplete() { complete = true; }
+    }
+
+    private static Table pets(int n) {
+        Table t = new Table("Id", "Kind");
+        for (int i = 0; i < n; i++) {
+            t.insert(new Record(String.format("p%03d", i), i % 3 == 0 ?
+                "cat" : "dog"));
+        }
+        return t;
+    }
+
+    private static Cursor cursor(Table t, int batch, long limit) {
+        Table.Snapshot s = t.snapshot();
+        Iterator<Record> records = s.range("", null, batch).iterator();
+        return new Cursor(s, records, t.schema(), new int[] {0, 1},
+            new int[] {1}, new String[] {"cat"}, limit);
+    }
+
+    // Check that rows are only sent when requested.
+    private static void testDemand() {
+        Table t = pets(100);
+        Cursor c = cursor(t, 7, Long.MAX_VALUE);
+        Collector sub = new Collector(5);
+        c.subscribe(sub);
+        t.insert(new Record("p000", "dog"));
+        assert(sub.rows.isEmpty() && t.versions() == 1);
+        sub.subscription.request(5);
+        assert(sub.rows.size() == 34 && sub.complete && sub.error == null);
+        assert(sub.rows.get(1).text(0).equals("p003") && t.versions() == 0);
+        sub.subscription.request(1);
+        assert(sub.rows.size() == 34);
+    }
+
+    // Check that a slow subscriber holds back reading, and that cancelling
+    // releases the snapshot.
+    private static void testCancel() {
+        Table t = pets(100);
+        Cursor c = cursor(t, 2, Long.MAX_VALUE);
+        Collector sub = new Collector(1);
+        sub.stop = 4;
+        c.subscribe(sub);
+        t.delete("p099");
+        sub.subscription.request(1);
+        assert(sub.rows.size() == 4 && t.versions() == 0 && ! sub.complete);
+        c = cursor(t, 2, 3);
+        sub = new Collector(1);
+        c.subscribe(sub);
+        sub.subscription.request(Long.MAX_VALUE);
+        sub.subscription.request(Long.MAX_VALUE);
+        assert(sub.rows.size() == 3 && sub.complete);
+    }
+
+    // Check that bad requests and second subscribers get errors.
+    private static void testErrors() {
+        Table t = pets(10);
+        Cursor c = cursor(t, 4, Long.MAX_VALUE);
+        Collector sub = new Collector(1);
+        c.subscribe(sub);
+        t.delete("p009");
+        sub.subscription.request(0);
+        assert(sub.error instanceof IllegalArgumentException);
+        assert(t.versions() == 0 && sub.rows.isEmpty());
+        Collector other = new Collector(1);
+        c.subscribe(other);
+        assert(other.error instanceof IllegalStateException);
+        other.subscription.request(1);
+        assert(other.rows.isEmpty());
+    }
+
+    // Check that rows flow to a subscriber requesting from another thread.
+    private static void testThreads() throws Exception {
+        Table t = pets(3000);
+        Cursor c = cursor(t, 16, Long.MAX_VALUE);
+        CountDownLatch end = new CountDownLatch(1);
+        List<Row> rows = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        t.delete("p000");
+        c.subscribe(new Flow.Subscriber<Row>() {
+            Flow.Subscription s;
+            public void onSubscribe(Flow.Subscription s) {
+                this.s = s;
+                pool.execute(() -> s.request(1));
+            }
+            public void onNext(Row r) {
+                rows.add(r);
+                pool.execute(() -> s.request(1));
+            }
+            public void onError(Throwable e) { end.countDown(); }
+            public void onComplete() { end.countDown(); }
+        });
+        end.await();
+        pool.shutdown();
+        assert(rows.size() == 1000 && t.versions() == 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        testDemand();
+        testCancel();
+        testErrors();
+        testThreads();
+        System.out.println("Cursor class OK");
+    }
+}
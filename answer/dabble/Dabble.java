@@ -2,28 +2,70 @@
 on a folder containg text files. If no argument is given to specify a folder
 when starting the program, the current folder is used. */
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 
 class Dabble {
+    // The most recently used command plans which are kept.
+    static final int PLANS = 1000;
+
+    // The size of the select result cache in bytes, or 0 for none. This is
+    // separate from dabble.cache, which sizes a disk store's record cache.
+    static long resultBytes = Long.getLong("dabble.results", 16L << 20);
+
     private Database db;
+    private Map<String,Plan> plans;
+    private ResultCache results;
+    private SlowLog slow;
+    private Transaction tx;
+
+    // A planned command. The tables and columns it names have already been
+    // looked up, so running it only needs the parameters, if any. It returns
+    // true if the program should end. A select can explain how it is run.
+    interface Plan {
+        boolean run(String... params);
+
+        // Return the steps of the plan, with current estimates, or null.
+        default List<Cost.Step> explain() { return null; }
+    }
+
+    // Attach an explanation to a plan.
+    private static Plan explained(Plan plan, Supplier<List<Cost.Step>> steps) {
+        return new Plan() {
+            public boolean run(String... params) { return plan.run(params); }
+            public List<Cost.Step> explain() { return steps.get(); }
+        };
+    }
+
+    // Create a command interpreter for a database.
+    Dabble(Database db) {
+        this.db = db;
+        long millis = Long.getLong("dabble.slow", -1);
+        slow = new SlowLog(new File(db.folder(), "slow.log"), millis);
+        plans = new LinkedHashMap<String,Plan>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Plan> e) {
+                return size() > PLANS;
+            }
+        };
+        results = new ResultCache(resultBytes);
+    }
 
     public static void main(String[] args) {
-        Dabble program = new Dabble();
-        if (args.length > 0) program.run(args[0]);
-        else program.run(".");
+        String folderName = args.length > 0 ? args[0] : ".";
+        Database db = new Database(new File(folderName));
+        new Monitor(db).register();
+        Dabble program = new Dabble(db);
+        program.run();
     }
 
-    private void run(String folderName) {
-        db = new Database(new File(folderName));
+    private void run() {
         Scanner in = new Scanner(System.in);
         boolean ended = false;
         System.out.println("Welcome to Dabble. Type help to see commands.");
         System.out.print("> ");
         System.out.flush();
         while (! ended && in.hasNextLine()) {
-            String line = in.nextLine();
-            String[] words = line.split(" ");
-            if (words.length > 0 && words[0].length() > 0) ended = obey(words);
+            ended = execute(in.nextLine());
             if (! ended) {
                 System.out.print("> ");
                 System.out.flush();
@@ -32,21 +74,173 @@ class Dabble {
         in.close();
     }
 
+    // Carry out one command line, returning true if the program should end.
+    // The time taken is recorded in the database's stats, and as a JFR event.
+    boolean execute(String line) {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        long start = System.nanoTime();
+        Profile profile = slow.enabled() ? Profile.start() : null;
+        String[] words = line.split(" ");
+        if (words.length == 0 || words[0].length() == 0) {
+            if (profile != null) profile.finish();
+            return false;
+        }
+        boolean ended = obey(words);
+        db.stats().command(words[0], System.nanoTime() - start);
+        if (profile != null) {
+            profile.finish();
+            slow.check(line, profile);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = words[0];
+            event.table = tableName(words);
+            event.commit();
+        }
+        return ended;
+    }
+
+    // Find the name of the (first) table in a command, or return blank.
+    private static String tableName(String[] words) {
+        if (words.length < 2) return "";
+        if (words[1].endsWith(")") && words.length > 3) return words[3];
+        return words[1];
+    }
+
     private boolean obey(String[] words) {
+        if (tx != null && alters(words[0])) {
+            return fail("Not allowed in a transaction: ", words[0]);
+        }
         switch (words[0]) {
             case "help": return doHelp(words);
             case "list": return doList(words);
             case "create": return doCreate(words);
             case "drop": return doDrop(words);
-            case "select": return doSelect(words);
-            case "insert": return doInsert(words);
-            case "update": return doUpdate(words);
-            case "delete": return doDelete(words);
+            case "alter": return doAlter(words);
+            case "store": return doStore(words);
+            case "select": case "insert": case "update": case "delete":
+                return doPlanned(words);
+            case "begin": return doBegin(words);
+            case "commit": return doCommit(words);
+            case "rollback": return doRollback(words);
+            case "search": return doSearch(words);
+            case "analyze": return doAnalyze(words);
+            case "explain": return doExplain(words);
+            case "stats": return doStats(words);
+            case "slow": return doSlow(words);
             case "quit": return doQuit(words);
             default: return fail("Command not recognized.", "Try typing help.");
         }
     }
 
+    // Run a command which can be planned, using the cached plan for a command
+    // of the same shape if there is one.
+    private boolean doPlanned(String[] words) {
+        String shape = shape(words);
+        Plan plan = plans.get(shape);
+        db.stats().plan(plan != null);
+        if (plan == null) {
+            Profile.enter(Profile.Phase.RESOLVE);
+            plan = plan(words);
+            if (plan == null) return false;
+            plans.put(shape, plan);
+        }
+        Profile.enter(Profile.Phase.ACCESS);
+        if (! parameterized(words[0])) return select(words, shape, plan);
+        return plan.run(Arrays.copyOfRange(words, 2, words.length));
+    }
+
+    // Run a select, or print its output again from the result cache, if it
+    // has been run before and none of the tables it reads have changed since.
+    // Within a transaction, the output depends on the transaction's changes,
+    // so it isn't cached.
+    private boolean select(String[] words, String command, Plan plan) {
+        if (tx != null) return plan.run();
+        byte[] text = results.get(command);
+        if (text != null) {
+            System.out.write(text, 0, text.length);
+            System.out.flush();
+            return false;
+        }
+        Table[] tables = reads(words);
+        long[] stamps = ResultCache.stamps(tables);
+        PrintStream console = System.out;
+        ResultCache.Recorder copy = results.recorder(console);
+        System.setOut(new PrintStream(copy));
+        try { plan.run(); }
+        finally {
+            System.out.flush();
+            System.setOut(console);
+        }
+        results.put(command, copy.text(), tables, stamps);
+        return false;
+    }
+
+    // Find the names of the tables which a select reads.
+    private static String[] readNames(String[] words) {
+        if (words.length > 3 && words[2].equals("join") &&
+            ! words[1].equals(words[3])) {
+            return new String[] { words[1], words[3] };
+        }
+        return new String[] { tableName(words) };
+    }
+
+    // Find the tables which a planned select reads.
+    private Table[] reads(String[] words) {
+        String[] names = readNames(words);
+        Table[] tables = new Table[names.length];
+        for (int i = 0; i < names.length; i++) {
+            tables[i] = db.getTable(names[i]);
+        }
+        return tables;
+    }
+
+    // Check whether a command changes the tables themselves, rather than their
+    // records.
+    private static boolean alters(String command) {
+        switch (command) {
+            case "create": case "drop": case "alter": case "store":
+                return true;
+            default: return false;
+        }
+    }
+
+    // Check whether a command takes fields as parameters, after the table name.
+    private static boolean parameterized(String command) {
+        return ! command.equals("select");
+    }
+
+    // Find the shape of a command, i.e. the command with its parameters
+    // replaced by question marks.
+    private static String shape(String[] words) {
+        if (! parameterized(words[0]) || words.length < 2) {
+            return String.join(" ", words);
+        }
+        StringBuilder b = new StringBuilder(words[0]);
+        b.append(' ').append(words[1]);
+        for (int i = 2; i < words.length; i++) b.append(" ?");
+        return b.toString();
+    }
+
+    // Plan a command, or report a problem and return null. The parameter
+    // words of the command are only counted, not looked at.
+    private Plan plan(String[] words) {
+        switch (words[0]) {
+            case "select": return planSelect(words);
+            case "insert": return planInsert(words);
+            case "update": return planUpdate(words);
+            case "delete": return planDelete(words);
+            default: throw new Error("Not plannable");
+        }
+    }
+
+    // Forget all plans, and cached results, because tables have changed.
+    private void forgetPlans() {
+        plans.clear();
+        results.clear();
+    }
+
     private void p(String s) { System.out.println(s); }
 
     private boolean doHelp(String[] words) {
@@ -54,11 +248,42 @@ class Dabble {
         p("help                  this message");
         p("list                  give the names of the tables");
         p("create t x y x...     create table t with given column names");
+        p("  ... x:int           with x holding whole numbers, or blank");
         p("drop t                delete table");
+        p("alter t add c [v]     add column c, with value v for old records");
+        p("alter t drop c        remove column c");
+        p("alter t rename c d    rename column c to d");
+        p("alter t ref c u       make column c hold keys of table u, or blank");
+        p("alter t unref c       stop checking column c");
+        p("alter t type c int    make column c hold whole numbers, or text");
+        p("alter t index c       add a full text index on column c");
+        p("alter t unindex c     remove the full text index on column c");
+        p("store t memory        keep table t in memory");
+        p("store t disk          keep table t in its file, with a cache");
+        p("store t btree         keep table t in a B+tree file");
+        p("store t lsm           keep table t in an LSM tree, for many writes");
         p("select t              print table t");
+        p("select f(c) from t    count, sum, min, max or avg of column c");
+        p("  ... group by g      with one result per value in column g");
+        p("select a join b on a.x = b.y   rows of a and b with equal x and y");
+        p("select a join a on a.x = a.y   rows of a paired where x = y");
+        p("select t from x to y  print records with keys from x, before y");
+        p("select t prefix p     print records with keys starting with p");
+        p("select t order by c   print t sorted by column c");
+        p("  ... desc            in reverse order");
         p("insert t x y x...     add record to t with given fields");
+        p("insert t * y z...     add record with the next key, and print it");
         p("update t x y x...     replace record with key x");
         p("delete t x            delete record with key x");
+        p("begin                 start a transaction, seeing no other changes");
+        p("commit                make the transaction's changes all at once");
+        p("rollback              abandon the transaction's changes");
+        p("search t c x y...     records with all the words in column c");
+        p("analyze t             gather statistics about the columns of t");
+        p("explain select ...    show how a select is run, with estimates");
+        p("stats                 show command timings and table sizes");
+        p("slow n                log commands taking n ms or more to slow.log");
+        p("slow off              stop logging slow commands");
         p("quit                  save tables and exit");
         return false;
     }
@@ -76,8 +301,14 @@ class Dabble {
             return fail("Duplicate table name: ", name);
         }
         String[] columns = Arrays.copyOfRange(words, 2, words.length);
-        Table t = new Table(columns);
+        for (String column : columns) {
+            if (column.contains(">")) return fail("Bad name: ", column);
+            String problem = Header.check(column);
+            if (problem != null) return fail(problem, "");
+        }
+        Table t = new Table(Header.parse(columns), new MemoryStore());
         db.addTable(name, t);
+        forgetPlans();
         return false;
     }
 
@@ -88,73 +319,471 @@ class Dabble {
         if (db.getTable(name) == null) {
             return fail("Table not found: ", name);
         }
+        String by = db.references().referrer(name);
+        if (by != null) return fail("Table is referred to by: ", by);
         db.deleteTable(name);
+        db.references().build();
+        forgetPlans();
         return false;
     }
 
-    private boolean doSelect(String[] words) {
+    // Change the columns of a table. Only the table's header is changed. A
+    // column can be made to refer to the keys of a table, if all its values
+    // do already.
+    private boolean doAlter(String[] words) {
         if (words.length < 2) return fail("No table name", "");
+        if (words.length < 4) return fail("Expecting: alter t add c", "");
         String name = words[1];
         Table t = db.getTable(name);
         if (t == null) return fail("Can't find table: ", name);
-        t.print(System.out);
+        String column = words[3];
+        int col = t.column(column);
+        switch (words[2]) {
+            case "add":
+                if (words.length > 5) {
+                    return fail("Give column and value only", "");
+                }
+                if (col >= 0) return fail("Duplicate column name: ", column);
+                if (bad(column)) return fail("Bad name: ", column);
+                String initial = words.length == 5 ? words[4] : "";
+                t.addColumn(t.width(), column, initial);
+                break;
+            case "drop":
+                if (words.length > 4) return fail("Give column name only", "");
+                if (col < 0) return fail("Can't find column: ", column);
+                if (col == 0) return fail("Can't drop the key column", "");
+                t.dropColumn(col);
+                break;
+            case "rename":
+                if (words.length != 5) {
+                    return fail("Give old and new names", "");
+                }
+                if (col < 0) return fail("Can't find column: ", column);
+                int other = t.column(words[4]);
+                if (other >= 0 && other != col) {
+                    return fail("Duplicate column name: ", words[4]);
+                }
+                if (bad(words[4])) return fail("Bad name: ", words[4]);
+                t.renameColumn(col, words[4]);
+                break;
+            case "ref":
+                if (words.length != 5) return fail("Give column and table", "");
+                if (col < 0) return fail("Can't find column: ", column);
+                Table target = db.getTable(words[4]);
+                if (target == null) return fail("Can't find table: ", words[4]);
+                String v = References.dangling(t, col, target);
+                if (v != null) return fail("Can't find in target: ", v);
+                t.refer(col, words[4]);
+                break;
+            case "unref":
+                if (words.length > 4) return fail("Give column name only", "");
+                if (col < 0) return fail("Can't find column: ", column);
+                t.refer(col, null);
+                break;
+            case "type":
+                if (words.length != 5) return fail("Give column and type", "");
+                if (col < 0) return fail("Can't find column: ", column);
+                Codec codec = Codec.of(words[4]);
+                if (codec == null) return fail("Unknown type: ", words[4]);
+                if (codec != Codec.TEXT && t.schema().indexed(col)) {
+                    return fail("Column has a text index: ", column);
+                }
+                try (Table.Snapshot s = t.snapshot()) {
+                    for (Record r : s) {
+                        String x = r.get(col);
+                        if (! codec.valid(x)) {
+                            return fail("Not a valid value: ", x);
+                        }
+                    }
+                }
+                t.retype(col, codec);
+                break;
+            case "index": case "unindex":
+                if (words.length > 4) return fail("Give column name only", "");
+                if (col < 0) return fail("Can't find column: ", column);
+                boolean on = words[2].equals("index");
+                if (on && t.schema().codec(col) != Codec.TEXT) {
+                    return fail("Only text can be indexed: ", column);
+                }
+                t.index(col, on);
+                break;
+            default: return fail("Expecting add, drop or rename: ", words[2]);
+        }
+        db.references().build();
+        forgetPlans();
         return false;
     }
 
-    private boolean doInsert(String[] words) {
-        if (words.length < 2) return fail("No table name", "");
+    // Search a column with a full text index, printing the records which
+    // contain all the words, most occurrences first. A transaction's own
+    // changes aren't seen.
+    private boolean doSearch(String[] words) {
+        if (words.length < 4) return fail("Expecting: search t c words", "");
+        Table t = db.getTable(words[1]);
+        if (t == null) return fail("Can't find table: ", words[1]);
+        int col = t.column(words[2]);
+        if (col < 0) return fail("Can't find column: ", words[2]);
+        if (! t.schema().indexed(col)) {
+            return fail("No text index on column: ", words[2]);
+        }
+        String text = String.join(" ", Arrays.copyOfRange(words, 3,
+            words.length));
+        List<Record> found = t.search(col, text);
+        Profile.rows(found.size());
+        Printer.print(System.out, t.header(), found);
+        return false;
+    }
+
+    // Check whether a column name contains characters used in specifications.
+    private static boolean bad(String name) {
+        return name.contains(">") || name.contains(":") || name.contains("~");
+    }
+
+    // Move a table's records into another kind of store. The table object
+    // stays the same, so plans remain valid.
+    private boolean doStore(String[] words) {
+        if (words.length != 3) return fail("Expecting: store t memory", "");
+        String name = words[1];
+        if (db.getTable(name) == null) return fail("Can't find table: ", name);
+        switch (words[2]) {
+            case "memory": case "disk": case "btree": case "lsm": break;
+            default: return fail("Expecting memory, disk, btree or lsm: ",
+                words[2]);
+        }
+        db.store(name, words[2]);
+        return false;
+    }
+
+    private Plan planSelect(String[] words) {
+        if (words.length < 2) return failed("No table name", "");
+        if (words[1].endsWith(")")) return planAggregate(words);
+        if (words.length > 2 && words[2].equals("join")) return planJoin(words);
+        if (words.length > 2 && words[2].equals("order")) {
+            return planOrder(words);
+        }
+        if (words.length > 2) return planRange(words);
         String name = words[1];
         Table t = db.getTable(name);
-        if (t == null) return fail("Can't find table: ", name);
-        if (words.length != 2 + t.width()) {
-            return fail("Wrong number of fields", "");
+        if (t == null) return failed("Can't find table: ", name);
+        return explained(params -> {
+            Profile.rows(t.height());
+            if (tx == null) t.print(System.out);
+            else Printer.print(System.out, t.header(), tx.records(name));
+            return false;
+        }, () -> List.of(Cost.scan(name, t)));
+    }
+
+    // Plan select t from x to y, or select t prefix p, which only read the
+    // records with keys in the range, in key order.
+    private Plan planRange(String[] words) {
+        String name = words[1];
+        Table t = db.getTable(name);
+        if (t == null) return failed("Can't find table: ", name);
+        String from, to;
+        if (words.length == 4 && words[2].equals("prefix")) {
+            from = words[3];
+            to = Table.after(words[3].toLowerCase());
         }
-        String[] fields = Arrays.copyOfRange(words, 2, words.length);
-        if (t.select(fields[0]) != null) {
-            return fail("Duplicate key: ", fields[0]);
+        else if (words.length == 6 && words[2].equals("from") &&
+            words[4].equals("to")) {
+            from = words[3];
+            to = words[5];
         }
-        Record r = new Record(fields);
-        t.insert(r);
-        return false;
+        else return failed("Expecting: select t from x to y", "");
+        return explained(params -> {
+            Iterable<Record> rows = tx == null ? t.range(from, to) :
+                tx.records(name, from, to);
+            List<Record> list = new ArrayList<>();
+            for (Record r : rows) list.add(r);
+            Profile.rows(list.size());
+            Printer.print(System.out, t.header(), list);
+            return false;
+        }, () -> List.of(Cost.range(name, t, from, to)));
     }
 
-    private boolean doUpdate(String[] words) {
-        if (words.length < 2) return fail("No table name", "");
+    // Handle e.g. select count(*) from t group by col
+    private Plan planAggregate(String[] words) {
+        String call = words[1];
+        int open = call.indexOf('(');
+        if (open < 0) return failed("Bad function call: ", call);
+        Aggregate.Function f = Aggregate.function(call.substring(0, open));
+        if (f == null) return failed("Unknown function: ", call);
+        if (words.length < 4 || ! words[2].equals("from")) {
+            return failed("Expecting: select f(col) from t", "");
+        }
+        String name = words[3];
+        Table t = db.getTable(name);
+        if (t == null) return failed("Can't find table: ", name);
+        String arg = call.substring(open + 1, call.length() - 1);
+        int col = -1;
+        if (! arg.equals("*")) col = t.column(arg);
+        if (col < 0 && ! (arg.equals("*") && f == Aggregate.Function.COUNT)) {
+            return failed("Can't find column: ", arg);
+        }
+        int group = -1;
+        if (words.length > 4) {
+            if (words.length != 7 || ! words[4].equals("group") ||
+                ! words[5].equals("by")) {
+                return failed("Expecting: group by col", "");
+            }
+            group = t.column(words[6]);
+            if (group < 0) return failed("Can't find column: ", words[6]);
+        }
+        Aggregate a = new Aggregate(f, col, group);
+        int by = group;
+        return explained(params -> {
+            Profile.rows(t.height());
+            Printer.print(System.out, a.header(t), a.run(t));
+            return false;
+        }, () -> List.of(Cost.scan(name, t), Cost.group(name, t, by)));
+    }
+
+    // Handle select a join b on a.col = b.col
+    private Plan planJoin(String[] words) {
+        if (words.length != 8 || ! words[4].equals("on") ||
+            ! words[6].equals("=")) {
+            return failed("Expecting: select a join b on a.col = b.col", "");
+        }
+        String[] names = { words[1], words[3] };
+        Table[] tables = new Table[2];
+        for (int i = 0; i < 2; i++) {
+            tables[i] = db.getTable(names[i]);
+            if (tables[i] == null) {
+                return failed("Can't find table: ", names[i]);
+            }
+        }
+        // In a self-join, the first reference is to the left copy.
+        int[] cols = { -1, -1 };
+        for (String ref : new String[] { words[5], words[7] }) {
+            int dot = ref.indexOf('.');
+            if (dot < 0) return failed("Expecting table.column: ", ref);
+            String name = ref.substring(0, dot);
+            int i = name.equals(names[0]) && cols[0] < 0 ? 0 :
+                name.equals(names[1]) ? 1 : -1;
+            if (i < 0 || cols[i] >= 0) return failed("Bad table in: ", ref);
+            cols[i] = tables[i].column(ref.substring(dot + 1));
+            if (cols[i] < 0) return failed("Can't find column: ", ref);
+        }
+        Join j = new Join(names[0], tables[0], cols[0],
+            names[1], tables[1], cols[1]);
+        return explained(params -> {
+            j.method(Cost.join(j, names, tables, cols).get(0).join);
+            Printer out = new Printer(System.out, j.header());
+            Profile.rows(tables[0].height() + tables[1].height());
+            j.run(out::add);
+            out.finish();
+            return false;
+        }, () -> Cost.join(j, names, tables, cols));
+    }
+
+    // Handle select t order by col, optionally followed by desc
+    private Plan planOrder(String[] words) {
+        if (words.length < 5 || words.length > 6 || ! words[3].equals("by")) {
+            return failed("Expecting: select t order by col", "");
+        }
+        boolean descending = false;
+        if (words.length == 6) {
+            if (! words[5].equals("desc") && ! words[5].equals("asc")) {
+                return failed("Expecting asc or desc: ", words[5]);
+            }
+            descending = words[5].equals("desc");
+        }
         String name = words[1];
         Table t = db.getTable(name);
-        if (t == null) return fail("Can't find table: ", name);
+        if (t == null) return failed("Can't find table: ", name);
+        int col = t.column(words[4]);
+        if (col < 0) return failed("Can't find column: ", words[4]);
+        Sorter sorter = new Sorter(t, col, descending, db.folder());
+        return explained(params -> {
+            Printer out = new Printer(System.out, t.header());
+            Profile.rows(t.height());
+            sorter.run(out::add);
+            out.finish();
+            return false;
+        }, () -> List.of(Cost.scan(name, t), Cost.sort(name, t)));
+    }
+
+    private Plan planInsert(String[] words) {
+        if (words.length < 2) return failed("No table name", "");
+        String name = words[1];
+        Table t = db.getTable(name);
+        if (t == null) return failed("Can't find table: ", name);
         if (words.length != 2 + t.width()) {
-            return fail("Wrong number of fields: ", "");
+            return failed("Wrong number of fields", "");
         }
-        String[] fields = Arrays.copyOfRange(words, 2, words.length);
-        if (t.select(fields[0]) == null) {
-            return fail("Can't find record with key: ", fields[0]);
+        return fields -> {
+            if (fields[0].equals("*")) {
+                fields = fields.clone();
+                fields[0] = t.newKey();
+                System.out.println(fields[0]);
+            }
+            else if (find(t, name, fields[0]) != null) {
+                return fail("Duplicate key: ", fields[0]);
+            }
+            Record r = new Record(fields);
+            int bad = t.schema().invalid(r);
+            if (bad >= 0) return fail("Not a valid value: ", fields[bad]);
+            Profile.rows(1);
+            insert(t, name, r);
+            return false;
+        };
+    }
+
+    private Plan planUpdate(String[] words) {
+        if (words.length < 2) return failed("No table name", "");
+        String name = words[1];
+        Table t = db.getTable(name);
+        if (t == null) return failed("Can't find table: ", name);
+        if (words.length != 2 + t.width()) {
+            return failed("Wrong number of fields: ", "");
         }
-        Record r = new Record(fields);
-        t.insert(r);
-        return false;
+        return fields -> {
+            if (find(t, name, fields[0]) == null) {
+                return fail("Can't find record with key: ", fields[0]);
+            }
+            Record r = new Record(fields);
+            int bad = t.schema().invalid(r);
+            if (bad >= 0) return fail("Not a valid value: ", fields[bad]);
+            Profile.rows(1);
+            insert(t, name, r);
+            return false;
+        };
     }
 
-    private boolean doDelete(String[] words) {
-        if (words.length < 2) return fail("No table name", "");
-        if (words.length < 3) return fail("No key", "");
-        if (words.length > 3) return fail("Give key only", "");
+    private Plan planDelete(String[] words) {
+        if (words.length < 2) return failed("No table name", "");
+        if (words.length < 3) return failed("No key", "");
+        if (words.length > 3) return failed("Give key only", "");
         String name = words[1];
         Table t = db.getTable(name);
-        if (t == null) return fail("Can't find table: ", name);
-        t.delete(words[2]);
+        if (t == null) return failed("Can't find table: ", name);
+        return key -> {
+            if (find(t, name, key[0]) == null) {
+                return fail("Can't find record with key: ", key[0]);
+            }
+            Profile.rows(1);
+            if (tx != null) tx.delete(name, key[0]);
+            else {
+                String problem = db.references().change(t, key[0], null);
+                if (problem != null) return fail(problem, "");
+            }
+            return false;
+        };
+    }
+
+    // Find a record, as seen by the current transaction if there is one.
+    private Record find(Table t, String name, String key) {
+        return tx == null ? t.select(key) : tx.select(name, key);
+    }
+
+    // Insert a record, or add it to the current transaction's changes, in
+    // which case its references are checked at commit.
+    private void insert(Table t, String name, Record r) {
+        if (tx != null) tx.insert(name, r);
+        else {
+            String problem = db.references().change(t, r.get(0), r);
+            if (problem != null) fail(problem, "");
+        }
+    }
+
+    // Start a transaction. Inserts, updates, deletes and plain selects go
+    // through it until it ends, while other selects see the tables as they
+    // are.
+    private boolean doBegin(String[] words) {
+        if (words.length > 1) return fail("Expecting: begin", "");
+        if (tx != null) return fail("Already in a transaction", "");
+        tx = new Transaction(db);
+        return false;
+    }
+
+    private boolean doCommit(String[] words) {
+        if (words.length > 1) return fail("Expecting: commit", "");
+        if (tx == null) return fail("Not in a transaction", "");
+        String problem = tx.commit();
+        tx = null;
+        if (problem != null) return fail(problem + ", rolled back", "");
+        return false;
+    }
+
+    private boolean doRollback(String[] words) {
+        if (words.length > 1) return fail("Expecting: rollback", "");
+        if (tx == null) return fail("Not in a transaction", "");
+        tx.rollback();
+        tx = null;
+        return false;
+    }
+
+    // Gather statistics about the columns of a table, for the cost model, and
+    // print them.
+    private boolean doAnalyze(String[] words) {
+        if (words.length != 2) return fail("Give table name only", "");
+        Table t = db.getTable(words[1]);
+        if (t == null) return fail("Can't find table: ", words[1]);
+        Analysis a = t.analyze();
+        Printer.print(System.out, Analysis.summaryHeader(), a.summary());
+        return false;
+    }
+
+    // Show the steps a select would take, with the estimated rows and cost of
+    // each, including the methods which weren't chosen, and say how up to
+    // date the statistics are.
+    private boolean doExplain(String[] words) {
+        if (words.length < 2 || ! words[1].equals("select")) {
+            return fail("Expecting: explain select ...", "");
+        }
+        String[] select = Arrays.copyOfRange(words, 1, words.length);
+        Plan plan = plan(select);
+        if (plan == null) return false;
+        List<Record> rows = new ArrayList<>();
+        for (Cost.Step s : plan.explain()) rows.add(s.record());
+        Printer.print(System.out, Cost.Step.header(), rows);
+        Table[] tables = reads(select);
+        String[] names = readNames(select);
+        for (int i = 0; i < tables.length; i++) {
+            Analysis a = tables[i].analysis();
+            if (a == null) p(names[i] + " not analyzed, so rows are guesses");
+            else p(names[i] + " analyzed " + a.age(tables[i]) +
+                " changes ago");
+        }
+        return false;
+    }
+
+    // Show the command timings and table figures, with times in microseconds
+    // for commands and milliseconds for loading and saving.
+    private boolean doStats(String[] words) {
+        Stats stats = db.stats();
+        Printer.print(System.out, Stats.commandHeader(), stats.commands());
+        p("");
+        Printer.print(System.out, Monitor.tableHeader(),
+            new Monitor(db).tables());
+        p("");
+        p("plan cache hits " + stats.planHits() + ", misses " +
+            stats.planMisses());
+        p("result cache hits " + results.hits() + ", misses " +
+            results.misses() + ", bytes " + results.size());
+        return false;
+    }
+
+    // Set the slow command threshold in milliseconds, or switch it off.
+    private boolean doSlow(String[] words) {
+        if (words.length != 2) return fail("Give milliseconds or off", "");
+        if (words[1].equals("off")) slow.setThreshold(-1);
+        else {
+            try { slow.setThreshold(Long.parseLong(words[1])); }
+            catch (NumberFormatException e) {
+                return fail("Not a number: ", words[1]);
+            }
+        }
         return false;
     }
 
     private boolean doQuit(String[] words) {
-        for (String name : db) {
-            PrintWriter out;
-            try { out = new PrintWriter(name + ".txt"); }
-            catch (Exception e) { throw new Error(e); }
-            Table t = db.getTable(name);
-            t.save(out);
-            out.close();
+        if (tx != null) {
+            tx.rollback();
+            p("Transaction rolled back");
         }
+        db.save();
+        slow.close();
         return true;
     }
 
@@ -162,4 +791,10 @@ class Dabble {
         System.out.println(message + " " + name);
         return false;
     }
+
+    // Report a problem found while planning a command.
+    private Plan failed(String message, String name) {
+        fail(message, name);
+        return null;
+    }
 }
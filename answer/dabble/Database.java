@@ -1,40 +1,308 @@
 /* A database looks after a collection of tables stored in one particular
 folder. The name of the file, with the extensionn taken off, is the name of
-the table. */
+the table. The tables are kept in a concurrent map, so that they can be listed
+by a monitoring thread. The times taken to load and save tables are recorded in
+the database's stats. A table whose file is bigger than the disk threshold is
+left on disk, with only an index and a cache of its records in memory, as long
+as the file is in key order, as written by a save. A table can also be kept in
+a B+tree file, with extension .btree, which is opened without reading it, or in
+an LSM folder, with extension .lsm. A table's sequence for auto-generated keys
+is saved in a small file with extension .seq, and the Bloom filter over the
+keys of a table which isn't in memory is saved in a .bloom file. Transactions
+which have committed are recorded in a journal, which is replayed when the
+database is opened. Saving a table removes its changes from the journal. */
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
 class Database implements Iterable<String> {
+    // The file size in bytes above which a table is left on disk.
+    static long disk = Long.getLong("dabble.disk", 64L << 20);
+
     private File folder;
     private Map<String,Table> tables;
+    private Stats stats;
+    private References references;
+    private FileOutputStream journalFile;
+    private PrintWriter journal;
 
     Database(File f) {
         folder = f;
-        tables = new TreeMap<>();
+        tables = new ConcurrentSkipListMap<>();
+        stats = new Stats();
         File[] files = folder.listFiles(); // or listFiles
         for (File file : files) {
             String name = file.getName();
-            if (! name.endsWith(".txt")) continue;
-            name = name.substring(0, name.length() - 4);
-            Scanner in;
-            try { in = new Scanner(file, "utf-8"); }
-            catch (Exception e) { throw new Error(e); }
-            Table t = new Table(in);
-            in.close();
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) continue;
+            String extension = name.substring(dot);
+            name = name.substring(0, dot);
+            switch (extension) {
+                case ".txt": case ".btree": case ".lsm": break;
+                default: continue;
+            }
+            TableEvent event = new TableEvent();
+            event.begin();
+            long start = System.nanoTime();
+            Table t = open(file, extension);
+            t.sequence(new Sequence(new File(folder, name + ".seq")));
+            t.loadFilter(new File(folder, name + ".bloom"));
             tables.put(name, t);
+            stats.load(name, System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = "load";
+                event.table = name;
+                event.rows = t.height();
+                event.commit();
+            }
+        }
+        replay();
+        references = new References(this);
+        references.build();
+    }
+
+    // Open a table from its file, loading it into memory if it is a small
+    // text file.
+    private static Table open(File file, String extension) {
+        if (extension.equals(".btree")) {
+            BTreeStore store = BTreeStore.open(file);
+            return new Table(store.header(), store);
+        }
+        if (extension.equals(".lsm")) {
+            LsmStore store = LsmStore.open(file);
+            return new Table(store.header(), store);
+        }
+        if (file.length() > disk) {
+            DiskStore store = DiskStore.open(file, null);
+            if (store != null) return new Table(store.header(), store);
         }
+        return load(file);
+    }
+
+    // Find the file which holds a table in a given kind of store.
+    private File file(String name, String kind) {
+        switch (kind) {
+            case "btree": return new File(folder, name + ".btree");
+            case "lsm": return new File(folder, name + ".lsm");
+            default: return new File(folder, name + ".txt");
+        }
+    }
+
+    // Load a table from its file into memory.
+    private static Table load(File file) {
+        Scanner in;
+        try { in = new Scanner(file, "utf-8"); }
+        catch (Exception e) { throw new Error(e); }
+        Table t = new Table(in);
+        in.close();
+        return t;
     }
 
+    // Get the timings collected for this database.
+    Stats stats() { return stats; }
+
+    // Get the foreign key checker for this database.
+    References references() { return references; }
+
+    // Get the folder which holds the tables.
+    File folder() { return folder; }
+
     // Get a table by name.
     Table getTable(String name) { return tables.get(name); }
 
-    // Add a table.
-    void addTable(String name, Table t) { tables.put(name, t); }
+    // Add a table, with a fresh sequence for its auto-generated keys.
+    void addTable(String name, Table t) {
+        File seq = new File(folder, name + ".seq");
+        seq.delete();
+        t.sequence(new Sequence(seq));
+        tables.put(name, t);
+    }
+
+    // Save a table by name into its file, then remove its changes from the
+    // journal, so that a later replay can't undo changes made since outside
+    // transactions. The table is locked meanwhile, so that no commit can be
+    // journalled but not yet applied. A table on disk only needs to write out
+    // its changes.
+    void save(String name) {
+        Table t = tables.get(name);
+        if (t == null) throw new Error("No table " + name);
+        synchronized (t) {
+            saveTable(name, t);
+            checkpoint(name);
+        }
+    }
+
+    // Save a table into its file, recording the time taken.
+    private void saveTable(String name, Table t) {
+        TableEvent event = new TableEvent();
+        event.begin();
+        long start = System.nanoTime();
+        File file = file(name, t.kind());
+        if (t.kind().equals("memory")) write(t, file);
+        else {
+            t.flush();
+            t.saveFilter(new File(folder, name + ".bloom"));
+        }
+        stats.save(name, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "save";
+            event.table = name;
+            event.rows = t.height();
+            event.commit();
+        }
+    }
+
+    // Write a table out to a text file.
+    private static void write(Table t, File file) {
+        PrintWriter out;
+        try { out = new PrintWriter(file, "utf-8"); }
+        catch (Exception e) { throw new Error(e); }
+        t.save(out);
+        out.close();
+    }
+
+    // Save all the tables, after which the journal isn't needed.
+    void save() {
+        for (String name : tables.keySet()) save(name);
+    }
+
+    // Rewrite the journal without the changes to a saved table, or to tables
+    // which have since been dropped, and without a last transaction which
+    // has no commit line. Transactions left with no changes are dropped, and
+    // the journal is deleted if none are left. The new journal is written to
+    // a temporary file which then replaces the old one.
+    private synchronized void checkpoint(String name) {
+        File file = new File(folder, "journal.log");
+        if (! file.exists()) return;
+        if (journal != null) journal.close();
+        journal = null;
+        List<String> kept = new ArrayList<>(), pending = new ArrayList<>();
+        for (String line : read(file).split("\n")) {
+            if (line.equals("commit")) {
+                if (pending.isEmpty()) continue;
+                kept.addAll(pending);
+                kept.add("commit");
+                pending.clear();
+                continue;
+            }
+            String table = new Record(line).get(0);
+            if (table.equals(name) || ! tables.containsKey(table)) continue;
+            pending.add(line);
+        }
+        try {
+            if (kept.isEmpty()) { Files.deleteIfExists(file.toPath()); return; }
+            Path temp = new File(folder, "journal.tmp").toPath();
+            Files.write(temp, kept, StandardCharsets.UTF_8);
+            Files.move(temp, file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Read a whole text file.
+    private static String read(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Write a committed transaction's changes to the journal, followed by a
+    // commit line, and force them out to disk.
+    synchronized void journal(List<String> lines) {
+        try {
+            if (journal == null) {
+                File file = new File(folder, "journal.log");
+                journalFile = new FileOutputStream(file, true);
+                journal = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(journalFile, StandardCharsets.UTF_8),
+                    1 << 16));
+            }
+            for (String line : lines) journal.println(line);
+            journal.println("commit");
+            journal.flush();
+            journalFile.getFD().sync();
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Make the changes of the transactions in the journal again, each as one
+    // version of its tables. A last transaction without its commit line is
+    // ignored, as are changes to tables which have been dropped or altered.
+    private void replay() {
+        File file = new File(folder, "journal.log");
+        if (! file.exists()) return;
+        String text = read(file);
+        Map<String,Map<String,Record>> changes = new TreeMap<>();
+        for (String line : text.split("\n")) {
+            if (line.equals("commit")) {
+                for (String name : changes.keySet()) {
+                    Table t = tables.get(name);
+                    if (t != null) t.apply(changes.get(name));
+                }
+                changes.clear();
+                continue;
+            }
+            Record r = new Record(line);
+            Table t = tables.get(r.get(0));
+            boolean put = r.get(1).equals("+");
+            if (t == null || put && r.width() != t.width() + 2) continue;
+            String[] fields = new String[r.width() - 2];
+            for (int i = 0; i < fields.length; i++) fields[i] = r.get(i + 2);
+            changes.computeIfAbsent(r.get(0), k -> new TreeMap<>())
+                .put(fields[0].toLowerCase(), put ? new Record(fields) : null);
+        }
+    }
+
+    // Change the kind of store which holds a table's records, to memory, disk,
+    // btree or lsm. The table is written out in its new form before the file
+    // of the old form, if different, is removed.
+    void store(String name, String kind) {
+        Table t = tables.get(name);
+        if (t == null) throw new Error("No table " + name);
+        String old = t.kind();
+        if (old.equals(kind)) return;
+        File before = file(name, old), after = file(name, kind);
+        switch (kind) {
+            case "memory":
+                t.moveTo(new MemoryStore());
+                if (! after.equals(before)) write(t, after);
+                break;
+            case "disk":
+                write(t, after);
+                t.open(DiskStore.open(after, t.schema()));
+                break;
+            case "btree":
+                t.moveTo(BTreeStore.create(after, t.schema()));
+                break;
+            case "lsm":
+                t.moveTo(LsmStore.create(after, t.schema()));
+                break;
+            default: throw new Error("Unknown store " + kind);
+        }
+        if (! after.equals(before)) delete(before);
+    }
 
     // Delete a table by name. Also remove its file.
     void deleteTable(String name) {
-        tables.remove(name);
-        File file = new File(folder, name + ".txt");
+        Table t = tables.remove(name);
+        if (t == null) return;
+        t.close();
+        delete(file(name, t.kind()));
+        new File(folder, name + ".seq").delete();
+        new File(folder, name + ".bloom").delete();
+    }
+
+    // Delete a table's file, or its folder and the files in it.
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File f : files) f.delete();
         file.delete();
     }
 
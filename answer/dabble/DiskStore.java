@@ -0,0 +1,465 @@
+/* A DiskStore leaves a table's records in its text file, rather than loading
+them, so that a table can be far larger than memory. The file is kept in key
+order. A sparse index holds the key and file position of every INTERVAL'th
+record, so a lookup reads at most INTERVAL lines from one place in the file.
+Records which have been looked up are kept in a bounded cache, which evicts
+the least recently used. Changes go into a write buffer, which takes priority
+over the file, with a deleted record marked by a tombstone. When the buffer is
+full, or the store is flushed, the file and the buffer are merged into a new
+file, which replaces the old one. Until then, the file's lines are laid out for
+the header the file was written with. */
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+class DiskStore implements Store {
+    static final int INTERVAL = 32;
+    static int cacheSize = Integer.getInteger("dabble.cache", 10000);
+    static int bufferSize = Integer.getInteger("dabble.buffer", 10000);
+    private static final Record DELETED = new Record("");
+
+    private File file;
+    private FileChannel channel;
+    private Header header, latest;
+    private long start;
+    private int size;
+    private String[] keys;
+    private long[] offsets;
+    private Map<String,Record> cache;
+    private TreeMap<String,Record> buffer;
+
+    // Open a table file, or return null if its records aren't in key order.
+    // The header is read from the file, unless one is given.
+    static DiskStore open(File file, Header h) {
+        DiskStore s = new DiskStore(file);
+        if (s.index(h)) return s;
+        s.close();
+        return null;
+    }
+
+    private DiskStore(File file) {
+        this.file = file;
+        cache = new LinkedHashMap<String,Record>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Record> e) {
+                return size() > cacheSize;
+            }
+        };
+        buffer = new TreeMap<>();
+        try { channel = FileChannel.open(file.toPath()); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Read the file, building the sparse index, and checking the key order.
+    private boolean index(Header h) {
+        Lines in = new Lines(channel, 0, 1 << 16);
+        String names = in.next();
+        if (names == null) throw new Error("No header in " + file);
+        if (h == null) h = Header.load(names);
+        header = latest = h;
+        start = in.position();
+        List<String> ks = new ArrayList<>();
+        List<Long> os = new ArrayList<>();
+        String previous = null;
+        long position = start;
+        int n = 0;
+        for (String line = in.next(); line != null; line = in.next()) {
+            String key = key(line);
+            if (previous != null && previous.compareTo(key) >= 0) return false;
+            if (n % INTERVAL == 0) {
+                ks.add(key);
+                os.add(position);
+            }
+            previous = key;
+            position = in.position();
+            n++;
+        }
+        setIndex(ks, os, n);
+        return true;
+    }
+
+    private void setIndex(List<String> ks, List<Long> os, int n) {
+        keys = ks.toArray(new String[ks.size()]);
+        offsets = new long[os.size()];
+        for (int i = 0; i < offsets.length; i++) offsets[i] = os.get(i);
+        size = n;
+    }
+
+    // Return the header the store was opened with.
+    Header header() { return latest; }
+
+    // Find the lowercase key of a line, without decoding the other fields.
+    private static String key(String line) {
+        int end = line.indexOf(", ");
+        String key = end < 0 ? line : line.substring(0, end);
+        if (key.indexOf('%') >= 0) {
+            key = key.replaceAll("%n", "\n");
+            key = key.replaceAll("%c", ",");
+            key = key.replaceAll("%p", "%");
+        }
+        return key.toLowerCase();
+    }
+
+    public Record get(String key) {
+        Record r = buffer.get(key);
+        if (r != null) return r == DELETED ? null : r;
+        r = cache.get(key);
+        if (r != null) return r;
+        r = read(key);
+        if (r != null) cache.put(key, r);
+        return r;
+    }
+
+    // Find a record in the file, starting from the nearest indexed key.
+    private Record read(String key) {
+        int i = floor(key);
+        if (i < 0) return null;
+        Lines in = new Lines(channel, offsets[i], 4096);
+        for (int n = 0; n < INTERVAL; n++) {
+            String line = in.next();
+            if (line == null) return null;
+            int c = key(line).compareTo(key);
+            if (c > 0) return null;
+            if (c == 0) return decode(line);
+        }
+        return null;
+    }
+
+    // Find the last indexed key which is not after the given key, or -1.
+    private int floor(String key) {
+        int lo = 0, hi = keys.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else hi = mid - 1;
+        }
+        return found;
+    }
+
+    private Record decode(String line) {
+        return new Record(header, line);
+    }
+
+    public Record put(String key, Record r) {
+        Record old = get(key);
+        if (old == null) size++;
+        change(key, r);
+        return old;
+    }
+
+    public Record remove(String key) {
+        Record old = get(key);
+        if (old == null) return null;
+        size--;
+        change(key, DELETED);
+        return old;
+    }
+
+    // Put a change into the buffer, merging it into the file if full.
+    private void change(String key, Record r) {
+        cache.remove(key);
+        buffer.put(key, r);
+        if (buffer.size() >= bufferSize) flush();
+    }
+
+    public List<Record> scan(String from, int n) {
+        List<Record> batch = new ArrayList<>();
+        Scan scan = new Scan(from);
+        while (batch.size() < n && scan.advance()) batch.add(scan.record());
+        return batch;
+    }
+
+    public int size() { return size; }
+
+    // Count the index, cache and buffer, assuming one byte per character.
+    public long memory() {
+        long m = 0;
+        for (String k : keys) m += 64 + k.length();
+        for (Record r : cache.values()) m += r.memory() + 80;
+        for (Record r : buffer.values()) m += r.memory() + 80;
+        return m;
+    }
+
+    // The file is rewritten for the new columns when it is next flushed.
+    public void columns(Header h) { latest = h; }
+
+    // Merge the buffer into the file, writing a new file and then replacing
+    // the old one with it. Unchanged lines are copied without decoding them,
+    // unless the columns have changed.
+    public void flush() {
+        if (buffer.isEmpty() && header == latest) return;
+        File temp = new File(file.getPath() + ".new");
+        List<String> ks = new ArrayList<>();
+        List<Long> os = new ArrayList<>();
+        int n = 0;
+        try {
+            OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(temp), 1 << 16);
+            long position = write(out, latest.save());
+            long first = position;
+            Scan scan = new Scan();
+            while (scan.advance()) {
+                String line = scan.line;
+                if (line == null || header != latest) {
+                    line = scan.record().save();
+                }
+                if (n % INTERVAL == 0) {
+                    ks.add(scan.key);
+                    os.add(position);
+                }
+                position += write(out, line);
+                n++;
+            }
+            out.close();
+            channel.close();
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath());
+            start = first;
+        }
+        catch (IOException e) { throw new Error(e); }
+        setIndex(ks, os, n);
+        header = latest;
+        buffer.clear();
+    }
+
+    // Write a line, returning the number of bytes written.
+    private static long write(OutputStream out, String line)
+        throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    public void close() {
+        try { channel.close(); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    public String kind() { return "disk"; }
+
+    // Iterate through the file merged with the buffer. The records are read
+    // from the file as needed, and aren't cached.
+    public Iterator<Record> iterator() {
+        Scan scan = new Scan();
+        return new Iterator<Record>() {
+            private boolean ready, more;
+
+            public boolean hasNext() {
+                if (! ready) more = scan.advance();
+                ready = true;
+                return more;
+            }
+
+            public Record next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                ready = false;
+                return scan.record();
+            }
+        };
+    }
+
+    // A scan through the file merged with the buffer, in key order. At each
+    // step, there is either a line from the file or a record from the buffer.
+    private class Scan {
+        private Lines in;
+        private Iterator<Map.Entry<String,Record>> changes;
+        private String fileLine, fileKey;
+        private Map.Entry<String,Record> change;
+        String key, line;
+        Record record;
+
+        Scan() { this(""); }
+
+        // Start from a given key, or the first one after it.
+        Scan(String from) {
+            int i = floor(from);
+            in = new Lines(channel, i < 0 ? start : offsets[i], 1 << 16);
+            changes = buffer.tailMap(from).entrySet().iterator();
+            nextLine();
+            while (fileKey != null && fileKey.compareTo(from) < 0) nextLine();
+            nextChange();
+        }
+
+        private void nextLine() {
+            fileLine = in.next();
+            fileKey = fileLine == null ? null : key(fileLine);
+        }
+
+        private void nextChange() {
+            change = changes.hasNext() ? changes.next() : null;
+        }
+
+        // Move to the next record, returning false at the end.
+        boolean advance() {
+            while (fileLine != null || change != null) {
+                int c = fileLine == null ? 1 : change == null ? -1 :
+                    fileKey.compareTo(change.getKey());
+                if (c < 0) {
+                    key = fileKey;
+                    line = fileLine;
+                    record = null;
+                    nextLine();
+                    return true;
+                }
+                if (c == 0) nextLine();
+                key = change.getKey();
+                record = change.getValue();
+                line = null;
+                nextChange();
+                if (record != DELETED) return true;
+            }
+            return false;
+        }
+
+        // Return the current record, decoding it from its line if necessary.
+        Record record() {
+            if (record == null) record = decode(line);
+            return record;
+        }
+    }
+
+    // Read lines from a file channel, from a given position, keeping track of
+    // the position of the next line.
+    private static class Lines {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long filled, next;
+        private byte[] bytes = new byte[256];
+
+        Lines(FileChannel channel, long position, int size) {
+            this.channel = channel;
+            filled = next = position;
+            buffer = ByteBuffer.allocate(size);
+            buffer.limit(0);
+        }
+
+        long position() { return next; }
+
+        // Read the next line, or return null at the end of the file.
+        String next() {
+            int n = 0;
+            while (true) {
+                if (! buffer.hasRemaining()) {
+                    buffer.clear();
+                    int k;
+                    try { k = channel.read(buffer, filled); }
+                    catch (IOException e) { throw new Error(e); }
+                    buffer.flip();
+                    if (k <= 0) {
+                        if (n == 0) return null;
+                        break;
+                    }
+                    filled += k;
+                }
+                byte b = buffer.get();
+                next++;
+                if (b == '\n') break;
+                if (n == bytes.length) bytes = Arrays.copyOf(bytes, 2 * n);
+                bytes[n++] = b;
+            }
+            if (n > 0 && bytes[n - 1] == '\r') n--;
+            return new String(bytes, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Write a table file with the given lines, for testing.
+    private static File file(String... lines) throws IOException {
+        File f = File.createTempFile("disk", ".txt");
+        PrintWriter out = new PrintWriter(f, "utf-8");
+        for (String line : lines) out.println(line);
+        out.close();
+        return f;
+    }
+
+    private static void testLookup() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("Id, Name");
+        for (int i = 100; i < 300; i++) lines.add("K" + i + ", name " + i);
+        File f = file(lines.toArray(new String[0]));
+        DiskStore s = open(f, null);
+        assert(s.size() == 200);
+        assert(s.header().name(1).equals("Name"));
+        assert(s.get("k100").get(1).equals("name 100"));
+        assert(s.get("k299").get(1).equals("name 299"));
+        assert(s.get("k150").get(0).equals("K150"));
+        assert(s.get("k150") == s.get("k150"));
+        assert(s.get("k099") == null && s.get("k3") == null);
+        assert(s.get("k1500") == null);
+        int n = 0;
+        for (Record r : s) n++;
+        assert(n == 200);
+        s.close();
+        f.delete();
+    }
+
+    private static void testChanges() throws IOException {
+        File f = file("Id, Name", "a, Ann", "b, Bob%c the 2nd", "c, Cy");
+        DiskStore s = open(f, null);
+        Header h = s.header();
+        Record r = new Record("B2", "Bea");
+        r.attach(h);
+        assert(s.put("b2", r) == null);
+        assert(s.remove("a").get(1).equals("Ann"));
+        assert(s.remove("a") == null);
+        Record c = new Record("C", "Cat");
+        c.attach(h);
+        assert(s.put("c", c).get(1).equals("Cy"));
+        assert(s.size() == 3);
+        String keys = "";
+        for (Record x : s) keys += x.get(0);
+        assert(keys.equals("bB2C"));
+        assert(s.get("b").get(1).equals("Bob, the 2nd"));
+        Header h2 = h.add(2, "Age", "9");
+        s.columns(h2);
+        s.flush();
+        s.close();
+        s = open(f, null);
+        assert(s.size() == 3);
+        assert(s.get("b2").get(1).equals("Bea"));
+        assert(s.get("a") == null);
+        assert(s.get("c").get(2).equals("9"));
+        assert(s.header().width() == 3);
+        s.close();
+        f.delete();
+    }
+
+    private static void testBufferFull() throws IOException {
+        File f = file("Id");
+        DiskStore s = open(f, null);
+        int saved = bufferSize;
+        bufferSize = 10;
+        for (int i = 0; i < 1000; i++) s.put("" + i, new Record("" + i));
+        bufferSize = saved;
+        assert(s.size() == 1000);
+        for (int i = 0; i < 1000; i += 7) assert(s.get("" + i) != null);
+        for (int i = 0; i < 1000; i += 2) s.remove("" + i);
+        List<Record> batch = s.scan("5", 3);
+        assert(batch.size() == 3 && batch.get(0).get(0).equals("5"));
+        assert(batch.get(1).get(0).equals("501"));
+        assert(batch.get(2).get(0).equals("503"));
+        s.close();
+        f.delete();
+    }
+
+    private static void testUnsorted() throws IOException {
+        File f = file("Id", "b", "a");
+        assert(open(f, null) == null);
+        f.delete();
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testLookup();
+        testChanges();
+        testBufferFull();
+        testUnsorted();
+        System.out.println("DiskStore class OK");
+    }
+}
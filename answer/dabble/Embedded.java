@@ -0,0 +1,152 @@
+/* Embedded is the public entry point for programs which use the database as a
+library, rather than sending commands to Dabble and reading back the printed
+tables. It opens the database in a folder, builds queries, which return rows
+through cursors, and makes changes. Nothing is parsed from text, and rows are
+copies, so the caller can't change a table by accident. For example:
+
+    try (Embedded db = Embedded.open("data")) {
+        db.insert("animals", "5", "Tom", "cat", "ab123");
+        for (Row r : db.from("animals").prefix("5").list()) ...
+    }
+
+A change which can't be made, e.g. because of a foreign key, returns the
+problem, or null if it succeeded, as with Dabble's commands. Naming a table
+or column which doesn't exist is an IllegalArgumentException. All the methods
+are thread safe. Changes are saved when the database is closed. */
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+public final class Embedded implements AutoCloseable {
+    private Database db;
+
+    private Embedded(Database db) { this.db = db; }
+
+    /** Open the database in a folder, loading its tables. */
+    public static Embedded open(String folder) {
+        File f = new File(folder);
+        if (! f.isDirectory()) {
+            throw new IllegalArgumentException("No folder " + folder);
+        }
+        return new Embedded(new Database(f));
+    }
+
+    /** Return the names of the tables, in order. */
+    public List<String> tables() {
+        List<String> names = new ArrayList<>();
+        for (String name : db) names.add(name);
+        return names;
+    }
+
+    /** Return the column names of a table. */
+    public List<String> columns(String table) {
+        Header h = table(table).schema();
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < h.width(); c++) names.add(h.name(c));
+        return names;
+    }
+
+    /** Start building a query on a table. */
+    public Query from(String table) { return new Query(this, table); }
+
+    /** Insert a record, or replace the one with the same key. Return the
+    problem, or null if the record was inserted. */
+    public String insert(String table, String... fields) {
+        Table t = table(table);
+        for (String f : fields) {
+            if (f == null) throw new IllegalArgumentException("Null field");
+        }
+        if (fields.length != t.width()) return "Wrong number of fields";
+        Record r = new Record(fields);
+        int bad = t.schema().invalid(r);
+        if (bad >= 0) return "Not a valid value: " + fields[bad];
+        return db.references().change(t, fields[0], r);
+    }
+
+    /** Insert a record with the next auto-generated key in place of the
+    first field, which is ignored, returning the key. */
+    public String insertAuto(String table, String... fields) {
+        Table t = table(table);
+        String[] copy = fields.clone();
+        copy[0] = t.newKey();
+        String problem = insert(table, copy);
+        if (problem != null) throw new IllegalArgumentException(problem);
+        return copy[0];
+    }
+
+    /** Delete the record with a key. Return the problem, or null. */
+    public String delete(String table, String key) {
+        Table t = table(table);
+        if (t.select(key) == null) return "Can't find record: " + key;
+        return db.references().change(t, key, null);
+    }
+
+    /** Save all the tables to their files. */
+    public void save() { db.save(); }
+
+    /** Save the tables, and release their files. */
+    public void close() {
+        db.save();
+        for (String name : db) db.getTable(name).close();
+    }
+
+    // Find a table, for a query.
+    Table table(String name) {
+        Table t = db.getTable(name);
+        if (t == null) throw new IllegalArgumentException("No table " + name);
+        return t;
+    }
+
+    private static void testQueries(Embedded db) {
+        for (int i = 1; i <= 20; i++) {
+            String kind = i % 2 == 0 ? "cat" : "dog";
+            assert(db.insert("pets", "p" + i, "n" + i, kind, "" + i) == null);
+        }
+        assert(db.insert("pets", "x", "y", "z", "old") != null);
+        assert(db.from("pets").list().size() == 20);
+        assert(db.from("pets").key("P7").first().text("Name").equals("n7"));
+        List<Row> cats = db.from("pets").where("kind", "cat").select("Age")
+            .limit(3).list();
+        assert(cats.size() == 3 && cats.get(0).number("age") == 10);
+        assert(db.from("pets").prefix("p1").list().size() == 11);
+        assert(db.from("pets").range("p2", "p3").list().size() == 2);
+        assert(db.from("pets").fetch(3).where("kind", "dog").list().size()
+            == 10);
+        try { db.from("pets").select("Nope").cursor(); assert(false); }
+        catch (IllegalArgumentException e) {}
+        assert(db.columns("pets").equals(List.of("Id", "Name", "Kind", "Age")));
+    }
+
+    // Check that a cursor sees a snapshot, and releases it when closed.
+    private static void testCursor(Embedded db) {
+        Table t = db.table("pets");
+        Cursor c = db.from("pets").cursor();
+        Row first = c.next();
+        assert(db.delete("pets", "p2") == null);
+        int n = 1;
+        while (c.hasNext()) { c.next(); n++; }
+        assert(n == 20 && first.text(0).equals("p1"));
+        assert(t.versions() == 0);
+        try (Cursor d = db.from("pets").cursor()) { d.next(); }
+        assert(db.insert("pets", "p2", "n2", "cat", "2") == null);
+        assert(t.versions() == 0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        File folder = Files.createTempDirectory("embedded").toFile();
+        Files.write(new File(folder, "pets.txt").toPath(),
+            List.of("Id, Name, Kind, Age:int"));
+        Embedded db = open(folder.getPath());
+        testQueries(db);
+        testCursor(db);
+        assert(db.insertAuto("pets", "", "Rex", "dog", "3").equals("0"));
+        db.close();
+        db = open(folder.getPath());
+        assert(db.tables().equals(List.of("pets")));
+        assert(db.from("pets").list().size() == 21);
+        db.close();
+        for (File f : folder.listFiles()) f.delete();
+        folder.delete();
+        System.out.println("Embedded class OK");
+    }
+}
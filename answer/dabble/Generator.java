@@ -0,0 +1,134 @@
+/* The Generator program writes synthetic tables into a database folder, in
+the normal table file format, for testing at scale. Options are given as
+name=value arguments after the folder name, for example:
+
+    java Generator big rows=1000000 width=8 tables=2 keys=random
+
+The options are the number of rows and columns, the number of tables (which
+are called t0, t1, ...), the key distribution, the average field length, the
+proportion of field characters which need escaping (comma, percent or newline),
+and the random seed. The key distributions are sequential (k0000000, k0000001,
+...), random (unique but in no order), or time (timestamps a few milliseconds
+apart, for bucketed keys). The same seed always gives the same data. */
+import java.util.*;
+import java.io.*;
+
+class Generator {
+    private static final String[] OPTIONS = {
+        "rows", "width", "tables", "keys", "length", "escapes", "seed" };
+    private static final char[] ESCAPED = { ',', '%', '\n' };
+
+    int rows = 1000, width = 5, tables = 1, length = 8;
+    double escapes = 0.01;
+    String keys = "sequential";
+    private Random random;
+    private long time = 1760000000000L;
+
+    // Create a generator with the given name=value options.
+    Generator(Map<String,String> options) {
+        for (String name : options.keySet()) {
+            if (! Arrays.asList(OPTIONS).contains(name)) {
+                throw new Error("Unknown option " + name);
+            }
+            String value = options.get(name);
+            switch (name) {
+                case "rows": rows = Integer.parseInt(value); break;
+                case "width": width = Integer.parseInt(value); break;
+                case "tables": tables = Integer.parseInt(value); break;
+                case "keys": keys = value; break;
+                case "length": length = Integer.parseInt(value); break;
+                case "escapes": escapes = Double.parseDouble(value); break;
+            }
+        }
+        if (rows < 0 || width < 1 || tables < 1 || length < 1) {
+            throw new Error("Bad size");
+        }
+        if (! keys.equals("sequential") && ! keys.equals("random") &&
+            ! keys.equals("time")) {
+            throw new Error("Unknown key distribution " + keys);
+        }
+        String seed = options.get("seed");
+        random = new Random(seed == null ? 42 : Long.parseLong(seed));
+    }
+
+    // Collect name=value arguments, starting at the given index.
+    static Map<String,String> options(String[] args, int from) {
+        Map<String,String> options = new TreeMap<>();
+        for (int i = from; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) throw new Error("Expecting name=value: " + args[i]);
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        return options;
+    }
+
+    // Return the column names, c0 being the key.
+    String[] columns() {
+        String[] names = new String[width];
+        for (int c = 0; c < width; c++) names[c] = "c" + c;
+        return names;
+    }
+
+    // Return the key of the i'th row. Keys are unique for i from 0 to 2^31-1,
+    // with random keys made by an invertible scrambling of i.
+    String key(int i) {
+        switch (keys) {
+            case "random": return String.format("r%08x", i * 0x9E3779B1);
+            case "time":
+                time += 1 + random.nextInt(5);
+                return String.format("%tFT%<tT.%<tL-%d", time, i);
+            default: return String.format("k%07d", i);
+        }
+    }
+
+    // Return a random field, with occasional characters which need escaping.
+    String field() {
+        int n = 1 + random.nextInt(2 * length - 1);
+        char[] cs = new char[n];
+        for (int i = 0; i < n; i++) {
+            if (random.nextDouble() < escapes) {
+                cs[i] = ESCAPED[random.nextInt(ESCAPED.length)];
+            }
+            else cs[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(cs);
+    }
+
+    // Return the i'th row.
+    Record record(int i) {
+        String[] fields = new String[width];
+        fields[0] = key(i);
+        for (int c = 1; c < width; c++) fields[c] = field();
+        return new Record(fields);
+    }
+
+    // Write a table file with the given name into a folder.
+    void write(File folder, String name) {
+        File file = new File(folder, name + ".txt");
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "utf-8")));
+            out.println(new Record(columns()).save());
+            for (int i = 0; i < rows; i++) out.println(record(i).save());
+            out.close();
+            if (out.checkError()) throw new Error("Can't write " + file);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Write all the tables into a folder, creating it if necessary.
+    void writeAll(File folder) {
+        folder.mkdirs();
+        for (int t = 0; t < tables; t++) write(folder, "t" + t);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Use: java Generator folder [name=value]...");
+            System.out.println("Options: rows width tables keys length " +
+                "escapes seed");
+            return;
+        }
+        new Generator(options(args, 1)).writeAll(new File(args[0]));
+    }
+}
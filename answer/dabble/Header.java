@@ -0,0 +1,386 @@
+/* A Header holds the column names of a table, as suggested on the extensions
+page. A header is shared by a table and its records, so that records don't each
+need their own copy of the column information. A header never changes. Instead,
+adding, dropping or renaming a column creates a new header with the next version
+number, and the old header is linked to it. A record keeps the header its fields
+were laid out with, and finds the latest header through the links. That means a
+schema change doesn't touch any records. A record is only brought up to date
+when it is next changed, or when the table is compacted.
+
+Each column has a permanent id number. A record which is out of date finds a
+column's field by looking the column's id up in its own header. A column which
+didn't exist when the record was laid out gets the column's default value. Any
+problem is assumed to be a bug, so an Error is thrown.
+
+Each column has a type, text or int, with a codec which validates, encodes and
+decodes its fields. A column can also be a reference to the keys of another
+table, i.e. a foreign key, for which the header only records the name of the
+target table. In the first line of a table file, a column appears as its name,
+then a colon and its type unless it is text, then > and the target if it is a
+reference, e.g. Age:int or Owner>people. A text column can also have a full
+text index, which is recorded by the column's id, so that it survives renaming
+and the header only needs to say which columns have one. In a file, such a
+column's name is followed by a tilde, e.g. Notes~.
+
+The one thing which does change is a count of edits made to records in place,
+by Record.set, which is shared by all the versions of a header, so that the
+table can count them among its changes. */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+class Header {
+    private int version, nextId;
+    private String[] names;
+    private String[] defaults;
+    private String[] targets;
+    private Codec[] codecs;
+    private boolean typed;
+    private int[] ids;
+    private BitSet indexed;
+    private int[] positions;
+    private Map<String,Integer> lookup;
+    private volatile Header next;
+    private AtomicLong edits = new AtomicLong();
+
+    // Create the first version of a header, with the given column names.
+    Header(String... names) {
+        if (names == null || names.length == 0) throw new Error("Bad cols");
+        int[] ids = new int[names.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        String[] defaults = new String[names.length];
+        Arrays.fill(defaults, "");
+        String[] targets = new String[names.length];
+        Codec[] codecs = new Codec[names.length];
+        Arrays.fill(codecs, Codec.TEXT);
+        init(0, names, defaults, targets, codecs, ids, new BitSet(),
+            names.length);
+    }
+
+    // Create a header from the first line of a table file.
+    static Header load(String line) {
+        Record specs = new Record(line);
+        String[] columns = new String[specs.width()];
+        for (int c = 0; c < columns.length; c++) columns[c] = specs.get(c);
+        return parse(columns);
+    }
+
+    // Create a header from column specifications, e.g. Age:int. An unknown
+    // type is an error, so it should be checked first with check.
+    static Header parse(String... specs) {
+        String[] columns = new String[specs.length];
+        String[] targets = new String[specs.length];
+        Codec[] codecs = new Codec[specs.length];
+        BitSet indexed = new BitSet();
+        for (int c = 0; c < specs.length; c++) {
+            String spec = specs[c];
+            int arrow = spec.indexOf('>');
+            if (arrow >= 0) {
+                targets[c] = spec.substring(arrow + 1);
+                spec = spec.substring(0, arrow);
+            }
+            if (spec.endsWith("~")) {
+                indexed.set(c);
+                spec = spec.substring(0, spec.length() - 1);
+            }
+            int colon = spec.indexOf(':');
+            codecs[c] = Codec.TEXT;
+            if (colon >= 0) {
+                codecs[c] = Codec.of(spec.substring(colon + 1));
+                if (codecs[c] == null) throw new Error("Unknown type");
+                spec = spec.substring(0, colon);
+            }
+            columns[c] = spec;
+        }
+        Header h = new Header(columns);
+        h.targets = targets;
+        h.setCodecs(codecs);
+        h.indexed = indexed;
+        return h;
+    }
+
+    // Check a column specification, returning null, or the problem.
+    static String check(String spec) {
+        int arrow = spec.indexOf('>');
+        if (arrow >= 0) spec = spec.substring(0, arrow);
+        boolean tilde = spec.endsWith("~");
+        if (tilde) spec = spec.substring(0, spec.length() - 1);
+        int colon = spec.indexOf(':');
+        if (colon == 0 || spec.isEmpty()) return "No column name";
+        if (colon < 0) return null;
+        Codec codec = Codec.of(spec.substring(colon + 1));
+        if (codec == null) return "Unknown type " + spec.substring(colon + 1);
+        if (tilde && codec != Codec.TEXT) return "Only text can be indexed";
+        return null;
+    }
+
+    // Create a new version of a header.
+    private Header(int version, String[] names, String[] defaults,
+        String[] targets, Codec[] codecs, int[] ids, BitSet indexed,
+        int nextId) {
+        init(version, names, defaults, targets, codecs, ids, indexed, nextId);
+    }
+
+    // Check the column names, and build the lookup tables. Ids below nextId
+    // have been used, and are never used again for a different column.
+    private void init(int version, String[] names, String[] defaults,
+        String[] targets, Codec[] codecs, int[] ids, BitSet indexed,
+        int nextId) {
+        this.version = version;
+        this.nextId = nextId;
+        this.names = names.clone();
+        this.defaults = defaults;
+        this.targets = targets;
+        setCodecs(codecs);
+        this.ids = ids;
+        this.indexed = indexed;
+        lookup = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null) throw new Error("Bad col");
+            if (names[i].length() == 0) throw new Error("Bad col");
+            String key = names[i].toLowerCase();
+            if (lookup.containsKey(key)) {
+                throw new Error("Repeated column name");
+            }
+            lookup.put(key, i);
+        }
+        positions = new int[nextId];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < ids.length; i++) positions[ids[i]] = i;
+    }
+
+    // Return the version number, counting from zero.
+    int version() { return version; }
+
+    // Return the number of columns.
+    int width() { return names.length; }
+
+    // Return the name of the given column.
+    String name(int col) { return names[col]; }
+
+    // Return the value of a column for records laid out before it was added.
+    String initial(int col) { return defaults[col]; }
+
+    private void setCodecs(Codec[] codecs) {
+        this.codecs = codecs;
+        typed = false;
+        for (Codec c : codecs) if (c != Codec.TEXT) typed = true;
+    }
+
+    // Return the table which a column refers to, or null.
+    String target(int col) { return targets[col]; }
+
+    // Return the codec for the type of a column.
+    Codec codec(int col) { return codecs[col]; }
+
+    // Check whether a column has a full text index.
+    boolean indexed(int col) { return indexed.get(ids[col]); }
+
+    // Find a field of a record which isn't valid for its column's type, or
+    // return -1. If all the columns are text, nothing needs checking.
+    int invalid(Record r) {
+        if (! typed) return -1;
+        for (int c = 0; c < codecs.length; c++) {
+            if (! codecs[c].valid(r.get(c))) return c;
+        }
+        return -1;
+    }
+
+    // Return the column names as a record.
+    Record names() { return new Record(names); }
+
+    // Return the column names, with their types and targets, as the first
+    // line of a table file.
+    String save() {
+        String[] specs = names.clone();
+        for (int c = 0; c < specs.length; c++) {
+            if (codecs[c] != Codec.TEXT) specs[c] += ":" + codecs[c].save();
+            if (indexed(c)) specs[c] += "~";
+            if (targets[c] != null) specs[c] += ">" + targets[c];
+        }
+        return new Record(specs).save();
+    }
+
+    // Return the index of the column with a given name, not case sensitive,
+    // or -1 if there is none.
+    int find(String name) {
+        if (name == null) return -1;
+        Integer col = lookup.get(name.toLowerCase());
+        return col == null ? -1 : col;
+    }
+
+    // Count an edit made to a record in place.
+    void edited() { edits.incrementAndGet(); }
+
+    // Return the number of edits made to records in place, in all versions.
+    long edits() { return edits.get(); }
+
+    // Check whether this is the latest version.
+    boolean isLatest() { return next == null; }
+
+    // Find the latest version of this header.
+    Header latest() {
+        Header h = this;
+        while (h.next != null) h = h.next;
+        return h;
+    }
+
+    // Find where a column of a later header is in this one, or -1.
+    int position(Header later, int col) {
+        int id = later.ids[col];
+        return id < positions.length ? positions[id] : -1;
+    }
+
+    // Add a column at the given position with a default value for the existing
+    // records, returning the new version.
+    Header add(int col, String name, String initial) {
+        if (col < 1 || col > width()) throw new Error("Bad col");
+        if (initial == null) throw new Error("Null default");
+        int n = width() + 1;
+        String[] ns = new String[n], ds = new String[n], ts = new String[n];
+        Codec[] cs = new Codec[n];
+        int[] is = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = i < col ? i : i - 1;
+            if (i == col) {
+                ns[i] = name; ds[i] = initial; cs[i] = Codec.TEXT;
+                is[i] = nextId;
+            }
+            else {
+                ns[i] = names[j]; ds[i] = defaults[j]; ts[i] = targets[j];
+                cs[i] = codecs[j]; is[i] = ids[j];
+            }
+        }
+        return succeed(
+            new Header(version + 1, ns, ds, ts, cs, is, indexed, nextId + 1));
+    }
+
+    // Drop a column other than the key, returning the new version.
+    Header drop(int col) {
+        if (col < 1 || col >= width()) throw new Error("Bad col");
+        int n = width() - 1;
+        String[] ns = new String[n], ds = new String[n], ts = new String[n];
+        Codec[] cs = new Codec[n];
+        int[] is = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = i < col ? i : i + 1;
+            ns[i] = names[j]; ds[i] = defaults[j]; ts[i] = targets[j];
+            cs[i] = codecs[j]; is[i] = ids[j];
+        }
+        return succeed(
+            new Header(version + 1, ns, ds, ts, cs, is, indexed, nextId));
+    }
+
+    // Rename a column, returning the new version.
+    Header rename(int col, String name) {
+        String[] ns = names.clone();
+        ns[col] = name;
+        return succeed(new Header(
+            version + 1, ns, defaults, targets, codecs, ids, indexed, nextId));
+    }
+
+    // Make a column refer to the keys of a table, or to nothing if the table
+    // is null, returning the new version.
+    Header refer(int col, String table) {
+        String[] ts = targets.clone();
+        ts[col] = table;
+        return succeed(new Header(
+            version + 1, names, defaults, ts, codecs, ids, indexed, nextId));
+    }
+
+    // Change the type of a column, returning the new version. The fields are
+    // stored the same way, so the records aren't affected.
+    Header retype(int col, Codec codec) {
+        Codec[] cs = codecs.clone();
+        cs[col] = codec;
+        return succeed(new Header(
+            version + 1, names, defaults, targets, cs, ids, indexed, nextId));
+    }
+
+    // Give a column a full text index, or remove it, returning the new
+    // version.
+    Header index(int col, boolean on) {
+        BitSet is = (BitSet) indexed.clone();
+        is.set(ids[col], on);
+        return succeed(new Header(
+            version + 1, names, defaults, targets, codecs, ids, is, nextId));
+    }
+
+    // Link this header to its replacement.
+    private Header succeed(Header h) {
+        if (next != null) throw new Error("Header already replaced");
+        h.edits = edits;
+        next = h;
+        return h;
+    }
+
+    private static void testFind() {
+        Header h = new Header("Username", "Surname", "Forenames");
+        assert(h.width() == 3);
+        assert(h.find("surname") == 1);
+        assert(h.find("SURNAME") == 1);
+        assert(h.find("name") == -1);
+        assert(h.find(null) == -1);
+    }
+
+    private static void testVersions() {
+        Header h0 = new Header("Id", "Name");
+        Header h1 = h0.add(1, "Kind", "dog");
+        assert(h0.latest() == h1 && h1.isLatest() && ! h0.isLatest());
+        assert(h1.version() == 1);
+        assert(h1.name(1).equals("Kind") && h1.name(2).equals("Name"));
+        assert(h0.position(h1, 1) == -1);
+        assert(h0.position(h1, 2) == 1);
+        assert(h1.initial(1).equals("dog"));
+        Header h2 = h1.drop(2);
+        assert(h2.width() == 2 && h2.find("Name") == -1);
+        Header h3 = h2.add(2, "Name", "");
+        assert(h0.position(h3, 2) == -1);
+        Header h4 = h3.rename(1, "Type");
+        assert(h4.find("type") == 1 && h4.find("kind") == -1);
+        assert(h1.position(h4, 1) == 1);
+    }
+
+    private static void testTargets() {
+        Header h = new Header("Id", "Name", "Owner").refer(2, "people");
+        assert(h.target(2).equals("people") && h.target(1) == null);
+        assert(h.save().equals("Id, Name, Owner>people"));
+        Header h2 = load(h.save()).drop(1);
+        assert(h2.target(1).equals("people") && h2.name(1).equals("Owner"));
+        assert(h2.names().save().equals("Id, Owner"));
+    }
+
+    private static void testTypes() {
+        assert(check("Age:int") == null && check("Owner:int>people") == null);
+        assert(check("Age:real") != null && check(":int") != null);
+        Header h = parse("Id", "Age:int", "Owner>people");
+        assert(h.codec(1) == Codec.INT && h.codec(2) == Codec.TEXT);
+        assert(h.name(1).equals("Age") && h.target(2).equals("people"));
+        assert(h.save().equals("Id, Age:int, Owner>people"));
+        Record r = new Record("1", "x", "");
+        assert(h.invalid(r) == 1);
+        Header h2 = h.retype(1, Codec.TEXT).add(1, "Name", "");
+        assert(h2.codec(2) == Codec.TEXT && h2.invalid(r) == -1);
+        assert(load(h.save()).save().equals(h.save()));
+    }
+
+    private static void testIndexed() {
+        assert(check("Notes~") == null && check("~") != null);
+        assert(check("Age:int~") != null);
+        Header h = parse("Id", "Notes~", "Kind");
+        assert(h.indexed(1) && ! h.indexed(2));
+        assert(h.save().equals("Id, Notes~, Kind"));
+        Header h2 = h.add(1, "Name", "").rename(2, "Text").index(3, true);
+        assert(h2.indexed(2) && h2.indexed(3) && ! h2.indexed(1));
+        assert(h2.drop(2).save().equals("Id, Name, Kind~"));
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testFind();
+        testVersions();
+        testTargets();
+        testTypes();
+        testIndexed();
+        System.out.println("Header class OK");
+    }
+}
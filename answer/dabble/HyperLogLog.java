@@ -0,0 +1,67 @@
+/* A HyperLogLog estimates how many different strings it has been given, in a
+small fixed amount of memory. Each string's hash picks one of a number of
+registers, which keeps the longest run of leading zeros seen in the rest of
+the hashes sent to it. With 2048 registers, the estimate is usually within
+a few percent of the true count. Small counts, where many registers are still
+empty, are estimated from the number of empty registers instead. */
+
+class HyperLogLog {
+    private static final int BITS = 11, SIZE = 1 << BITS;
+    private byte[] registers = new byte[SIZE];
+
+    void add(String s) {
+        long h = mix(s.hashCode() * 0x9e3779b97f4a7c15L + s.length());
+        int r = (int) (h >>> (64 - BITS));
+        int zeros = Long.numberOfLeadingZeros(h << BITS | 1L << (BITS - 1));
+        registers[r] = (byte) Math.max(registers[r], zeros + 1);
+    }
+
+    // Estimate the number of different strings added.
+    long estimate() {
+        double sum = 0;
+        int empty = 0;
+        for (byte b : registers) {
+            sum += 1.0 / (1L << b);
+            if (b == 0) empty++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / SIZE);
+        double e = alpha * SIZE * SIZE / sum;
+        if (e <= 2.5 * SIZE && empty > 0) {
+            e = SIZE * Math.log((double) SIZE / empty);
+        }
+        return Math.round(e);
+    }
+
+    // Spread the bits of a hash code (the finalizer from MurmurHash3).
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Check that an estimate is within a fraction of the true count.
+    private static void check(int n, double within) {
+        HyperLogLog h = new HyperLogLog();
+        for (int i = 0; i < n; i++) {
+            h.add("k" + i);
+            h.add("k" + i);
+        }
+        assert(Math.abs(h.estimate() - n) <= within * n + 1);
+    }
+
+    private static void testEstimates() {
+        assert(new HyperLogLog().estimate() == 0);
+        check(1, 0);
+        check(100, 0.05);
+        check(5000, 0.05);
+        check(200000, 0.05);
+    }
+
+    public static void main(String[] args) {
+        testEstimates();
+        System.out.println("HyperLogLog class OK");
+    }
+}
@@ -0,0 +1,198 @@
+/* A Join combines two tables, producing a row for each pair of records which
+have equal values in the joined columns. Values are matched in a
+case-insensitive way, like keys, and blank fields never match. If one of the
+columns is the key of its table, the table's own key map is used, and the other
+table is streamed past it. Otherwise a hash table is built on the smaller table,
+and the larger one is streamed. Rows are passed on as they are produced, so a
+large join is never held in memory. The method can be chosen instead, e.g. by
+the cost model, in which case the order of the rows may differ. */
+import java.util.*;
+import java.util.function.*;
+
+class Join {
+    // Ways of carrying out a join: stream the left table past the right one's
+    // key map, or the other way round, or build a hash table on the left or
+    // right table and stream the other one past it.
+    enum Method { PROBE_RIGHT, PROBE_LEFT, HASH_LEFT, HASH_RIGHT }
+
+    private Table left, right;
+    private int leftCol, rightCol;
+    private String leftName, rightName;
+    private Method method;
+
+    // Create a join of two named tables on the given columns.
+    Join(String leftName, Table left, int leftCol,
+        String rightName, Table right, int rightCol) {
+        if (left == null || right == null) throw new Error("No table");
+        if (leftCol < 0 || leftCol >= left.width()) throw new Error("Bad col");
+        if (rightCol < 0 || rightCol >= right.width()) {
+            throw new Error("Bad col");
+        }
+        this.leftName = leftName;
+        this.left = left;
+        this.leftCol = leftCol;
+        this.rightName = rightName;
+        this.right = right;
+        this.rightCol = rightCol;
+    }
+
+    // Check whether a method can be used, i.e. the probed column is a key.
+    boolean allows(Method m) {
+        if (m == Method.PROBE_RIGHT) return rightCol == 0;
+        if (m == Method.PROBE_LEFT) return leftCol == 0;
+        return true;
+    }
+
+    // Choose the method, instead of leaving it to run.
+    void method(Method m) {
+        if (! allows(m)) throw new Error("Not a key column");
+        method = m;
+    }
+
+    // Return the column names of the result, qualified by table names.
+    Record header() {
+        String[] names = new String[left.width() + right.width()];
+        for (int c = 0; c < left.width(); c++) {
+            names[c] = leftName + "." + left.column(c);
+        }
+        for (int c = 0; c < right.width(); c++) {
+            names[left.width() + c] = rightName + "." + right.column(c);
+        }
+        return new Record(names);
+    }
+
+    // Find the method used if none has been chosen: probe a key if possible,
+    // otherwise build a hash table on the smaller table.
+    private Method usual() {
+        if (rightCol == 0) return Method.PROBE_RIGHT;
+        if (leftCol == 0) return Method.PROBE_LEFT;
+        if (left.height() <= right.height()) return Method.HASH_LEFT;
+        return Method.HASH_RIGHT;
+    }
+
+    // Produce the joined rows, passing each one to the given action.
+    void run(Consumer<Record> action) {
+        switch (method == null ? usual() : method) {
+            case PROBE_RIGHT: probe(left, leftCol, right, false, action); break;
+            case PROBE_LEFT: probe(right, rightCol, left, true, action); break;
+            case HASH_LEFT:
+                build(left, leftCol, right, rightCol, false, action);
+                break;
+            case HASH_RIGHT:
+                build(right, rightCol, left, leftCol, true, action);
+                break;
+        }
+    }
+
+    // Stream one table past the key map of another.
+    private void probe(Table stream, int col, Table keyed, boolean swap,
+        Consumer<Record> action) {
+        for (Record r : stream) {
+            String value = r.get(col);
+            if (value.length() == 0) continue;
+            Record match = keyed.select(value);
+            if (match != null) action.accept(combine(r, match, swap));
+        }
+    }
+
+    // Build a hash table on one table, and stream the other past it.
+    private void build(Table small, int smallCol, Table large, int largeCol,
+        boolean swap, Consumer<Record> action) {
+        Map<String,List<Record>> hash = new HashMap<>();
+        for (Record r : small) {
+            String value = r.get(smallCol).toLowerCase();
+            if (value.length() == 0) continue;
+            List<Record> list = hash.get(value);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                hash.put(value, list);
+            }
+            list.add(r);
+        }
+        for (Record r : large) {
+            List<Record> matches = hash.get(r.get(largeCol).toLowerCase());
+            if (matches == null) continue;
+            for (Record match : matches) {
+                action.accept(combine(match, r, swap));
+            }
+        }
+    }
+
+    // Put two records side by side, with the left table's record first.
+    private static Record combine(Record a, Record b, boolean swap) {
+        if (swap) { Record t = a; a = b; b = t; }
+        String[] fields = new String[a.width() + b.width()];
+        for (int c = 0; c < a.width(); c++) fields[c] = a.get(c);
+        for (int c = 0; c < b.width(); c++) fields[a.width() + c] = b.get(c);
+        return new Record(fields);
+    }
+
+    private static Table people() {
+        Table t = new Table("username", "name");
+        t.insert(new Record("ab123", "Jo"));
+        t.insert(new Record("ef789", "Sam"));
+        return t;
+    }
+
+    private static Table animals() {
+        Table t = new Table("Id", "Name", "Kind", "Owner");
+        t.insert(new Record("1", "Fido", "dog", "ab123"));
+        t.insert(new Record("2", "Wanda", "fish", "EF789"));
+        t.insert(new Record("3", "Garfield", "cat", "ab123"));
+        t.insert(new Record("4", "Rex", "dog", ""));
+        return t;
+    }
+
+    private static List<Record> collect(Join j) {
+        List<Record> rows = new ArrayList<>();
+        j.run(rows::add);
+        return rows;
+    }
+
+    private static void testKeyJoin() {
+        Join j = new Join("a", animals(), 3, "p", people(), 0);
+        List<Record> rows = collect(j);
+        assert(rows.size() == 3);
+        assert(rows.get(0).get(1).equals("Fido"));
+        assert(rows.get(0).get(5).equals("Jo"));
+        assert(rows.get(1).get(5).equals("Sam"));
+        assert(j.header().get(3).equals("a.Owner"));
+        assert(j.header().get(4).equals("p.username"));
+        j = new Join("p", people(), 0, "a", animals(), 3);
+        rows = collect(j);
+        assert(rows.size() == 3);
+        assert(rows.get(0).get(0).equals("ab123"));
+        assert(rows.get(0).get(3).equals("Fido"));
+    }
+
+    private static void testHashJoin() {
+        Join j = new Join("a", animals(), 2, "b", animals(), 2);
+        List<Record> rows = collect(j);
+        assert(rows.size() == 6);
+        for (Record r : rows) assert(r.get(2).equals(r.get(6)));
+        assert(rows.get(0).get(0).equals("1"));
+    }
+
+    // Check that each method gives the same rows, in some order.
+    private static void testMethods() {
+        Join j = new Join("a", animals(), 3, "p", people(), 0);
+        Set<String> expected = new HashSet<>();
+        for (Record r : collect(j)) expected.add(r.save());
+        for (Method m : Method.values()) {
+            if (! j.allows(m)) continue;
+            j.method(m);
+            Set<String> rows = new HashSet<>();
+            for (Record r : collect(j)) rows.add(r.save());
+            assert(rows.equals(expected));
+        }
+        assert(! j.allows(Method.PROBE_LEFT));
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testKeyJoin();
+        testHashJoin();
+        testMethods();
+        System.out.println("Join class OK");
+    }
+}
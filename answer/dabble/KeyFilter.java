@@ -0,0 +1,101 @@
+/* A KeyFilter is a Bloom filter over the lowercase keys of a table whose
+records aren't in memory, so that looking up a key which isn't there, e.g. to
+check that a new key isn't a duplicate, usually doesn't touch the store. Keys
+can't be taken out of a Bloom filter, so deleted keys are only counted. Once
+more keys have been added than the filter was sized for, or too many have been
+deleted, the filter is full, and should be rebuilt from the table's keys.
+
+The filter is saved in a file next to the table's when the table is saved, and
+the file is deleted when it is read back in. So if the database isn't closed
+cleanly, there is no file, and the filter is rebuilt, rather than missing keys
+added since it was saved. */
+import java.io.*;
+
+class KeyFilter {
+    private Bloom bloom;
+    private int capacity, added, deleted;
+
+    // Create an empty filter with room for the given number of keys.
+    KeyFilter(int capacity) {
+        this.capacity = Math.max(1024, capacity);
+        bloom = new Bloom(this.capacity);
+    }
+
+    private KeyFilter(Bloom bloom, int capacity, int added, int deleted) {
+        this.bloom = bloom;
+        this.capacity = capacity;
+        this.added = added;
+        this.deleted = deleted;
+    }
+
+    void add(String key) {
+        bloom.add(key);
+        added++;
+    }
+
+    void delete(String key) { deleted++; }
+
+    // Check whether a key might be present.
+    boolean mightContain(String key) { return bloom.mightContain(key); }
+
+    // Check whether the filter should be rebuilt.
+    boolean full() {
+        return added > capacity || deleted > capacity / 2;
+    }
+
+    // Save the filter to a file.
+    void save(File file) {
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(capacity);
+            out.writeInt(added);
+            out.writeInt(deleted);
+            bloom.write(out);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Read a filter from a file, and delete the file, or return null if there
+    // isn't one.
+    static KeyFilter load(File file) {
+        if (! file.exists()) return null;
+        KeyFilter f;
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+            int capacity = in.readInt(), added = in.readInt();
+            int deleted = in.readInt();
+            f = new KeyFilter(Bloom.read(in), capacity, added, deleted);
+        }
+        catch (IOException e) { throw new Error(e); }
+        file.delete();
+        return f;
+    }
+
+    private static void testFull() {
+        KeyFilter f = new KeyFilter(10);
+        for (int i = 0; i < 1024; i++) f.add("k" + i);
+        assert(! f.full() && f.mightContain("k7"));
+        f.add("x");
+        assert(f.full());
+        f = new KeyFilter(2000);
+        for (int i = 0; i < 1001; i++) f.delete("k" + i);
+        assert(f.full());
+    }
+
+    private static void testSaveLoad() throws IOException {
+        File file = File.createTempFile("keys", ".bloom");
+        KeyFilter f = new KeyFilter(100);
+        f.add("fido");
+        f.save(file);
+        KeyFilter g = load(file);
+        assert(g.mightContain("fido") && g.added == 1);
+        assert(! file.exists() && load(file) == null);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testFull();
+        testSaveLoad();
+        System.out.println("KeyFilter class OK");
+    }
+}
@@ -0,0 +1,160 @@
+/* The LoadTest program replays a random mix of select, insert, update and
+delete commands against one table of a database folder, through Dabble's
+command interpreter, and reports the throughput and the latency percentiles of
+each kind of command. A folder can be made with the Generator program, e.g.
+
+    java Generator big rows=100000
+    java LoadTest big table=t0 ops=200000 mix=1:40:40:19
+
+The mix gives the relative numbers of select, insert, update and delete
+commands. The store option, memory, disk, btree or lsm, says where the table's
+records are kept during the test. Other options are passed to a Generator,
+which provides the fields of new rows, so that they are similar to the existing
+rows. The output of the commands is thrown away, and nothing is saved, though a
+table on disk writes changes to its file as it goes. The results are printed in
+table file format. Run it without the -ea option. */
+import java.util.*;
+import java.io.*;
+
+class LoadTest {
+    private static final String[] KINDS = {
+        "select", "insert", "update", "delete" };
+
+    private Dabble dabble;
+    private String table;
+    private int width;
+    private Generator generator;
+    private List<String> keys;
+    private int[] mix;
+    private Random random;
+    private int next;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Use: java LoadTest folder [name=value]...");
+            System.out.println(
+                "Options: table ops mix store, and Generator options");
+            return;
+        }
+        Map<String,String> options = Generator.options(args, 1);
+        String table = options.getOrDefault("table", "t0");
+        int ops = Integer.parseInt(options.getOrDefault("ops", "100000"));
+        String mix = options.getOrDefault("mix", "1:40:40:19");
+        options.remove("table");
+        options.remove("ops");
+        options.remove("mix");
+        LoadTest test = new LoadTest(new File(args[0]), table, mix, options);
+        test.run(ops);
+    }
+
+    // Load the database, and find the keys of the table.
+    LoadTest(File folder, String table, String mix,
+        Map<String,String> options) {
+        Database db = new Database(folder);
+        Table t = db.getTable(table);
+        if (t == null) throw new Error("No table " + table);
+        String store = options.remove("store");
+        if (store != null) db.store(table, store);
+        dabble = new Dabble(db);
+        this.table = table;
+        width = t.width();
+        options.put("width", "" + width);
+        generator = new Generator(options);
+        keys = new ArrayList<>();
+        for (Record r : t) keys.add(r.get(0));
+        String[] parts = mix.split(":");
+        if (parts.length != KINDS.length) throw new Error("Bad mix " + mix);
+        this.mix = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            this.mix[i] = Integer.parseInt(parts[i]);
+        }
+        random = new Random(1);
+    }
+
+    // Choose the next kind of command, from the mix.
+    private int choose() {
+        int total = 0;
+        for (int m : mix) total += m;
+        int n = random.nextInt(total);
+        for (int i = 0; i < mix.length; i++) {
+            if (n < mix[i]) return i;
+            n -= mix[i];
+        }
+        throw new Error("Bad mix");
+    }
+
+    // Make a command of the given kind. An update or delete uses an existing
+    // key, and an insert uses a new one.
+    private String command(int kind) {
+        if (kind == 0) return "select " + table;
+        if (kind == 3) {
+            int i = random.nextInt(keys.size());
+            String key = keys.get(i);
+            keys.set(i, keys.get(keys.size() - 1));
+            keys.remove(keys.size() - 1);
+            return "delete " + table + " " + key;
+        }
+        String key;
+        if (kind == 1) {
+            key = "load" + next++;
+            keys.add(key);
+        }
+        else key = keys.get(random.nextInt(keys.size()));
+        StringBuilder b = new StringBuilder(KINDS[kind]);
+        b.append(' ').append(table).append(' ').append(key);
+        for (int c = 1; c < width; c++) {
+            b.append(' ').append(generator.field().replaceAll("[ \n]", "_"));
+        }
+        return b.toString();
+    }
+
+    // Run the given number of commands, then print the results.
+    void run(int ops) {
+        long[][] times = new long[KINDS.length][ops];
+        int[] counts = new int[KINDS.length];
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < ops; i++) {
+                int kind = choose();
+                if (keys.isEmpty() && kind > 1) kind = 1;
+                String line = command(kind);
+                long t0 = System.nanoTime();
+                dabble.execute(line);
+                times[kind][counts[kind]++] = System.nanoTime() - t0;
+            }
+        }
+        finally { System.setOut(out); }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        out.println(new Record("command", "count", "per second", "p50", "p90",
+            "p99", "p999", "max").save());
+        long[] all = new long[ops];
+        int n = 0;
+        for (int k = 0; k < KINDS.length; k++) {
+            long[] ts = Arrays.copyOf(times[k], counts[k]);
+            System.arraycopy(ts, 0, all, n, ts.length);
+            n += ts.length;
+            out.println(report(KINDS[k], ts, seconds));
+        }
+        out.println(report("all", all, seconds));
+    }
+
+    // Summarise the latencies of one kind of command, in microseconds.
+    private static String report(String name, long[] ts, double seconds) {
+        Arrays.sort(ts);
+        String[] fields = { name, "" + ts.length,
+            String.format(Locale.ROOT, "%.0f", ts.length / seconds),
+            percentile(ts, 0.5), percentile(ts, 0.9), percentile(ts, 0.99),
+            percentile(ts, 0.999), percentile(ts, 1) };
+        return new Record(fields).save();
+    }
+
+    // Find a percentile of sorted nanosecond times, in microseconds.
+    private static String percentile(long[] ts, double p) {
+        if (ts.length == 0) return "";
+        int i = (int) Math.ceil(p * ts.length) - 1;
+        i = Math.max(0, Math.min(ts.length - 1, i));
+        return String.format(Locale.ROOT, "%.1f", ts[i] / 1000.0);
+    }
+}
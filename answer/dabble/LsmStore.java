@@ -0,0 +1,810 @@
+/* An LsmStore keeps a table as a log-structured merge tree, for tables which
+are mostly written. It uses a folder with the extension .lsm. Changes go into a
+memtable, ordered like a memory table, and are appended to a log file, so that
+they survive a restart. When the memtable is full, it is written out in one
+sequential pass as an immutable sorted run, and the log is cleared. A deletion
+is recorded as a tombstone. A lookup tries the memtable, then the runs from
+newest to oldest, skipping any run whose Bloom filter rules the key out, and
+reading at most INTERVAL entries from a run which might have it, found through
+a sparse index. Runs are grouped into tiers by size, each tier holding runs
+FANIN times bigger than the one before. When the newest tier has FANIN runs, a
+background thread merges them into one run of the next tier, dropping older
+versions, and tombstones too if the oldest run is included, and the merged run
+replaces them at the next change. Each record is rewritten about once per tier,
+so the writes stay sequential and bounded. The manifest file lists the runs,
+newest first, after the column names and the number of records in the runs. A
+change of columns, other than renaming, merges everything into one run in the
+new layout. */
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+class LsmStore implements Store {
+    static final int INTERVAL = 32, FANIN = 4;
+    static int memtableSize = Integer.getInteger("dabble.memtable", 10000);
+
+    private File folder;
+    private Header header;
+    private TreeMap<String,Entry> memtable = new TreeMap<>();
+    private List<Run> runs = new ArrayList<>();
+    private int size, runSize, nextRun;
+    private FileOutputStream logFile;
+    private PrintWriter log;
+    private Thread compactor;
+    private List<Run> merging;
+    private volatile Run merged;
+
+    // A key with its record line, and its record if it is in the memtable, or
+    // neither for a tombstone.
+    private static class Entry {
+        String key, line;
+        Record record;
+
+        Entry(String key, String line, Record record) {
+            this.key = key;
+            this.line = line;
+            this.record = record;
+        }
+
+        boolean deleted() { return line == null && record == null; }
+    }
+
+    // Create a new, empty store in the given folder.
+    static LsmStore create(File folder, Header h) {
+        folder.mkdirs();
+        LsmStore s = new LsmStore(folder);
+        s.header = h;
+        s.writeManifest();
+        s.resetLog();
+        return s;
+    }
+
+    // Open a store, replaying its log into the memtable, which is then written
+    // out as a run.
+    static LsmStore open(File folder) {
+        LsmStore s = new LsmStore(folder);
+        List<String> lines = s.read(new File(folder, "manifest.txt"));
+        s.header = Header.load(lines.get(0));
+        Record counts = new Record(lines.get(1));
+        s.size = s.runSize = Integer.parseInt(counts.get(0));
+        s.nextRun = Integer.parseInt(counts.get(1));
+        for (String name : lines.subList(2, lines.size())) {
+            s.runs.add(new Run(new File(folder, name)));
+        }
+        File log = new File(folder, "log.txt");
+        if (log.exists()) {
+            for (String line : s.lines(log)) {
+                Record all = new Record(line);
+                if (all.get(0).equals("-")) {
+                    s.change(all.get(1).toLowerCase(), null, null, false);
+                    continue;
+                }
+                String[] fields = new String[all.width() - 1];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = all.get(i + 1);
+                }
+                Record r = new Record(fields);
+                r.attach(s.header);
+                String key = fields[0].toLowerCase();
+                s.change(key, r, line.substring(3), false);
+            }
+        }
+        s.flushMemtable();
+        s.resetLog();
+        return s;
+    }
+
+    private LsmStore(File folder) { this.folder = folder; }
+
+    // Read the lines of the log, leaving out a last line which was only
+    // partly written.
+    private List<String> lines(File file) {
+        String text;
+        try { text = Files.readString(file.toPath()); }
+        catch (IOException e) { throw new Error(e); }
+        List<String> lines = new ArrayList<>(List.of(text.split("\n", -1)));
+        lines.remove(lines.size() - 1);
+        return lines;
+    }
+
+    private List<String> read(File file) {
+        try { return Files.readAllLines(file.toPath()); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Return the header of the table.
+    Header header() { return header; }
+
+    public Record get(String key) {
+        Entry m = memtable.get(key);
+        if (m != null) return m.record;
+        for (Run run : runs) {
+            Entry e = run.find(key);
+            if (e != null) return e.deleted() ? null : decode(e.line);
+        }
+        return null;
+    }
+
+    private Record decode(String line) {
+        return new Record(header, line);
+    }
+
+    public Record put(String key, Record r) {
+        return change(key, r, r.save(), true);
+    }
+
+    // Insert or replace a record without reading the store. The key is only
+    // counted as new if neither the memtable nor the runs' Bloom filters have
+    // it, so the number of records is an estimate, which is low by about the
+    // false positive rate, or by the keys deleted in runs and written again. It
+    // becomes exact again whenever everything is merged into one run.
+    public void write(String key, Record r) {
+        install(false);
+        Entry m = memtable.get(key);
+        boolean added = m != null ? m.deleted() : ! inRuns(key);
+        if (added) size++;
+        record(key, r, r.save(), true);
+    }
+
+    // Check whether any run might have a key, without reading the runs.
+    private boolean inRuns(String key) {
+        for (Run run : runs) if (run.bloom.mightContain(key)) return true;
+        return false;
+    }
+
+    public Record remove(String key) {
+        return change(key, null, null, true);
+    }
+
+    // Make a change, keeping count of the records, and return the record it
+    // replaces, which has to be found first.
+    private Record change(String key, Record r, String line, boolean logged) {
+        install(false);
+        Record old = get(key);
+        if (r == null && old == null) return null;
+        if (old == null) size++;
+        if (r == null) size--;
+        record(key, r, line, logged);
+        return old;
+    }
+
+    // Put a change in the memtable, and in the log unless it is being
+    // replayed. The record's line is kept, to be written out in a run.
+    private void record(String key, Record r, String line, boolean logged) {
+        if (logged && r != null) log.println("+, " + line);
+        if (logged && r == null) log.println(new Record("-", key).save());
+        memtable.put(key, new Entry(key, line, r));
+        if (memtable.size() >= memtableSize) flushMemtable();
+    }
+
+    // Write the memtable out as the newest run, and start a compaction if
+    // there are enough runs. Tombstones are only needed if there are older
+    // runs.
+    private void flushMemtable() {
+        if (memtable.isEmpty()) return;
+        Iterator<Entry> entries = memtable.values().iterator();
+        boolean only = runs.isEmpty();
+        if (only) entries = live(entries);
+        runs.add(0, Run.write(file(nextRun++), entries, memtable.size()));
+        if (only) size = runs.get(0).count;
+        memtable = new TreeMap<>();
+        runSize = size;
+        writeManifest();
+        resetLog();
+        if (compactor == null) compact();
+    }
+
+    private File file(int run) {
+        return new File(folder, "run" + run + ".dat");
+    }
+
+    // Find the tier of a run: 0 for about the size of a memtable, 1 for FANIN
+    // times that, and so on.
+    private static int tier(Run run) {
+        int t = 0;
+        for (long n = run.count / memtableSize; n >= FANIN; n /= FANIN) t++;
+        return t;
+    }
+
+    // Merge the newest runs in the background, if there are FANIN of them in
+    // the newest tier. Otherwise, try the newest runs up to the next tier, and
+    // so on, which catches runs that stay in the same tier when merged,
+    // because of replaced or deleted records.
+    private void compact() {
+        int n = 0;
+        for (int t = 0; n < FANIN && n < runs.size(); t++) {
+            while (n < runs.size() && tier(runs.get(n)) <= t) n++;
+        }
+        if (n < FANIN) return;
+        merging = new ArrayList<>(runs.subList(0, n));
+        boolean oldest = n == runs.size();
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        int count = 0;
+        for (Run run : merging) {
+            sources.add(run.entries());
+            count += run.count;
+        }
+        File file = file(nextRun++);
+        int expected = count;
+        compactor = new Thread(() -> {
+            Iterator<Entry> entries = merge(sources);
+            if (oldest) entries = live(entries);
+            merged = Run.write(file, entries, expected);
+        }, "compaction");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    // Put the result of a finished compaction in place of the runs it merged,
+    // waiting for it if necessary. If the compaction failed, the runs stay.
+    private void install(boolean wait) {
+        if (compactor == null) return;
+        if (wait) {
+            try { compactor.join(); }
+            catch (InterruptedException e) { throw new Error(e); }
+        }
+        if (compactor.isAlive()) return;
+        compactor = null;
+        if (merged == null) return;
+        int at = runs.indexOf(merging.get(0));
+        runs.removeAll(merging);
+        runs.add(at, merged);
+        merged = null;
+        writeManifest();
+        for (Run run : merging) run.delete();
+        merging = null;
+        compact();
+    }
+
+    // Write the manifest to a new file, then replace the old one with it.
+    private void writeManifest() {
+        File temp = new File(folder, "manifest.new");
+        try {
+            PrintWriter out = new PrintWriter(temp, "utf-8");
+            out.println(header.save());
+            out.println(new Record("" + runSize, "" + nextRun).save());
+            for (Run run : runs) out.println(run.file.getName());
+            out.close();
+            Files.move(temp.toPath(), new File(folder, "manifest.txt").toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Start a new, empty log.
+    private void resetLog() {
+        if (log != null) log.close();
+        try {
+            logFile = new FileOutputStream(new File(folder, "log.txt"));
+            log = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(logFile, StandardCharsets.UTF_8)));
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    public int size() { return size; }
+
+    public long memory() {
+        long m = 0;
+        for (Entry e : memtable.values()) {
+            if (e.record == null) continue;
+            m += e.record.memory() + e.line.length() + 80;
+        }
+        for (Run run : runs) m += run.memory();
+        return m;
+    }
+
+    // Merge everything into one run in the new layout, unless the columns are
+    // only renamed.
+    public void columns(Header h) {
+        boolean same = h.width() == header.width();
+        for (int c = 0; same && c < h.width(); c++) {
+            same = header.position(h, c) == c;
+        }
+        if (! same) {
+            install(true);
+            List<Iterator<Entry>> sources = new ArrayList<>();
+            sources.add(memtable.values().iterator());
+            for (Run run : runs) sources.add(run.entries());
+            Iterator<Entry> all = live(merge(sources));
+            Iterator<Entry> recoded = new Iterator<Entry>() {
+                public boolean hasNext() { return all.hasNext(); }
+
+                public Entry next() {
+                    Entry e = all.next();
+                    Record r = e.record != null ? e.record : decode(e.line);
+                    return new Entry(e.key, r.save(), null);
+                }
+            };
+            Run run = Run.write(file(nextRun++), recoded, size);
+            List<Run> old = runs;
+            runs = new ArrayList<>(List.of(run));
+            memtable = new TreeMap<>();
+            runSize = size = run.count;
+            header = h;
+            writeManifest();
+            resetLog();
+            for (Run r : old) r.delete();
+            return;
+        }
+        header = h;
+        writeManifest();
+    }
+
+    // Force the log out to disk. The memtable is not written out as a run.
+    public void flush() {
+        install(false);
+        log.flush();
+        try { logFile.getFD().sync(); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Finish any compaction first, so no merged run is left behind.
+    public void close() {
+        while (compactor != null) install(true);
+        log.close();
+        for (Run run : runs) run.close();
+    }
+
+    public String kind() { return "lsm"; }
+
+    // Iterate through the memtable merged with the runs.
+    public Iterator<Record> iterator() {
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        sources.add(memtable.values().iterator());
+        for (Run run : runs) sources.add(run.entries());
+        Iterator<Entry> all = live(merge(sources));
+        return new Iterator<Record>() {
+            public boolean hasNext() { return all.hasNext(); }
+
+            public Record next() {
+                Entry e = all.next();
+                return e.record != null ? e.record : decode(e.line);
+            }
+        };
+    }
+
+    // Merge a batch from the memtable and the runs, closing the run files.
+    public List<Record> scan(String from, int n) {
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        sources.add(memtable.tailMap(from).values().iterator());
+        for (Run run : runs) sources.add(run.entries(from));
+        Iterator<Entry> all = live(merge(sources));
+        List<Record> batch = new ArrayList<>();
+        while (batch.size() < n && all.hasNext()) {
+            Entry e = all.next();
+            batch.add(e.record != null ? e.record : decode(e.line));
+        }
+        for (int i = 1; i < sources.size(); i++) {
+            ((Run.Entries) sources.get(i)).close();
+        }
+        return batch;
+    }
+
+    // Merge sources of entries, each in key order, with the newest source
+    // first. Only the newest entry for each key is kept, which may be a
+    // tombstone.
+    private static Iterator<Entry> merge(List<Iterator<Entry>> sources) {
+        PriorityQueue<Source> queue = new PriorityQueue<>();
+        for (int i = 0; i < sources.size(); i++) {
+            new Source(sources.get(i), i).advance(queue);
+        }
+        return new Iterator<Entry>() {
+            public boolean hasNext() { return ! queue.isEmpty(); }
+
+            public Entry next() {
+                if (queue.isEmpty()) throw new NoSuchElementException();
+                Source s = queue.poll();
+                Entry e = s.head;
+                s.advance(queue);
+                while (! queue.isEmpty() &&
+                    queue.peek().head.key.equals(e.key)) {
+                    queue.poll().advance(queue);
+                }
+                return e;
+            }
+        };
+    }
+
+    // One of the sources being merged, with its next entry.
+    private static class Source implements Comparable<Source> {
+        Iterator<Entry> entries;
+        Entry head;
+        int age;
+
+        Source(Iterator<Entry> entries, int age) {
+            this.entries = entries;
+            this.age = age;
+        }
+
+        // Move to the next entry, going back in the queue unless there are
+        // none left.
+        void advance(PriorityQueue<Source> queue) {
+            if (! entries.hasNext()) return;
+            head = entries.next();
+            queue.add(this);
+        }
+
+        public int compareTo(Source other) {
+            int c = head.key.compareTo(other.head.key);
+            return c != 0 ? c : Integer.compare(age, other.age);
+        }
+    }
+
+    // Leave out the tombstones.
+    private static Iterator<Entry> live(Iterator<Entry> all) {
+        return new Iterator<Entry>() {
+            private Entry next;
+
+            public boolean hasNext() {
+                while (next == null && all.hasNext()) {
+                    Entry e = all.next();
+                    if (! e.deleted()) next = e;
+                }
+                return next != null;
+            }
+
+            public Entry next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                Entry e = next;
+                next = null;
+                return e;
+            }
+        };
+    }
+
+    // An immutable sorted run. The file holds the entries, then the number of
+    // entries, the sparse index, the Bloom filter, and finally the position of
+    // the number of entries.
+    private static class Run {
+        File file;
+        FileChannel channel;
+        String[] keys;
+        long[] offsets;
+        Bloom bloom;
+        int count;
+
+        // Open a run, reading its index and filter.
+        Run(File file) {
+            this.file = file;
+            try {
+                channel = FileChannel.open(file.toPath());
+                ByteBuffer b = ByteBuffer.allocate(8);
+                while (b.hasRemaining()) {
+                    channel.read(b, channel.size() - 8 + b.position());
+                }
+                DataInputStream in = input(b.getLong(0));
+                count = in.readInt();
+                keys = new String[in.readInt()];
+                offsets = new long[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = readString(in);
+                    offsets[i] = in.readLong();
+                }
+                bloom = Bloom.read(in);
+            }
+            catch (IOException e) { throw new Error(e); }
+        }
+
+        private DataInputStream input(long position) throws IOException {
+            channel.position(position);
+            return new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel), 4096));
+        }
+
+        // Write entries, which must be in key order, as a new run, and open it.
+        static Run write(File file, Iterator<Entry> entries, int expected) {
+            List<String> ks = new ArrayList<>();
+            List<Long> os = new ArrayList<>();
+            Bloom bloom = new Bloom(expected);
+            try {
+                FileOutputStream stream = new FileOutputStream(file);
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(stream, 1 << 16));
+                long position = 0;
+                int count = 0;
+                while (entries.hasNext()) {
+                    Entry e = entries.next();
+                    if (count % INTERVAL == 0) {
+                        ks.add(e.key);
+                        os.add(position);
+                    }
+                    bloom.add(e.key);
+                    position += writeEntry(out, e);
+                    count++;
+                }
+                out.writeInt(count);
+                out.writeInt(ks.size());
+                for (int i = 0; i < ks.size(); i++) {
+                    writeString(out, ks.get(i));
+                    out.writeLong(os.get(i));
+                }
+                bloom.write(out);
+                out.writeLong(position);
+                out.flush();
+                stream.getFD().sync();
+                out.close();
+            }
+            catch (IOException e) { throw new Error(e); }
+            return new Run(file);
+        }
+
+        // Find the last indexed key which is not after the given key, or -1.
+        private int floor(String key) {
+            int lo = 0, hi = keys.length - 1, i = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) <= 0) {
+                    i = mid;
+                    lo = mid + 1;
+                }
+                else hi = mid - 1;
+            }
+            return i;
+        }
+
+        // Find a key, returning its entry, or null if the run doesn't have it.
+        Entry find(String key) {
+            if (! bloom.mightContain(key)) return null;
+            int i = floor(key);
+            if (i < 0) return null;
+            try {
+                DataInputStream in = input(offsets[i]);
+                int left = Math.min(INTERVAL, count - i * INTERVAL);
+                for (int n = 0; n < left; n++) {
+                    Entry e = readEntry(in);
+                    int c = e.key.compareTo(key);
+                    if (c > 0) return null;
+                    if (c == 0) return e;
+                }
+            }
+            catch (IOException e) { throw new Error(e); }
+            return null;
+        }
+
+        // Read all the entries in order, through a separate stream.
+        Entries entries() { return entries(""); }
+
+        // Read the entries in order, from the given key or the first one
+        // after it, starting at the nearest indexed key.
+        Entries entries(String from) {
+            int i = Math.max(0, floor(from));
+            long position = keys.length == 0 ? 0 : offsets[i];
+            int left = count - i * INTERVAL;
+            try { return new Entries(file, position, left, from); }
+            catch (IOException e) { throw new Error(e); }
+        }
+
+        // The entries of a run read through a stream, which is closed at the
+        // end, or by calling close if the reader stops early.
+        static class Entries implements Iterator<Entry>, Closeable {
+            private DataInputStream in;
+            private int left;
+            private String from;
+            private Entry next;
+
+            Entries(File file, long position, int left, String from)
+                throws IOException {
+                FileInputStream stream = new FileInputStream(file);
+                stream.getChannel().position(position);
+                in = new DataInputStream(
+                    new BufferedInputStream(stream, 1 << 16));
+                this.left = left;
+                this.from = from;
+            }
+
+            public boolean hasNext() {
+                try {
+                    while (next == null && left > 0) {
+                        left--;
+                        Entry e = readEntry(in);
+                        if (e.key.compareTo(from) >= 0) next = e;
+                    }
+                }
+                catch (IOException e) { throw new Error(e); }
+                if (next == null) close();
+                return next != null;
+            }
+
+            public Entry next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                Entry e = next;
+                next = null;
+                return e;
+            }
+
+            public void close() {
+                try { in.close(); }
+                catch (IOException e) { throw new Error(e); }
+            }
+        }
+
+        long memory() {
+            long m = bloom.memory();
+            for (String k : keys) m += 64 + k.length();
+            return m;
+        }
+
+        void close() {
+            try { channel.close(); }
+            catch (IOException e) { throw new Error(e); }
+        }
+
+        void delete() {
+            close();
+            file.delete();
+        }
+    }
+
+    // Write an entry, returning the number of bytes written: the key, whether
+    // there is a record, and the record line.
+    private static int writeEntry(DataOutputStream out, Entry e)
+        throws IOException {
+        int n = writeString(out, e.key) + 1;
+        out.writeBoolean(! e.deleted());
+        if (e.deleted()) return n;
+        String line = e.line != null ? e.line : e.record.save();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return n + 4 + bytes.length;
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        String key = readString(in);
+        if (! in.readBoolean()) return new Entry(key, null, null);
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new Entry(key, new String(bytes, StandardCharsets.UTF_8), null);
+    }
+
+    private static int writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 65535) throw new Error("Key too long");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 2 + bytes.length;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Make an empty folder for testing.
+    private static File folder() throws IOException {
+        return Files.createTempDirectory("lsm").toFile();
+    }
+
+    private static void delete(File folder) {
+        for (File f : folder.listFiles()) f.delete();
+        folder.delete();
+    }
+
+    private static Record record(Header h, String... fields) {
+        Record r = new Record(fields);
+        r.attach(h);
+        return r;
+    }
+
+    private static void testBasics() throws IOException {
+        File f = folder();
+        Header h = new Header("Id", "Name");
+        LsmStore s = create(f, h);
+        assert(s.put("a", record(h, "A", "Ann")) == null);
+        assert(s.get("a").get(1).equals("Ann"));
+        assert(s.put("a", record(h, "a", "Al")).get(1).equals("Ann"));
+        assert(s.remove("b") == null);
+        assert(s.size() == 1);
+        s.put("b", record(h, "b", "Bob, the 2nd"));
+        assert(s.remove("a").get(1).equals("Al"));
+        s.flush();
+        s.close();
+        s = open(f);
+        assert(s.size() == 1);
+        assert(s.get("a") == null);
+        assert(s.get("b").get(1).equals("Bob, the 2nd"));
+        s.close();
+        delete(f);
+    }
+
+    // Check that writing without reading keeps count of new keys.
+    private static void testWrite() throws IOException {
+        File f = folder();
+        Header h = new Header("Id", "Name");
+        int saved = memtableSize;
+        memtableSize = 2;
+        LsmStore s = create(f, h);
+        s.write("a", record(h, "a", "Ann"));
+        s.write("a", record(h, "a", "Al"));
+        s.write("b", record(h, "b", "Bob"));
+        assert(s.size() == 2 && s.runs.size() == 1);
+        s.write("a", record(h, "a", "Ada"));
+        s.write("c", record(h, "c", "Cy"));
+        assert(s.size() == 3 && s.get("a").get(1).equals("Ada"));
+        memtableSize = saved;
+        s.close();
+        delete(f);
+    }
+
+    private static void testRuns() throws IOException {
+        File f = folder();
+        Header h = new Header("Id", "Value");
+        int saved = memtableSize;
+        memtableSize = 100;
+        LsmStore s = create(f, h);
+        Random random = new Random(1);
+        TreeMap<String,String> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + random.nextInt(3000);
+            if (i % 3 == 0) {
+                boolean found = s.remove(key) != null;
+                assert(found == expected.containsKey(key));
+                expected.remove(key);
+            }
+            else {
+                s.put(key, record(h, key, "v" + i));
+                expected.put(key, "v" + i);
+            }
+        }
+        assert(s.size() == expected.size());
+        Iterator<String> keys = expected.tailMap("k5").keySet().iterator();
+        List<Record> batch = s.scan("k5", 100);
+        assert(batch.size() == 100);
+        for (Record r : batch) assert(r.get(0).equals(keys.next()));
+        s.flush();
+        s.close();
+        s = open(f);
+        assert(s.size() == expected.size());
+        keys = expected.keySet().iterator();
+        for (Record r : s) {
+            String key = keys.next();
+            assert(r.get(0).equals(key));
+            assert(r.get(1).equals(expected.get(key)));
+        }
+        assert(! keys.hasNext());
+        for (int i = 0; i < 3000; i++) {
+            Record r = s.get("k" + i);
+            String v = expected.get("k" + i);
+            assert(r == null ? v == null : r.get(1).equals(v));
+        }
+        memtableSize = saved;
+        s.close();
+        delete(f);
+    }
+
+    private static void testColumns() throws IOException {
+        File f = folder();
+        Header h = new Header("Id", "Name");
+        LsmStore s = create(f, h);
+        for (int i = 0; i < 100; i++) s.put("" + i, record(h, "" + i, "n" + i));
+        Header h2 = h.rename(1, "Called");
+        s.columns(h2);
+        Header h3 = h2.add(1, "Age", "7");
+        s.columns(h3);
+        s.close();
+        s = open(f);
+        assert(s.header().name(1).equals("Age"));
+        assert(s.header().name(2).equals("Called"));
+        assert(s.get("12").get(1).equals("7"));
+        assert(s.get("12").get(2).equals("n12"));
+        assert(s.size() == 100);
+        s.close();
+        delete(f);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testBasics();
+        testWrite();
+        testRuns();
+        testColumns();
+        System.out.println("LsmStore class OK");
+    }
+}
@@ -0,0 +1,78 @@
+/* A MemoryStore keeps all the records of a table in a TreeMap. The records
+returned are live, so changing one changes the table. It is saved by writing
+the whole table out to its text file. */
+import java.util.*;
+
+class MemoryStore implements Store {
+    private TreeMap<String,Record> records = new TreeMap<>();
+    private long memory;
+
+    public Record get(String key) { return records.get(key); }
+
+    public Record put(String key, Record r) {
+        Record old = records.put(key, r);
+        if (old != null) memory -= old.memory() + 80 + key.length();
+        memory += r.memory() + 80 + key.length();
+        return old;
+    }
+
+    public Record remove(String key) {
+        Record old = records.remove(key);
+        if (old != null) memory -= old.memory() + 80 + key.length();
+        return old;
+    }
+
+    public List<Record> scan(String from, int n) {
+        List<Record> batch = new ArrayList<>();
+        for (Record r : records.tailMap(from, true).values()) {
+            if (batch.size() == n) break;
+            batch.add(r);
+        }
+        return batch;
+    }
+
+    public int size() { return records.size(); }
+
+    // Changes made to records after they are inserted aren't counted.
+    public long memory() { return memory; }
+
+    // The records see the new columns through their header.
+    public void columns(Header h) { }
+
+    public void flush() { }
+
+    public void close() { }
+
+    public String kind() { return "memory"; }
+
+    // A deletion using the iterator deletes the record from the store.
+    public Iterator<Record> iterator() {
+        return records.values().iterator();
+    }
+
+    public Spliterator<Record> spliterator() {
+        return records.values().spliterator();
+    }
+
+    private static void testStore() {
+        MemoryStore s = new MemoryStore();
+        Record a = new Record("A", "x"), b = new Record("b", "y");
+        assert(s.put("b", b) == null);
+        assert(s.put("a", a) == null);
+        assert(s.size() == 2 && s.memory() > 0);
+        assert(s.iterator().next() == a);
+        assert(s.put("a", new Record("a", "z")) == a);
+        assert(s.remove("b") == b);
+        assert(s.remove("b") == null);
+        assert(s.get("a").get(1).equals("z"));
+        assert(s.size() == 1);
+        s.put("c", b);
+        assert(s.scan("b", 5).size() == 1 && s.scan("", 1).get(0) != b);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testStore();
+        System.out.println("MemoryStore class OK");
+    }
+}
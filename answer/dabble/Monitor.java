@@ -0,0 +1,68 @@
+/* A Monitor gives a view of a database's activity, for the stats command and
+for JMX. It reports the timings collected in the database's Stats object, and
+for each table its kind of store, size, approximate memory use, load and save
+times, and the number of key lookups which found or didn't find a record. The
+figures are read without locking, so a view taken while commands run is
+approximate. */
+import java.util.*;
+import java.lang.management.*;
+import javax.management.*;
+
+class Monitor implements MonitorMBean {
+    private Database db;
+
+    Monitor(Database db) { this.db = db; }
+
+    // Register with the platform MBean server, so that tools such as jconsole
+    // can see the figures. Return false if that isn't possible.
+    boolean register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String folder = ObjectName.quote(db.folder().getPath());
+            ObjectName name =
+                new ObjectName("dabble:type=Monitor,folder=" + folder);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            return true;
+        }
+        catch (JMException e) { return false; }
+    }
+
+    // Return the column names of the table summary.
+    static Record tableHeader() {
+        return new Record("table", "store", "rows", "KB", "load ms",
+            "save ms", "hits", "misses");
+    }
+
+    // Summarise the tables, one row each.
+    List<Record> tables() {
+        Stats stats = db.stats();
+        List<Record> rows = new ArrayList<>();
+        for (String name : db) {
+            Table t = db.getTable(name);
+            if (t == null) continue;
+            rows.add(new Record(name, t.kind(), "" + t.height(),
+                "" + t.memory() / 1024, stats.loadTime(name),
+                stats.saveTime(name),
+                "" + t.hits(), "" + t.misses()));
+        }
+        return rows;
+    }
+
+    public String getFolder() { return db.folder().getPath(); }
+
+    public String[] getCommands() { return lines(db.stats().commands()); }
+
+    public String[] getTables() { return lines(tables()); }
+
+    public long getPlanHits() { return db.stats().planHits(); }
+
+    public long getPlanMisses() { return db.stats().planMisses(); }
+
+    // Convert rows to table lines.
+    private static String[] lines(List<Record> rows) {
+        String[] lines = new String[rows.size()];
+        for (int i = 0; i < lines.length; i++) lines[i] = rows.get(i).save();
+        return lines;
+    }
+}
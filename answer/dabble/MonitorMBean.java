@@ -0,0 +1,11 @@
+/* The management interface of a Monitor, as seen through JMX, e.g. in jconsole
+under dabble:type=Monitor. It has to be public for JMX to use it. Each summary
+row is a table line, in the same format as the stats command. */
+
+public interface MonitorMBean {
+    String getFolder();
+    String[] getCommands();
+    String[] getTables();
+    long getPlanHits();
+    long getPlanMisses();
+}
@@ -0,0 +1,139 @@
+/* A Printer displays rows in the same layout as a table: a header line, a
+divider, then one line per row. The static print method makes two passes over
+its rows, to get the column widths exactly right. A Printer object is used to
+stream a result which is only produced once, such as a join. It works out the
+column widths from the header and an initial batch of rows, and after that each
+row is printed as soon as it arrives. A later row with a longer field just
+overflows its column. The time spent formatting and writing lines is reported
+to the current profile, if any. */
+import java.util.*;
+import java.io.*;
+
+class Printer {
+    static final int BATCH = 1000;
+    private PrintStream out;
+    private Record header;
+    private List<Record> batch;
+    private int[] lengths;
+
+    // Start streaming rows with the given header.
+    Printer(PrintStream out, Record header) {
+        this.out = out;
+        this.header = header;
+        batch = new ArrayList<>();
+    }
+
+    // Add a row, holding it back if the column widths are not yet known.
+    void add(Record r) {
+        if (r.width() != header.width()) {
+            throw new Error("Wrong number of fields");
+        }
+        if (lengths != null) {
+            Profile.enter(Profile.Phase.FORMAT);
+            String line = r.display(lengths);
+            Profile.enter(Profile.Phase.OUTPUT);
+            out.println(line);
+            Profile.enter(Profile.Phase.ACCESS);
+        }
+        else {
+            batch.add(r);
+            if (batch.size() >= BATCH) start();
+        }
+    }
+
+    // Finish the output, printing any rows which have been held back.
+    void finish() {
+        if (lengths == null) start();
+    }
+
+    // Fix the column widths from the held back rows, then print them.
+    private void start() {
+        Profile.enter(Profile.Phase.FORMAT);
+        lengths = new int[header.width()];
+        header.checkLengths(lengths);
+        for (Record r : batch) r.checkLengths(lengths);
+        write(out, header, batch, lengths);
+        batch = null;
+        Profile.enter(Profile.Phase.ACCESS);
+    }
+
+    // Print all the rows, with column widths fitted to the longest fields.
+    static void print(PrintStream out, Record header, Iterable<Record> rows) {
+        Profile.enter(Profile.Phase.FORMAT);
+        int[] lengths = new int[header.width()];
+        header.checkLengths(lengths);
+        for (Record r : rows) r.checkLengths(lengths);
+        write(out, header, rows, lengths);
+    }
+
+    // Write out the header, divider and rows, using the given column widths.
+    private static void write(PrintStream out, Record header,
+        Iterable<Record> rows, int[] lengths) {
+        Profile.enter(Profile.Phase.FORMAT);
+        String top = header.display(lengths), line = divider(lengths);
+        Profile.enter(Profile.Phase.OUTPUT);
+        out.println(top);
+        out.println(line);
+        for (Record r : rows) {
+            Profile.enter(Profile.Phase.FORMAT);
+            line = r.display(lengths);
+            Profile.enter(Profile.Phase.OUTPUT);
+            out.println(line);
+        }
+    }
+
+    // Create a divider between the header and the rows.
+    static String divider(int[] lengths) {
+        String[] parts = new String[lengths.length];
+        for (int c = 0; c < lengths.length; c++) {
+            String s = "";
+            for (int i = 0; i < lengths[c]; i++) s = s + "-";
+            parts[c] = s;
+        }
+        return String.join("-+-", parts);
+    }
+
+    // Print to a string, for testing.
+    private static String capture(Record header, List<Record> rows,
+        boolean stream) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        if (stream) {
+            Printer p = new Printer(out, header);
+            for (Record r : rows) p.add(r);
+            p.finish();
+        }
+        else print(out, header, rows);
+        out.close();
+        return bytes.toString();
+    }
+
+    private static void testPrint() {
+        Record header = new Record("Id", "Name");
+        List<Record> rows = List.of(new Record("1", "Fido"));
+        String nl = System.lineSeparator();
+        String expected =
+            "Id | Name" + nl + "---+-----" + nl + "1  | Fido" + nl;
+        assert(capture(header, rows, false).equals(expected));
+        assert(capture(header, rows, true).equals(expected));
+    }
+
+    private static void testEmpty() {
+        Record header = new Record("Id");
+        String nl = System.lineSeparator();
+        assert(capture(header, List.of(), true).equals("Id" + nl + "--" + nl));
+    }
+
+    private static void testDivider() {
+        int[] lengths = {5, 5, 5};
+        assert(divider(lengths).equals("------+-------+------"));
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testPrint();
+        testEmpty();
+        testDivider();
+        System.out.println("Printer class OK");
+    }
+}
@@ -0,0 +1,83 @@
+/* A Profile breaks down the time taken by one command into phases: parsing
+the command line, resolving table and column names, accessing the table,
+formatting rows for display, and writing the output. It also counts the rows
+touched. While a command is being profiled, its profile is the current one for
+the thread, and the classes involved report phase changes through the static
+methods, which do nothing when there is no current profile. */
+import java.util.*;
+
+class Profile {
+    enum Phase { PARSE, RESOLVE, ACCESS, FORMAT, OUTPUT }
+
+    private static final ThreadLocal<Profile> current = new ThreadLocal<>();
+
+    private long[] nanos = new long[Phase.values().length];
+    private Phase phase;
+    private long start, mark, total, rows;
+
+    // Start profiling a command on this thread, in the parse phase.
+    static Profile start() {
+        Profile p = new Profile();
+        p.start = p.mark = System.nanoTime();
+        p.phase = Phase.PARSE;
+        current.set(p);
+        return p;
+    }
+
+    // Move the current profile, if any, into a new phase.
+    static void enter(Phase phase) {
+        Profile p = current.get();
+        if (p == null || p.phase == phase) return;
+        long now = System.nanoTime();
+        p.nanos[p.phase.ordinal()] += now - p.mark;
+        p.mark = now;
+        p.phase = phase;
+    }
+
+    // Add to the rows touched by the current profile, if any.
+    static void rows(long n) {
+        Profile p = current.get();
+        if (p != null) p.rows += n;
+    }
+
+    // Stop profiling, returning the total time in nanoseconds.
+    long finish() {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        total = now - start;
+        current.remove();
+        return total;
+    }
+
+    long total() { return total; }
+
+    long rows() { return rows; }
+
+    // Return the time spent in a phase, in nanoseconds.
+    long nanos(Phase phase) { return nanos[phase.ordinal()]; }
+
+    private static void testPhases() throws InterruptedException {
+        Profile p = Profile.start();
+        Thread.sleep(2);
+        Profile.enter(Phase.ACCESS);
+        Profile.rows(3);
+        Thread.sleep(2);
+        Profile.enter(Phase.OUTPUT);
+        long total = p.finish();
+        assert(p.nanos(Phase.PARSE) >= 2000000);
+        assert(p.nanos(Phase.ACCESS) >= 2000000);
+        assert(p.nanos(Phase.RESOLVE) == 0);
+        long sum = 0;
+        for (Phase phase : Phase.values()) sum += p.nanos(phase);
+        assert(sum == total);
+        assert(p.rows() == 3);
+        Profile.rows(5);
+        assert(p.rows() == 3);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws InterruptedException {
+        testPhases();
+        System.out.println("Profile class OK");
+    }
+}
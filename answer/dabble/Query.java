@@ -0,0 +1,127 @@
+/* A Query describes which rows of a table to fetch, for programs which embed
+the database. It is built up by calling methods in a chain, then run with
+cursor, list or first, e.g.
+
+    List<Row> cats = db.from("animals").where("Kind", "cat")
+        .select("Id", "Name").limit(10).list();
+
+A query can pick one key, or a range or prefix of keys, which only reads the
+records with those keys, otherwise it reads the whole table in key order. The
+where conditions are checked on each record read. Names are checked when the
+query is run, and an unknown table or column is an IllegalArgumentException.
+A query can be run any number of times. The cursor reads records from the
+table in batches, of a size which can be set with fetch. */
+import java.util.*;
+
+public final class Query {
+    private Embedded db;
+    private String table, key, from, to;
+    private boolean ranged;
+    private List<String> columns;
+    private List<String> tests = new ArrayList<>(), values = new ArrayList<>();
+    private long limit = Long.MAX_VALUE;
+    private int fetch = 256;
+
+    Query(Embedded db, String table) {
+        this.db = db;
+        this.table = table;
+    }
+
+    /** Fetch only the row with the given key, if there is one. */
+    public Query key(String key) {
+        this.key = key;
+        return this;
+    }
+
+    /** Fetch rows with keys from one key up to but not including another, or
+    to the end if that is null, ignoring case. */
+    public Query range(String from, String to) {
+        if (from == null) throw new IllegalArgumentException("No start key");
+        this.from = from.toLowerCase();
+        this.to = to == null ? null : to.toLowerCase();
+        ranged = true;
+        return this;
+    }
+
+    /** Fetch rows whose keys start with a prefix, ignoring case. */
+    public Query prefix(String prefix) {
+        String p = prefix.toLowerCase();
+        return range(p, Table.after(p));
+    }
+
+    /** Fetch only rows with the given value in a column. */
+    public Query where(String column, String value) {
+        if (value == null) throw new IllegalArgumentException("Null value");
+        tests.add(column);
+        values.add(value);
+        return this;
+    }
+
+    /** Include only the given columns in the rows, in the given order. */
+    public Query select(String... columns) {
+        this.columns = List.of(columns);
+        return this;
+    }
+
+    /** Fetch at most n rows. */
+    public Query limit(long n) {
+        if (n < 0) throw new IllegalArgumentException("Negative limit");
+        limit = n;
+        return this;
+    }
+
+    /** Read n records from the table at a time, as the cursor needs them. */
+    public Query fetch(int n) {
+        if (n < 1) throw new IllegalArgumentException("Bad fetch size " + n);
+        fetch = n;
+        return this;
+    }
+
+    /** Run the query, returning a cursor which should be closed. */
+    public Cursor cursor() {
+        Table t = db.table(table);
+        Header h = t.schema();
+        int[] cols = columns == null ? all(h.width()) : find(h, columns);
+        int[] ts = find(h, tests);
+        Table.Snapshot s = t.snapshot();
+        Iterator<Record> records;
+        if (key != null) {
+            Record r = s.select(key);
+            records = r == null ? Collections.emptyIterator() :
+                List.of(r).iterator();
+        }
+        else if (ranged) records = s.range(from, to, fetch).iterator();
+        else records = s.range("", null, fetch).iterator();
+        return new Cursor(s, records, h, cols, ts,
+            values.toArray(new String[0]), limit);
+    }
+
+    /** Run the query, returning all the rows. */
+    public List<Row> list() {
+        List<Row> rows = new ArrayList<>();
+        try (Cursor c = cursor()) { while (c.hasNext()) rows.add(c.next()); }
+        return rows;
+    }
+
+    /** Run the query, returning the first row, or null. */
+    public Row first() {
+        try (Cursor c = cursor()) { return c.hasNext() ? c.next() : null; }
+    }
+
+    private static int[] all(int n) {
+        int[] cols = new int[n];
+        for (int i = 0; i < n; i++) cols[i] = i;
+        return cols;
+    }
+
+    private static int[] find(Header h, List<String> names) {
+        int[] cols = new int[names.size()];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = h.find(names.get(i));
+            if (cols[i] < 0) {
+                throw new IllegalArgumentException("No column " + names.get(i));
+            }
+        }
+        return cols;
+    }
+}
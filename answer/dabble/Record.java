@@ -1,12 +1,16 @@
 /* A Record object represents one row from a database table. It consists of one
 or more fields, accessed by column number, starting at zero. Each field is a
-non-null string, with the empty string used for blank fields. Any problem is
-assumed to be a bug, so an Error is thrown. */
+non-null string, with the empty string used for blank fields. Once a record is
+in a table, it shares the table's header, and its fields may be laid out for an
+older version of the header, until the record is next changed. Fields are
+encoded, decoded and aligned by the codecs of the header's columns. Any problem
+is assumed to be a bug, so an Error is thrown. */
 
 import java.util.*;
 
 class Record {
     private String[] fields;
+    private Header header;
 
     // Create a record from a given array of string values. Make a safe copy.
     Record(String... values) {
@@ -16,50 +20,128 @@ class Record {
     }
 
     // Load a record from a line of text, unescaping the escaped characters.
+    // Blank fields at the end of the line are kept.
     Record(String line) {
-        fields = line.split(", ");
+        fields = split(line);
         for (int i = 0; i < fields.length; i++) {
-            String s = fields[i];
-            s = s.replaceAll("%n", "\n");
-            s = s.replaceAll("%c", ",");
-            s = s.replaceAll("%p", "%");
-            fields[i] = s;
+            fields[i] = Codec.unescape(fields[i]);
         }
     }
 
-    // Save a record to a line of text, escaping the problem characters.
+    // Load a record from a line of a table file, decoding each field with its
+    // column's codec, and attach it to the header.
+    Record(Header h, String line) {
+        fields = split(line);
+        if (fields.length != h.width()) {
+            throw new Error("Wrong number of fields");
+        }
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = h.codec(i).decode(fields[i]);
+        }
+        header = h;
+    }
+
+    // Split a line at each comma and space, without a regular expression.
+    private static String[] split(String line) {
+        int n = 1;
+        int i = line.indexOf(", ");
+        while (i >= 0) { n++; i = line.indexOf(", ", i + 2); }
+        String[] parts = new String[n];
+        int start = 0;
+        for (int k = 0; k < n - 1; k++) {
+            int end = line.indexOf(", ", start);
+            parts[k] = line.substring(start, end);
+            start = end + 2;
+        }
+        parts[n - 1] = line.substring(start);
+        return parts;
+    }
+
+    // Attach the record to a table's header, when it is inserted or read from
+    // a file. The fields must be laid out for the given version of the header.
+    void attach(Header h) {
+        if (header == h) return;
+        if (header != null) throw new Error("Record belongs to another table");
+        if (fields.length != h.width()) {
+            throw new Error("Wrong number of fields");
+        }
+        header = h;
+    }
+
+    // Return the fields laid out for the latest header.
+    private String[] current() {
+        if (header == null || header.isLatest()) return fields;
+        Header h = header.latest();
+        String[] cells = new String[h.width()];
+        for (int c = 0; c < cells.length; c++) {
+            int p = header.position(h, c);
+            cells[c] = p < 0 ? h.initial(c) : fields[p];
+        }
+        return cells;
+    }
+
+    // Bring the fields up to date with the latest header.
+    void upgrade() {
+        if (header == null || header.isLatest()) return;
+        fields = current();
+        header = header.latest();
+    }
+
+    // Return a copy of the record laid out for the latest header, leaving this
+    // one as it is, for any reader which still has it.
+    Record upgraded() {
+        Record r = new Record(current());
+        r.header = header == null ? null : header.latest();
+        return r;
+    }
+
+    // Check whether the fields are laid out for the latest header.
+    boolean isCurrent() {
+        return header == null || header.isLatest();
+    }
+
+    // Save a record to a line of text, encoding each field with its column's
+    // codec, which escapes the problem characters in text.
     String save() {
-        String[] fs = new String[fields.length];
-        for (int i = 0; i < fs.length; i++) {
-            String s = fields[i];
-            s = s.replaceAll("%", "%p");
-            s = s.replaceAll(",", "%c");
-            s = s.replaceAll("\n", "%n");
-            fs[i] = s;
+        String[] fields = current();
+        Header h = header == null ? null : header.latest();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) b.append(", ");
+            Codec codec = h == null ? Codec.TEXT : h.codec(i);
+            b.append(codec.encode(fields[i]));
         }
-        return String.join(", ", fs);
+        return b.toString();
     }
 
     // Return the number of fields in the record.
     int width() {
-        return fields.length;
+        if (header == null) return fields.length;
+        return header.latest().width();
     }
 
     // Return the field in the record at the given column position.
     String get(int col) {
-        return fields[col];
+        if (header == null || header.isLatest()) return fields[col];
+        Header h = header.latest();
+        int p = header.position(h, col);
+        return p < 0 ? h.initial(col) : fields[p];
     }
 
     // Set the field of the record at the given column position to a new value.
-    // Don't allow the key field, i.e. the first field, to be updated.
+    // Don't allow the key field, i.e. the first field, to be updated. If the
+    // record is in a table, the edit is counted as a change to the table.
     void set(int col, String value) {
         if (value == null) throw new Error("Null value");
         if (col == 0) throw new Error("Can't change key");
+        upgrade();
         fields[col] = value;
+        if (header != null) header.edited();
     }
 
     // Add a blank field, creating a new record object. Used by table.addColumn.
     Record addField(int c) {
+        String[] fields = current();
         String[] cells = new String[fields.length + 1];
         for (int i = 0; i < cells.length; i++) {
             if (i < c) cells[i] = fields[i];
@@ -69,9 +151,18 @@ class Record {
         return new Record(cells);
     }
 
+    // Estimate the memory used by the record, in bytes, assuming compressed
+    // references and one byte per character.
+    int memory() {
+        int n = 16 + 16 + 4 * fields.length;
+        for (String field : fields) n += 40 + field.length();
+        return n;
+    }
+
     // Increase the given column string lengths as necessary to hold the fields.
     void checkLengths(int[] lengths) {
-        for (int c = 0; c < width(); c++) {
+        String[] fields = current();
+        for (int c = 0; c < fields.length; c++) {
             if (fields[c].length() > lengths[c]) {
                 lengths[c] = fields[c].length();
             }
@@ -79,17 +170,23 @@ class Record {
     }
 
     // Display the record on one line, within the given maximum field lengths,
-    // and with spaces and a vertical bar between columns.
+    // and with spaces and a vertical bar between columns. Columns whose codec
+    // says so, e.g. numbers, are right-justified.
     String display(int[] lengths) {
-        String[] padded = new String[fields.length];
+        String[] fields = current();
+        Header h = header == null ? null : header.latest();
+        StringBuilder b = new StringBuilder();
         for (int c = 0; c < fields.length; c++) {
             String s = fields[c];
             int pad = lengths[c] - s.length();
-            if (c == fields.length - 1) pad = 0;
-            for (int i = 0; i < pad; i++) s = s + " ";
-            padded[c] = s;
+            boolean last = c == fields.length - 1;
+            boolean right = h != null && h.codec(c).right();
+            if (c > 0) b.append(" | ");
+            if (right) b.append(" ".repeat(Math.max(0, pad)));
+            b.append(s);
+            if (! right && ! last) b.append(" ".repeat(Math.max(0, pad)));
         }
-        return String.join(" | ", padded);
+        return b.toString();
     }
 
     private static void testGetSet() {
@@ -118,6 +215,26 @@ class Record {
         assert(example.get(3).equals("Two"));
     }
 
+    private static void testHeader() {
+        Header h = new Header("Id", "Name", "Kind");
+        Record example = new Record("1", "Fido", "dog");
+        example.attach(h);
+        Header h2 = h.add(2, "Age", "0").drop(3);
+        assert(! example.isCurrent());
+        assert(example.width() == 3);
+        assert(example.get(1).equals("Fido"));
+        assert(example.get(2).equals("0"));
+        assert(example.save().equals("1, Fido, 0"));
+        Record copy = example.upgraded();
+        assert(copy.isCurrent() && ! example.isCurrent());
+        assert(copy.save().equals("1, Fido, 0"));
+        example.set(2, "7");
+        assert(example.isCurrent());
+        assert(example.get(2).equals("7"));
+        h2.rename(1, "Called");
+        assert(example.get(1).equals("Fido"));
+    }
+
     private static void testLoadSave() {
         Record example = new Record("a%cb%cc, def%nghi%n");
         assert(example.width() == 2);
@@ -125,12 +242,20 @@ class Record {
         assert(example.get(1).equals("def\nghi\n"));
         String s = example.save();
         assert(s.equals("a%cb%cc, def%nghi%n"));
+        example = new Record("x, , ");
+        assert(example.width() == 3);
+        assert(example.get(2).equals(""));
+        assert(example.save().equals("x, , "));
     }
 
     private static void testDisplay() {
         Record example = new Record("Zero", "One", "Two");
         int[] lengths = {5, 5, 5};
         assert(example.display(lengths).equals("Zero  | One   | Two"));
+        Header h = Header.parse("Id", "Age:int");
+        Record typed = new Record(h, "a%cb, 42");
+        assert(typed.get(0).equals("a,b") && typed.save().equals("a%cb, 42"));
+        assert(typed.display(new int[] {3, 4}).equals("a,b |   42"));
     }
 
     // Run the tests on the Record class.
@@ -138,6 +263,7 @@ class Record {
         testGetSet();
         testRobustness();
         testAddField();
+        testHeader();
         testLoadSave();
         testDisplay();
         System.out.println("Record class OK");
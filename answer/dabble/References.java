@@ -0,0 +1,218 @@
+/* References enforce the foreign keys of a database, as described on the
+extensions page. A column whose header names a target table must hold either a
+blank or the key of a record in the target table. For each table which is
+referred to, a multi-set counts how many times each of its keys appears in
+references, so deleting a record only needs one lookup to check that nothing
+refers to it, rather than a scan of the referring tables. The counts are built
+when the database is opened, and kept up to date as changes are made through
+this class.
+
+Changes are checked in batches, against the tables as they would be after the
+whole batch, so a single command is a batch of one, and a transaction is
+checked once, when it commits. All checked changes are made while holding this
+object's lock, so one check can't be invalidated by another change before its
+own changes are made. */
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+class References {
+    private Database db;
+    private Map<Table,Map<String,Integer>> counts = new HashMap<>();
+
+    References(Database db) { this.db = db; }
+
+    // Count all the references in the database, after loading or after a
+    // change to the tables or their columns.
+    synchronized void build() {
+        counts.clear();
+        for (String name : db) {
+            Table t = db.getTable(name);
+            if (! refers(t)) continue;
+            for (Record r : t) count(counts, t, r, 1);
+        }
+    }
+
+    // Check whether a table has any reference columns.
+    private static boolean refers(Table t) {
+        for (int c = 0; c < t.width(); c++) {
+            if (t.schema().target(c) != null) return true;
+        }
+        return false;
+    }
+
+    // Add a delta to the counts of the keys which a record refers to.
+    private void count(Map<Table,Map<String,Integer>> into, Table t,
+        Record r, int delta) {
+        if (r == null) return;
+        Header h = t.schema();
+        for (int c = 0; c < h.width(); c++) {
+            Table u = h.target(c) == null ? null : db.getTable(h.target(c));
+            String v = r.get(c);
+            if (u == null || v.isEmpty()) continue;
+            Map<String,Integer> keys = into.computeIfAbsent(u,
+                k -> new HashMap<>());
+            keys.merge(v.toLowerCase(), delta, Integer::sum);
+            if (keys.get(v.toLowerCase()) == 0) keys.remove(v.toLowerCase());
+        }
+    }
+
+    // Return the number of references to a key of a table.
+    synchronized int count(Table t, String key) {
+        Map<String,Integer> keys = counts.get(t);
+        if (keys == null) return 0;
+        return keys.getOrDefault(key.toLowerCase(), 0);
+    }
+
+    // Check, and if consistent make, a change of one record, given its key,
+    // with a null record for a deletion. Return the problem, or null.
+    synchronized String change(Table t, String key, Record r) {
+        if (! refers(t) && ! counts.containsKey(t)) {
+            if (r == null) t.delete(key);
+            else t.insert(r);
+            return null;
+        }
+        Map<String,Record> change = new TreeMap<>();
+        change.put(key.toLowerCase(), r);
+        Map<Table,Map<String,Record>> batch = Map.of(t, change);
+        String problem = check(batch);
+        if (problem == null) apply(batch);
+        return problem;
+    }
+
+    // Check a batch of changes, by table and then by lowercase key, with null
+    // for a deletion. Return the first problem, or null.
+    synchronized String check(Map<Table,Map<String,Record>> batch) {
+        Map<Table,Map<String,Integer>> deltas = new HashMap<>();
+        for (Table t : batch.keySet()) {
+            Map<String,Record> changes = batch.get(t);
+            for (String key : changes.keySet()) {
+                count(deltas, t, t.select(key), -1);
+                count(deltas, t, changes.get(key), 1);
+            }
+        }
+        for (Table t : batch.keySet()) {
+            Map<String,Record> changes = batch.get(t);
+            Header h = t.schema();
+            for (String key : changes.keySet()) {
+                Record r = changes.get(key);
+                if (r == null) {
+                    int n = count(t, key);
+                    Map<String,Integer> delta = deltas.get(t);
+                    if (delta != null) n += delta.getOrDefault(key, 0);
+                    if (n > 0) return "Record is referred to: " + key;
+                    continue;
+                }
+                for (int c = 0; c < h.width(); c++) {
+                    String target = h.target(c), v = r.get(c);
+                    if (target == null || v.isEmpty()) continue;
+                    Table u = db.getTable(target);
+                    if (u == null) return "Can't find table: " + target;
+                    if (! exists(batch, u, v.toLowerCase())) {
+                        return "Can't find " + v + " in " + target;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Check whether a key would be in a table, after a batch of changes.
+    private static boolean exists(Map<Table,Map<String,Record>> batch,
+        Table t, String key) {
+        Map<String,Record> changes = batch.get(t);
+        if (changes != null && changes.containsKey(key)) {
+            return changes.get(key) != null;
+        }
+        return t.select(key) != null;
+    }
+
+    // Make a batch of changes which has been checked, keeping the counts up to
+    // date. Each table's changes become one version of the table.
+    synchronized void apply(Map<Table,Map<String,Record>> batch) {
+        for (Table t : batch.keySet()) {
+            Map<String,Record> changes = batch.get(t);
+            for (String key : changes.keySet()) {
+                count(counts, t, t.select(key), -1);
+                count(counts, t, changes.get(key), 1);
+            }
+            t.apply(changes);
+        }
+    }
+
+    // Find a column of another table, as table.column, which refers to a
+    // table, or return null.
+    String referrer(String table) {
+        for (String name : db) {
+            if (name.equals(table)) continue;
+            Header h = db.getTable(name).schema();
+            for (int c = 0; c < h.width(); c++) {
+                if (table.equals(h.target(c))) return name + "." + h.name(c);
+            }
+        }
+        return null;
+    }
+
+    // Find a value in a column which doesn't refer to a key of the target
+    // table, or return null. The search can stop early, so it reads from a
+    // snapshot which is closed explicitly.
+    static String dangling(Table t, int col, Table target) {
+        try (Table.Snapshot s = t.snapshot()) {
+            for (Record r : s) {
+                String v = r.get(col);
+                if (! v.isEmpty() && target.select(v) == null) return v;
+            }
+        }
+        return null;
+    }
+
+    private static void testChecks(Database db) {
+        References refs = db.references();
+        Table pets = db.getTable("pets"), people = db.getTable("people");
+        assert(refs.count(people, "ab1") == 1);
+        assert(refs.change(people, "ab1", null) != null);
+        assert(refs.change(pets, "1", new Record("1", "Fido", "xx")) != null);
+        assert(refs.change(pets, "2", new Record("2", "Rex", "AB1")) == null);
+        assert(refs.count(people, "ab1") == 2);
+        assert(refs.change(pets, "1", null) == null);
+        assert(refs.change(pets, "3", new Record("3", "Tom", "")) == null);
+        assert(refs.count(people, "ab1") == 1 && pets.height() == 2);
+    }
+
+    // Check that a batch is checked as a whole.
+    private static void testBatch(Database db) {
+        References refs = db.references();
+        Table pets = db.getTable("pets"), people = db.getTable("people");
+        Map<String,Record> a = new TreeMap<>(), b = new TreeMap<>();
+        a.put("2", null);
+        b.put("ab1", null);
+        Map<Table,Map<String,Record>> batch = Map.of(pets, a, people, b);
+        assert(refs.check(batch) == null);
+        b.put("cd2", new Record("cd2", "Al"));
+        a.put("4", new Record("4", "Pip", "cd2"));
+        assert(refs.check(batch) == null);
+        refs.apply(batch);
+        assert(refs.count(people, "ab1") == 0);
+        assert(refs.count(people, "cd2") == 1);
+        assert(people.height() == 1 && pets.height() == 2);
+        assert(refs.referrer("people").equals("pets.Owner"));
+        assert(dangling(pets, 2, people) == null);
+        assert(dangling(people, 1, pets).equals("Al"));
+        people.insert(new Record("cd2", "Alan"));
+        assert(people.versions() == 0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        File folder = Files.createTempDirectory("refs").toFile();
+        Files.write(new File(folder, "pets.txt").toPath(),
+            List.of("Id, Name, Owner>people", "1, Fido, ab1"));
+        Files.write(new File(folder, "people.txt").toPath(),
+            List.of("Id, Name", "ab1, Jo"));
+        Database db = new Database(folder);
+        testChecks(db);
+        testBatch(db);
+        for (File f : folder.listFiles()) f.delete();
+        folder.delete();
+        System.out.println("References class OK");
+    }
+}
@@ -0,0 +1,191 @@
+/* A ResultCache holds the printed output of recent select commands, so that
+one which is repeated, e.g. by a dashboard, can be answered by printing the
+same bytes again, without reading or formatting any records. Each result
+remembers the tables it was read from, and the count of changes each had made
+when it was run. A result is only used if none of them has changed since, and
+is thrown away otherwise.
+
+The cache is limited to a number of bytes, which Dabble takes from the property
+dabble.results, 16MB by default. The least recently used results are dropped
+to stay within it. A result bigger than a quarter of the limit isn't kept, and
+isn't even copied in full while it is being printed. */
+import java.util.*;
+import java.io.*;
+
+class ResultCache {
+    private long capacity, size, hits, misses;
+    private LinkedHashMap<String,Result> results =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    // The output of a command, and the tables it read, with their change
+    // counts at the time.
+    private static class Result {
+        byte[] text;
+        Table[] tables;
+        long[] stamps;
+
+        Result(byte[] text, Table[] tables, long[] stamps) {
+            this.text = text;
+            this.tables = tables;
+            this.stamps = stamps;
+        }
+
+        boolean current() {
+            for (int i = 0; i < tables.length; i++) {
+                if (tables[i].changes() != stamps[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    // An output stream which passes bytes on, keeping a copy of them unless
+    // there are more than a limit.
+    static class Recorder extends OutputStream {
+        private OutputStream out;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private long limit;
+
+        Recorder(OutputStream out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) { copy.write(b); check(); }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) { copy.write(b, off, len); check(); }
+        }
+
+        public void flush() throws IOException { out.flush(); }
+
+        private void check() { if (copy.size() > limit) copy = null; }
+
+        // Return the bytes written, or null if there were too many.
+        byte[] text() { return copy == null ? null : copy.toByteArray(); }
+    }
+
+    // Create a cache holding up to the given number of bytes of results.
+    ResultCache(long capacity) { this.capacity = capacity; }
+
+    // Return the change counts of some tables, taken before running a command.
+    static long[] stamps(Table[] tables) {
+        long[] stamps = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) stamps[i] = tables[i].changes();
+        return stamps;
+    }
+
+    // Start recording the output of a command, as it is sent on to a stream.
+    Recorder recorder(OutputStream out) {
+        return new Recorder(out, capacity / 4);
+    }
+
+    // Find the output of a command, or return null if it isn't cached or any
+    // of its tables has changed.
+    synchronized byte[] get(String command) {
+        Result r = results.get(command);
+        if (r != null && ! r.current()) {
+            results.remove(command);
+            size -= r.text.length;
+            r = null;
+        }
+        if (r == null) misses++;
+        else hits++;
+        return r == null ? null : r.text;
+    }
+
+    // Keep the output of a command, unless it was too big, given the tables it
+    // read and their change counts before it ran.
+    synchronized void put(String command, byte[] text, Table[] tables,
+        long[] stamps) {
+        if (text == null || text.length > capacity / 4) return;
+        Result old = results.put(command, new Result(text, tables, stamps));
+        if (old != null) size -= old.text.length;
+        size += text.length;
+        Iterator<Result> it = results.values().iterator();
+        while (size > capacity) {
+            size -= it.next().text.length;
+            it.remove();
+        }
+    }
+
+    // Forget all the results, e.g. because tables have been dropped.
+    synchronized void clear() {
+        results.clear();
+        size = 0;
+    }
+
+    synchronized long hits() { return hits; }
+
+    synchronized long misses() { return misses; }
+
+    synchronized long size() { return size; }
+
+    private static byte[] bytes(String s) { return s.getBytes(); }
+
+    // Check that results are dropped when their tables change.
+    private static void testInvalidate() {
+        ResultCache cache = new ResultCache(1000);
+        Table t = new Table("Id", "Name"), u = new Table("Id");
+        Table[] both = { t, u };
+        cache.put("select t", bytes("one"), both, stamps(both));
+        assert(new String(cache.get("select t")).equals("one"));
+        assert(cache.get("select u") == null);
+        u.insert(new Record("1"));
+        assert(cache.get("select t") == null && cache.size() == 0);
+        cache.put("select t", bytes("two"), both, stamps(both));
+        t.addColumn(2, "Age");
+        assert(cache.get("select t") == null);
+        cache.put("select t", bytes("three"), both, stamps(both));
+        Map<String,Record> changes = new HashMap<>();
+        changes.put("1", null);
+        u.apply(changes);
+        assert(cache.get("select t") == null);
+        t.insert(new Record("1", "Fido", "3"));
+        cache.put("select t", bytes("four"), both, stamps(both));
+        t.select("1").set(1, "Rex");
+        assert(cache.get("select t") == null);
+        assert(cache.hits() == 1 && cache.misses() == 5);
+    }
+
+    // Check that the least recently used results are dropped when full.
+    private static void testEvict() {
+        ResultCache cache = new ResultCache(100);
+        Table[] none = {};
+        for (int i = 0; i < 4; i++) {
+            cache.put("c" + i, new byte[25], none, stamps(none));
+        }
+        assert(cache.get("c0") != null);
+        cache.put("c4", new byte[25], none, stamps(none));
+        assert(cache.get("c1") == null && cache.get("c0") != null);
+        assert(cache.size() == 100);
+        cache.put("big", new byte[26], none, stamps(none));
+        assert(cache.get("big") == null);
+        cache.clear();
+        assert(cache.get("c0") == null && cache.size() == 0);
+    }
+
+    // Check that a recorder passes everything on, and copies small outputs.
+    private static void testRecorder() {
+        ResultCache cache = new ResultCache(40);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Recorder r = cache.recorder(out);
+        PrintStream p = new PrintStream(r);
+        p.print("0123456789");
+        p.flush();
+        assert(new String(r.text()).equals("0123456789"));
+        p.print("x");
+        p.flush();
+        assert(r.text() == null && out.toString().equals("0123456789x"));
+    }
+
+    public static void main(String[] args) {
+        testInvalidate();
+        testEvict();
+        testRecorder();
+        System.out.println("ResultCache class OK");
+    }
+}
@@ -0,0 +1,98 @@
+/* A Row is the public, read-only view of a record, for programs which embed
+the database. It holds its own copy of the fields, and of the names and types
+of its columns, so it never changes, whatever happens to the table, and it can
+be kept or passed between threads freely. Fields can be fetched by column
+number or by name, as text, or as a number if the column holds integers. A
+blank field is the empty string as text, and null as a number. */
+import java.util.*;
+
+public final class Row {
+    private final String[] names;
+    private final Codec[] codecs;
+    private final String[] values;
+
+    // Copy a record, keeping the given columns of the table's header.
+    Row(Header h, int[] columns, Record r) {
+        names = new String[columns.length];
+        codecs = new Codec[columns.length];
+        values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = h.name(columns[i]);
+            codecs[i] = h.codec(columns[i]);
+            values[i] = r.get(columns[i]);
+        }
+    }
+
+    /** Return the number of fields. */
+    public int width() { return values.length; }
+
+    /** Return the names of the columns. */
+    public List<String> columns() { return List.of(names); }
+
+    /** Find a column by name, ignoring case, or return -1. */
+    public int column(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /** Return a field as text. */
+    public String text(int col) { return values[col]; }
+
+    /** Return a field, given its column name, as text. */
+    public String text(String name) { return values[find(name)]; }
+
+    /** Return a field of an integer column as a number, or null if blank. */
+    public Long number(int col) {
+        if (codecs[col] != Codec.INT) {
+            throw new IllegalStateException("Not a number: " + names[col]);
+        }
+        String v = values[col];
+        return v.isEmpty() ? null : Long.valueOf(v);
+    }
+
+    /** Return a field of an integer column, given its name, as a number. */
+    public Long number(String name) { return number(find(name)); }
+
+    private int find(String name) {
+        int c = column(name);
+        if (c < 0) throw new IllegalArgumentException("No column " + name);
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (! (o instanceof Row)) return false;
+        Row r = (Row) o;
+        return Arrays.equals(names, r.names) && Arrays.equals(values, r.values);
+    }
+
+    @Override
+    public int hashCode() { return Arrays.hashCode(values); }
+
+    @Override
+    public String toString() { return new Record(values).save(); }
+
+    private static void testRow() {
+        Header h = Header.parse("Id", "Name", "Age:int");
+        Record r = new Record("1", "Fido", "7");
+        Row row = new Row(h, new int[] {0, 2}, r);
+        assert(row.width() == 2 && row.columns().equals(List.of("Id", "Age")));
+        assert(row.text("id").equals("1") && row.number("AGE") == 7);
+        r.set(2, "8");
+        assert(row.number(1) == 7);
+        assert(new Row(h, new int[] {0, 1, 2}, new Record("2", "Rex", ""))
+            .number(2) == null);
+        try { row.number(0); assert(false); }
+        catch (IllegalStateException e) {}
+        Record same = new Record("1", "", "7");
+        assert(row.equals(new Row(h, new int[] {0, 2}, same)));
+        assert(row.toString().equals("1, 7"));
+    }
+
+    public static void main(String[] args) {
+        testRow();
+        System.out.println("Row class OK");
+    }
+}
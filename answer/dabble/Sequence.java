@@ -0,0 +1,147 @@
+/* A Sequence hands out numbers to use as auto-generated keys for a table. The
+numbers are reserved in blocks, and the end of the latest block is saved in a
+small file next to the table's file, so when the database is opened again the
+sequence carries on from there, without probing the existing keys. A crash can
+only lose the unused part of a block, leaving a gap. Numeric keys inserted by
+hand are observed, so the sequence moves past them.
+
+The file is only written when a number is handed out, so a database can be
+opened, and keys observed, without changing the folder. Allocation has its own
+lock, so concurrent inserters don't wait for the table. An inserter which wants
+many keys can take a whole block at once. */
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+class Sequence {
+    static final int BLOCK = 1000;
+    private File file;
+    private long next, reserved;
+
+    // Create a sequence saved in the given file, or held only in memory if the
+    // file is null, carrying on from the file if it exists.
+    Sequence(File file) {
+        this.file = file;
+        if (file == null || ! file.exists()) return;
+        try {
+            String text = Files.readString(file.toPath()).trim();
+            next = reserved = Long.parseLong(text);
+        }
+        catch (IOException | NumberFormatException e) { throw new Error(e); }
+    }
+
+    // Allocate the next number.
+    synchronized long next() {
+        if (next == reserved) reserve(1);
+        return next++;
+    }
+
+    // Allocate a block of n consecutive numbers, returning the first.
+    synchronized long block(int n) {
+        if (n < 1) throw new Error("Bad block size");
+        if (next + n > reserved) reserve(n);
+        long first = next;
+        next += n;
+        return first;
+    }
+
+    // Make sure that numbers below n are never handed out. A new block isn't
+    // reserved until a number is next handed out.
+    synchronized void skip(long n) {
+        if (n <= next) return;
+        next = n;
+        if (next > reserved) reserved = next;
+    }
+
+    // Skip past a key if it is a number, i.e. a non-negative int in canonical
+    // form, as used by the sequence.
+    void observe(String key) {
+        int n = key.length();
+        if (n == 0 || n > 18 || key.charAt(0) > '9') return;
+        if (n > 1 && key.charAt(0) == '0') return;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') return;
+        }
+        skip(Long.parseLong(key) + 1);
+    }
+
+    // Return the next number which would be handed out.
+    synchronized long peek() { return next; }
+
+    // Reserve a block of at least n numbers beyond next, and save the end of it
+    // before any of them are used.
+    private void reserve(int n) {
+        reserved = next + Math.max(n, BLOCK);
+        if (file == null) return;
+        File temp = new File(file.getPath() + ".new");
+        try {
+            Files.writeString(temp.toPath(), reserved + "\n");
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    private static void testBlocks() {
+        Sequence s = new Sequence(null);
+        assert(s.next() == 0 && s.next() == 1);
+        assert(s.block(5) == 2 && s.next() == 7);
+        assert(s.block(BLOCK * 3) == 8 && s.peek() == 8 + BLOCK * 3);
+        s.observe("5000");
+        s.observe("x5");
+        s.observe("0123");
+        assert(s.next() == 5001);
+    }
+
+    // Check that a reopened sequence carries on after its saved block.
+    private static void testReopen() throws IOException {
+        File file = Files.createTempFile("seq", ".seq").toFile();
+        file.delete();
+        Sequence s = new Sequence(file);
+        assert(s.next() == 0 && s.next() == 1);
+        Sequence t = new Sequence(file);
+        assert(t.next() == BLOCK);
+        file.delete();
+    }
+
+    // Check that the file isn't written until a number is handed out.
+    private static void testLazy() throws IOException {
+        File file = Files.createTempFile("seq", ".seq").toFile();
+        file.delete();
+        Sequence s = new Sequence(file);
+        s.observe("50");
+        assert(! file.exists() && s.peek() == 51);
+        assert(s.next() == 51 && file.exists());
+        assert(new Sequence(file).next() == 51 + BLOCK);
+        file.delete();
+    }
+
+    // Check that concurrent inserters get distinct numbers.
+    private static void testConcurrent() throws InterruptedException {
+        Sequence s = new Sequence(null);
+        long[][] got = new long[4][5000];
+        Thread[] threads = new Thread[got.length];
+        for (int t = 0; t < threads.length; t++) {
+            long[] mine = got[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < mine.length; i++) mine[i] = s.next();
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        Set<Long> all = new HashSet<>();
+        for (long[] mine : got) for (long n : mine) assert(all.add(n));
+        assert(s.peek() == 20000);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws Exception {
+        testBlocks();
+        testReopen();
+        testLazy();
+        testConcurrent();
+        System.out.println("Sequence class OK");
+    }
+}
@@ -0,0 +1,174 @@
+/* A SlowLog records commands which take longer than a threshold, with the
+profile of where their time went. Entries are appended to a log file by a
+background thread, so a command never waits for the file. If the background
+thread falls so far behind that its queue is full, entries are dropped and
+counted rather than blocking. Each entry is a line in table file format:
+the time, the total and phase times in milliseconds, the rows touched, and the
+command. Logging is off unless a threshold is set. The file, and the background
+thread, are only created when the first entry is logged. If the file can't be
+written, the problem is reported on the error stream, and later entries are
+dropped. */
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.time.*;
+
+class SlowLog {
+    static final int QUEUE = 10000;
+
+    private File file;
+    private volatile long threshold;
+    private BlockingQueue<String> queue;
+    private Thread writer;
+    private volatile long dropped;
+    private volatile IOException failure;
+
+    // Start logging to the given file, for commands taking at least the given
+    // number of milliseconds. A negative threshold switches logging off.
+    SlowLog(File file, long millis) {
+        this.file = file;
+        setThreshold(millis);
+        queue = new ArrayBlockingQueue<>(QUEUE);
+    }
+
+    // Return the column names of a log entry.
+    static Record header() {
+        String[] names = { "time", "total", "parse", "resolve", "access",
+            "format", "output", "rows", "command" };
+        return new Record(names);
+    }
+
+    // Change the threshold, in milliseconds, or switch off if negative.
+    void setThreshold(long millis) {
+        threshold = millis < 0 ? -1 : millis * 1000000;
+    }
+
+    // Check whether commands should be profiled.
+    boolean enabled() { return threshold >= 0; }
+
+    // Return the number of entries dropped because the queue was full, or
+    // the file couldn't be written.
+    long dropped() { return dropped; }
+
+    // Return the problem which stopped the file being written, or null.
+    IOException failure() { return failure; }
+
+    // Log a command if its profile shows that it was slow.
+    void check(String command, Profile p) {
+        long t = threshold;
+        if (t < 0 || p.total() < t) return;
+        String[] fields = new String[10];
+        fields[0] = Instant.now().toString();
+        fields[1] = Stats.millis(p.total());
+        int i = 2;
+        for (Profile.Phase phase : Profile.Phase.values()) {
+            fields[i++] = Stats.millis(p.nanos(phase));
+        }
+        fields[i++] = "" + p.rows();
+        fields[i] = command;
+        String line = new Record(Arrays.copyOf(fields, i + 1)).save();
+        start();
+        if (failure != null || ! queue.offer(line)) dropped++;
+    }
+
+    // Start the background thread, if it isn't already running.
+    private synchronized void start() {
+        if (writer != null) return;
+        writer = new Thread(this::write, "slow-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Write entries as they arrive, flushing whenever the queue is empty. A
+    // problem with the file is reported, and the queue is then left to fill.
+    private void write() {
+        try {
+            boolean fresh = ! file.exists() || file.length() == 0;
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file, true),
+                "utf-8")));
+            if (fresh) out.println(header().save());
+            while (true) {
+                String line = queue.poll();
+                if (line == null) {
+                    out.flush();
+                    line = queue.take();
+                }
+                if (line.isEmpty()) break;
+                out.println(line);
+            }
+            out.close();
+            if (out.checkError()) throw new IOException("Can't write " + file);
+        }
+        catch (IOException e) {
+            failure = e;
+            System.err.println("Slow log failed: " + e.getMessage());
+        }
+        catch (InterruptedException e) { }
+    }
+
+    // Write out any entries still queued, and stop the background thread.
+    void close() {
+        synchronized (this) { if (writer == null) return; }
+        try {
+            if (queue.offer("", 1, TimeUnit.SECONDS)) writer.join(1000);
+        }
+        catch (InterruptedException e) { }
+    }
+
+    private static void testLog() throws IOException {
+        File f = File.createTempFile("slow", ".log");
+        f.delete();
+        SlowLog log = new SlowLog(f, 0);
+        assert(! f.exists());
+        Profile p = Profile.start();
+        Profile.rows(2);
+        p.finish();
+        log.check("select t", p);
+        log.setThreshold(1000000);
+        log.check("select u", p);
+        log.close();
+        Scanner in = new Scanner(f, "utf-8");
+        assert(in.nextLine().startsWith("time, total"));
+        Record r = new Record(in.nextLine());
+        assert(r.get(7).equals("2"));
+        assert(r.get(8).equals("select t"));
+        assert(! in.hasNextLine());
+        in.close();
+        f.delete();
+    }
+
+    // Check that a file which can't be written is reported, and that a log
+    // which has nothing to write never creates its file.
+    private static void testFailure() throws IOException {
+        File dir = File.createTempFile("slow", "");
+        dir.delete();
+        SlowLog log = new SlowLog(new File(dir, "slow.log"), 0);
+        Profile p = Profile.start();
+        p.finish();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            log.check("select t", p);
+            log.close();
+        }
+        finally { System.setErr(err); }
+        assert(log.failure() != null);
+        long dropped = log.dropped();
+        log.check("select t", p);
+        assert(log.dropped() == dropped + 1);
+        File f = File.createTempFile("slow", ".log");
+        f.delete();
+        log = new SlowLog(f, 1000000);
+        log.check("select t", p);
+        log.close();
+        assert(! f.exists());
+    }
+
+    // Run the tests.
+    public static void main(String[] args) throws IOException {
+        testLog();
+        testFailure();
+        System.out.println("SlowLog class OK");
+    }
+}
@@ -0,0 +1,256 @@
+/* A Sorter produces the records of a table in the order of one of its columns,
+using Values.compare, with records which tie left in key order. Only the sort
+field and a reference to the record are held while sorting. If the rows, as
+estimated, take more bytes than the memory budget, sorted runs of that size are
+written to temporary files in the given folder, and the runs are then merged.
+The temporary files are deleted when the sort has finished. */
+import java.util.*;
+import java.util.function.*;
+import java.io.*;
+
+class Sorter {
+    // The estimated bytes of rows sorted in memory before spilling to files.
+    static long budget = 64L << 20;
+
+    private Table table;
+    private int col;
+    private boolean descending;
+    private File folder;
+
+    // Prepare to sort a table by a column, using the folder for any spills.
+    Sorter(Table table, int col, boolean descending, File folder) {
+        if (col < 0 || col >= table.width()) throw new Error("Bad col");
+        this.table = table;
+        this.col = col;
+        this.descending = descending;
+        this.folder = folder;
+    }
+
+    // The sort field and the record it came from.
+    private static class Entry {
+        String key;
+        Record record;
+        Entry(String key, Record record) {
+            this.key = key;
+            this.record = record;
+        }
+
+        // Estimate the memory held by the entry, counting the record as well,
+        // as it may not be held by the table, e.g. if the table is on disk.
+        long memory() {
+            long n = 72 + key.length() + 32 + 4 * record.width();
+            for (int c = 0; c < record.width(); c++) {
+                n += 40 + record.get(c).length();
+            }
+            return n;
+        }
+    }
+
+    // Estimate whether sorting a table would spill to files, from the memory
+    // taken by its records, or a guess of 200 bytes each if not in memory.
+    static boolean spills(Table t) {
+        boolean memory = t.kind().equals("memory");
+        long bytes = memory ? t.memory() : 200L * t.height();
+        return bytes > budget;
+    }
+
+    // Compare sort fields, taking the direction into account.
+    private int compare(String a, String b) {
+        int n = Values.compare(a, b);
+        return descending ? -n : n;
+    }
+
+    // Pass the records to the given action in sorted order.
+    void run(Consumer<Record> action) {
+        List<Entry> batch = new ArrayList<>();
+        List<File> runs = new ArrayList<>();
+        long bytes = 0;
+        try {
+            for (Record r : table) {
+                Entry e = new Entry(r.get(col), r);
+                batch.add(e);
+                bytes += e.memory();
+                if (bytes >= budget) {
+                    runs.add(spill(batch));
+                    batch.clear();
+                    bytes = 0;
+                }
+            }
+            batch.sort((a, b) -> compare(a.key, b.key));
+            if (runs.isEmpty()) {
+                for (Entry e : batch) action.accept(e.record);
+            }
+            else {
+                if (! batch.isEmpty()) runs.add(spill(batch));
+                merge(runs, table.schema(), action);
+            }
+        }
+        finally {
+            for (File f : runs) f.delete();
+        }
+    }
+
+    // Sort a batch and write it to a temporary file, one line per record with
+    // the sort field in front.
+    private File spill(List<Entry> batch) {
+        batch.sort((a, b) -> compare(a.key, b.key));
+        try {
+            File f = File.createTempFile("sort", ".run", folder);
+            f.deleteOnExit();
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(f), "utf-8")));
+            for (Entry e : batch) {
+                String[] fields = new String[e.record.width() + 1];
+                fields[0] = e.key;
+                for (int c = 0; c < e.record.width(); c++) {
+                    fields[c + 1] = e.record.get(c);
+                }
+                out.println(new Record(fields).save());
+            }
+            out.close();
+            if (out.checkError()) throw new Error("Can't write " + f);
+            return f;
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // One sorted run being read back during the merge.
+    private static class Run {
+        BufferedReader in;
+        String[] fields;
+        int order;
+
+        // Read the next line, or close the file at the end.
+        boolean advance() throws IOException {
+            String line = in.readLine();
+            if (line == null) { in.close(); return false; }
+            Record r = new Record(line);
+            fields = new String[r.width()];
+            for (int c = 0; c < fields.length; c++) fields[c] = r.get(c);
+            return true;
+        }
+    }
+
+    // Merge the sorted runs. Ties go to the earlier run, which keeps records
+    // with equal sort fields in key order. The records are attached to the
+    // table's header, so that they are displayed as if they hadn't spilled.
+    private void merge(List<File> files, Header header,
+        Consumer<Record> action) {
+        PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> {
+            int n = compare(a.fields[0], b.fields[0]);
+            return n != 0 ? n : a.order - b.order;
+        });
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Run run = new Run();
+                run.in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(files.get(i)), "utf-8"));
+                run.order = i;
+                if (run.advance()) queue.add(run);
+            }
+            while (! queue.isEmpty()) {
+                Run run = queue.poll();
+                String[] fields = run.fields;
+                Record r = new Record(Arrays.copyOfRange(fields, 1,
+                    fields.length));
+                r.attach(header);
+                action.accept(r);
+                if (run.advance()) queue.add(run);
+            }
+        }
+        catch (IOException e) { throw new Error(e); }
+        finally {
+            for (Run run : queue) {
+                try { run.in.close(); } catch (IOException e) { }
+            }
+        }
+    }
+
+    private static Table example() {
+        Table t = new Table("Id", "Name", "Kind");
+        t.insert(new Record("1", "Fido", "dog"));
+        t.insert(new Record("2", "Wanda", "fish"));
+        t.insert(new Record("3", "Garfield", "cat"));
+        t.insert(new Record("10", "Rex", "dog"));
+        t.insert(new Record("4", "Nemo, the second", ""));
+        return t;
+    }
+
+    private static String order(Table t, int col, boolean descending) {
+        File folder = new File(System.getProperty("java.io.tmpdir"));
+        List<String> keys = new ArrayList<>();
+        new Sorter(t, col, descending, folder).run(r -> keys.add(r.get(0)));
+        return String.join(" ", keys);
+    }
+
+    private static void testMemory() {
+        Table t = example();
+        assert(order(t, 0, false).equals("1 2 3 4 10"));
+        assert(order(t, 0, true).equals("10 4 3 2 1"));
+        assert(order(t, 2, false).equals("4 3 1 10 2"));
+        assert(order(t, 2, true).equals("2 1 10 3 4"));
+    }
+
+    private static void testSpill() {
+        long saved = budget;
+        budget = 500;
+        try {
+            Table t = example();
+            assert(order(t, 0, false).equals("1 2 3 4 10"));
+            assert(order(t, 2, false).equals("4 3 1 10 2"));
+            assert(order(t, 1, true).equals("2 10 4 3 1"));
+            List<Record> rows = new ArrayList<>();
+            File folder = new File(System.getProperty("java.io.tmpdir"));
+            new Sorter(t, 0, true, folder).run(rows::add);
+            assert(rows.get(1).get(1).equals("Nemo, the second"));
+            assert(rows.get(1).get(2).equals(""));
+        }
+        finally { budget = saved; }
+    }
+
+    // Check that a column of numbers and text sorts with the numbers first,
+    // in memory and when merging runs.
+    private static void testMixed() {
+        Table t = new Table("Id", "Size");
+        String[] sizes = { "10", "1a", "2", "", "b", "-3", "2.5", "1a" };
+        for (int i = 0; i < sizes.length; i++) {
+            t.insert(new Record("k" + i, sizes[i]));
+        }
+        String expected = "k5 k2 k6 k0 k3 k1 k7 k4";
+        assert(order(t, 1, false).equals(expected));
+        long saved = budget;
+        budget = 600;
+        try { assert(order(t, 1, false).equals(expected)); }
+        finally { budget = saved; }
+    }
+
+    // Check that merged records are displayed like sorted ones, e.g. with
+    // integers right-justified.
+    private static void testHeader() {
+        Table t = new Table(Header.parse("Id", "Size:int"), new MemoryStore());
+        for (int i = 0; i < 20; i++) t.insert(new Record("k" + i, "" + i));
+        File folder = new File(System.getProperty("java.io.tmpdir"));
+        int[] lengths = { 3, 5 };
+        List<String> lines = new ArrayList<>();
+        new Sorter(t, 1, false, folder).run(r -> lines.add(r.display(lengths)));
+        long saved = budget;
+        budget = 500;
+        try {
+            List<String> spilled = new ArrayList<>();
+            new Sorter(t, 1, false, folder).run(
+                r -> spilled.add(r.display(lengths)));
+            assert(spilled.equals(lines));
+            assert(lines.get(0).endsWith("    0"));
+        }
+        finally { budget = saved; }
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testMemory();
+        testSpill();
+        testMixed();
+        testHeader();
+        System.out.println("Sorter class OK");
+    }
+}
@@ -0,0 +1,165 @@
+/* A Stats object collects timings for a database: a latency histogram for each
+kind of command, the time taken to load and save each table, and the hits and
+misses of the command plan cache. The histograms use buckets which grow in
+size by a quarter at a time, so a percentile is accurate to within about 25%,
+in a small fixed amount of memory. The methods are synchronized, so the figures
+can be read from a monitoring thread. */
+import java.util.*;
+
+class Stats {
+    private Map<String,Histogram> commands = new TreeMap<>();
+    private Map<String,Long> loads = new TreeMap<>(), saves = new TreeMap<>();
+    private long planHits, planMisses;
+
+    // A histogram of nanosecond times.
+    static class Histogram {
+        private long[] counts = new long[4 * 64];
+        private long count, total, max;
+
+        // Find the bucket for a time: four buckets per power of two.
+        private static int bucket(long n) {
+            if (n < 4) return (int) Math.max(n, 0);
+            int log = 63 - Long.numberOfLeadingZeros(n);
+            return 4 * log + (int) ((n >>> (log - 2)) & 3);
+        }
+
+        // Find the largest time which goes in a bucket.
+        private static long top(int b) {
+            if (b < 4) return b;
+            int log = b / 4;
+            return ((4L + b % 4 + 1) << (log - 2)) - 1;
+        }
+
+        void add(long nanos) {
+            counts[bucket(nanos)]++;
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        long count() { return count; }
+
+        long mean() { return count == 0 ? 0 : total / count; }
+
+        long max() { return max; }
+
+        // Return an upper bound for the given fraction of the times.
+        long percentile(double p) {
+            long need = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= need && seen > 0) return Math.min(top(b), max);
+            }
+            return max;
+        }
+    }
+
+    // Record the time taken by a command.
+    synchronized void command(String name, long nanos) {
+        Histogram h = commands.get(name);
+        if (h == null) {
+            h = new Histogram();
+            commands.put(name, h);
+        }
+        h.add(nanos);
+    }
+
+    // Record the time taken to load a table.
+    synchronized void load(String table, long nanos) {
+        loads.put(table, nanos);
+    }
+
+    // Record the time taken to save a table.
+    synchronized void save(String table, long nanos) {
+        saves.put(table, nanos);
+    }
+
+    // Record a hit or miss of the plan cache.
+    synchronized void plan(boolean hit) {
+        if (hit) planHits++;
+        else planMisses++;
+    }
+
+    // Summarise the commands, one row each, with times in microseconds.
+    synchronized List<Record> commands() {
+        List<Record> rows = new ArrayList<>();
+        for (String name : commands.keySet()) {
+            Histogram h = commands.get(name);
+            rows.add(new Record(name, "" + h.count(), micros(h.mean()),
+                micros(h.percentile(0.5)), micros(h.percentile(0.99)),
+                micros(h.max())));
+        }
+        return rows;
+    }
+
+    // Return the column names of the command summary.
+    static Record commandHeader() {
+        return new Record("command", "count", "mean", "p50", "p99", "max");
+    }
+
+    // Return the time taken to load a table, in milliseconds, or blank.
+    synchronized String loadTime(String table) {
+        Long n = loads.get(table);
+        return n == null ? "" : millis(n);
+    }
+
+    // Return the time taken to last save a table, in milliseconds, or blank.
+    synchronized String saveTime(String table) {
+        Long n = saves.get(table);
+        return n == null ? "" : millis(n);
+    }
+
+    synchronized long planHits() { return planHits; }
+
+    synchronized long planMisses() { return planMisses; }
+
+    // Format nanoseconds as microseconds.
+    static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+
+    // Format nanoseconds as milliseconds.
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static void testHistogram() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) h.add(i * 1000);
+        assert(h.count() == 1000);
+        assert(h.mean() == 500500);
+        assert(h.max() == 1000000);
+        long p50 = h.percentile(0.5);
+        assert(p50 >= 500000 && p50 < 500000 * 1.25);
+        assert(h.percentile(1) == 1000000);
+        assert(new Histogram().percentile(0.5) == 0);
+        for (int b = 8; b < 100; b++) {
+            assert(Histogram.bucket(Histogram.top(b)) == b);
+        }
+    }
+
+    private static void testStats() {
+        Stats s = new Stats();
+        s.command("select", 2000);
+        s.command("select", 4000);
+        s.load("t", 3000000);
+        s.plan(true);
+        s.plan(false);
+        s.plan(true);
+        List<Record> rows = s.commands();
+        assert(rows.size() == 1);
+        assert(rows.get(0).get(1).equals("2"));
+        assert(rows.get(0).get(2).equals("3.0"));
+        assert(s.loadTime("t").equals("3.0"));
+        assert(s.saveTime("t").equals(""));
+        assert(s.planHits() == 2 && s.planMisses() == 1);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testHistogram();
+        testStats();
+        System.out.println("Stats class OK");
+    }
+}
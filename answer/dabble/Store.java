@@ -0,0 +1,45 @@
+/* A Store holds the records of one table, by lowercase key, and iterates
+through them in key order. A memory store keeps all of them in memory. Other
+stores keep them in files, with only some of them in memory at any one time, so
+a record they return may be a copy, and changing it has no effect on the store.
+The records returned by a store are attached to a version of the table's
+header, not necessarily the latest. */
+import java.util.*;
+
+interface Store extends Iterable<Record> {
+    // Find a record, given its lowercase key, or return null.
+    Record get(String key);
+
+    // Insert or replace a record, returning the record it replaces, if any.
+    Record put(String key, Record r);
+
+    // Insert or replace a record, without finding the record it replaces,
+    // which a store may be able to do without reading. By default, it puts.
+    default void write(String key, Record r) { put(key, r); }
+
+    // Remove a record, returning it, or return null if there is none.
+    Record remove(String key);
+
+    // Return up to n records in key order, starting from the given lowercase
+    // key, or the first key after it. Unlike an iterator, this leaves nothing
+    // open, so the store can be changed before the next batch is read.
+    List<Record> scan(String from, int n);
+
+    // Return the number of records.
+    int size();
+
+    // Estimate the memory used, in bytes.
+    long memory();
+
+    // Note that the table's columns have changed to the given header.
+    void columns(Header h);
+
+    // Write any changes which are held in memory out to disk.
+    void flush();
+
+    // Release any files which the store has open.
+    void close();
+
+    // Return the name of the kind of store, e.g. memory.
+    String kind();
+}
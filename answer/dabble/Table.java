@@ -1,144 +1,651 @@
 /* A Table object represents a collection of records. Records are accessed by
-key, in a case-insensitive way. Any problems encountered are assumed to be bugs,
-so an Error is thrown. */
+key, in a case-insensitive way. The column names are held in a header shared
+with the records, so columns can be added, dropped or renamed without visiting
+the records. The records are held in a store, normally in memory, but possibly
+on disk. Auto-generated keys come from the table's sequence, which moves past
+any numeric keys inserted by hand. A column can have a full text index, which
+is built when first searched, and then kept up to date. When the records aren't
+in memory, a Bloom filter over the keys lets most lookups of missing keys, e.g.
+when checking for duplicates, avoid the store. Statistics about the columns,
+for the cost model, are gathered on request. Any problems encountered are
+assumed to be bugs, so an Error is thrown.
+
+Reading uses multi-version concurrency control. Each change to the table has a
+version number, and a reader sees a snapshot of the records as they were at one
+version, however long it takes. The store only holds the latest records, so
+while any snapshot is open, each record which is replaced or deleted is kept as
+an old version, until no open snapshot can see it. Readers lock the table only
+while reading one batch of records from the store, so writers can carry on
+between batches. */
 
 import java.util.*;
 import java.io.*;
 
 class Table implements Iterable<Record> {
-    private Record columns;
-    private Map<String,Record> records;
-    private int nextKey = 0;
+    private static final int BATCH = 256, LIMIT = 1000;
+    private volatile Header header;
+    private Store records;
+    private Sequence sequence = new Sequence(null);
+    private Map<Integer,TextIndex> indexes = new HashMap<>();
+    private boolean filtering;
+    private KeyFilter filter;
+    private File filterFile;
+    private long hits, misses;
+    private long version, changes;
+    private Analysis analysis;
+    private TreeMap<String,Version> history = new TreeMap<>();
+    private Map<Snapshot,Long> readers = new WeakHashMap<>();
+    private int versions, limit = LIMIT;
+
+    // A record as it was before being replaced or deleted by the change with
+    // the given version number, or null if there was no record before. Older
+    // versions of the same record follow.
+    private static class Version {
+        long stamp;
+        Record record;
+        Version older;
+
+        Version(long stamp, Record record, Version older) {
+            this.stamp = stamp;
+            this.record = record;
+            this.older = older;
+        }
+    }
 
     // Create an empty table with the given column names.
     Table(String... names) {
-        if (names == null || names.length == 0) throw new Error("Bad cols");
-        for (int i=0; i<names.length; i++) {
-            if (names[i] == null) throw new Error("Bad col");
-            if (names[i].length() == 0) throw new Error("Bad col");
-            for (int j=0; j<i; j++) {
-                if (names[i].equalsIgnoreCase(names[j])) {
-                    throw new Error("Repeated column name");
-                }
-            }
-        }
-        columns = new Record(names);
-        records = new TreeMap<String,Record>();
+        header = new Header(names);
+        records = new MemoryStore();
     }
 
     // Load a table from a file.
     Table(Scanner scanner) {
-        columns = new Record(scanner.nextLine());
-        records = new TreeMap<String,Record>();
-        while (scanner.hasNextLine()) insert(new Record(scanner.nextLine()));
+        header = Header.load(scanner.nextLine());
+        records = new MemoryStore();
+        while (scanner.hasNextLine()) {
+            insert(new Record(header, scanner.nextLine()));
+        }
+    }
+
+    // Open a table whose records are already in a store, e.g. on disk.
+    Table(Header header, Store records) {
+        this.header = header;
+        this.records = records;
+        filtering = ! records.kind().equals("memory");
     }
 
-    // Provide a unique auto-generated key for a new record.
+    // Provide a unique auto-generated key for a new record. A key is only
+    // already taken if the sequence's file was lost, e.g. in a crash.
     String newKey() {
-        String key = "" + nextKey++;
-        while (records.containsKey(key)) key = "" + nextKey++;
+        String key = "" + sequence.next();
+        while (taken(key)) key = "" + sequence.next();
         return key;
     }
 
+    // Check whether a numeric key is in use, without counting a hit or miss.
+    private synchronized boolean taken(String key) {
+        if (filtering && ! filter().mightContain(key)) return false;
+        return records.get(key) != null;
+    }
+
+    // Switch to a sequence saved in a file, carrying on from wherever the
+    // current one has got to.
+    synchronized void sequence(Sequence s) {
+        s.skip(sequence.peek());
+        sequence = s;
+    }
+
+    // Return the sequence, e.g. so that an inserter can take a block of keys.
+    Sequence sequence() { return sequence; }
+
     // Store the table into its text file.
     void save(PrintWriter out) {
-        out.println(columns.save());
-        for (Record r : records.values()) out.println(r.save());
+        out.println(header.save());
+        for (Record r : this) out.println(r.save());
+    }
+
+    // Move the records into a different store, e.g. to take them out of
+    // memory, and close the old store. The key filter is built on the way.
+    synchronized void moveTo(Store store) {
+        KeyFilter f = new KeyFilter(2 * records.size());
+        for (Record r : records) {
+            String key = r.get(0).toLowerCase();
+            store.put(key, r);
+            f.add(key);
+        }
+        store.flush();
+        records.close();
+        records = store;
+        unfilter();
+        if (filtering) filter = f;
+    }
+
+    // Switch to a store which already holds the same records.
+    synchronized void open(Store store) {
+        records.close();
+        records = store;
+        unfilter();
+    }
+
+    // Drop the key filter after a change of store, and decide whether the new
+    // store needs one.
+    private void unfilter() {
+        filtering = ! records.kind().equals("memory");
+        filter = null;
+        if (filterFile != null) filterFile.delete();
+        filterFile = null;
+    }
+
+    // Return the key filter, building it from the store's keys if it is
+    // missing or full.
+    private KeyFilter filter() {
+        if (filter == null || filter.full()) {
+            filter = new KeyFilter(2 * records.size());
+            for (Record r : records) filter.add(r.get(0).toLowerCase());
+        }
+        return filter;
+    }
+
+    // Keep the key filter up to date with a change, and delete any saved copy,
+    // which is now out of date.
+    private void filter(String key, Record old, Record r) {
+        if (filter == null) return;
+        if (old == null && r != null) filter.add(key);
+        else if (old != null && r == null) filter.delete(key);
+        if (filterFile != null) filterFile.delete();
+        filterFile = null;
+    }
+
+    // Save the key filter, if there is one, to a file.
+    synchronized void saveFilter(File file) {
+        if (! filtering || filter == null) return;
+        filter.save(file);
+        filterFile = file;
     }
 
+    // Use a key filter saved in a file, if there is one, deleting the file.
+    synchronized void loadFilter(File file) {
+        KeyFilter f = KeyFilter.load(file);
+        if (filtering) filter = f;
+    }
+
+    // Write out any changes to records which are held on disk.
+    synchronized void flush() { records.flush(); }
+
+    // Release any files used by the store.
+    synchronized void close() { records.close(); }
+
+    // Return the kind of store which holds the records, e.g. memory or disk.
+    synchronized String kind() { return records.kind(); }
+
+    // Return the header object, for a store which needs it.
+    Header schema() { return header; }
+
     // Return the number of rows of the table.
-    int height() {
+    synchronized int height() {
         return records.size();
     }
 
     // Return the number of columns of the table.
     int width() {
-        return columns.width();
+        return header.width();
     }
 
     // Return the name of the given column.
     String column(int col) {
-        return columns.get(col);
+        return header.name(col);
     }
 
     // Return the index of the column with a given name.  The name matching is
     // not case sensitive. If there is no column with a given name, -1 is
-    // returned.  WARNING: uses a slow search.
+    // returned.
     int column(String name) {
-        for (int col = 0; col < width(); col++) {
-            if (columns.get(col).equalsIgnoreCase(name)) return col;
-        }
-        return -1;
+        return header.find(name);
     }
 
     // Find a record, given its key.  WARNING: The record returned is 'live',
-    // i.e. changes made to the record represent changes to the table.
-    Record select(String key) {
-        return records.get(key.toLowerCase());
+    // i.e. changes made to the record represent changes to the table, if the
+    // table is in memory. But such changes aren't versioned, so snapshots see
+    // them, and if the table is on disk they are lost. Changes should be made
+    // by inserting a replacement record.
+    synchronized Record select(String key) {
+        key = key.toLowerCase();
+        if (filtering && ! filter().mightContain(key)) {
+            misses++;
+            return null;
+        }
+        Record r = records.get(key);
+        if (r == null) misses++;
+        else hits++;
+        return r;
+    }
+
+    // Gather statistics about the columns, for the cost model, returning
+    // them. The records are read from a snapshot, so changes can carry on.
+    Analysis analyze() {
+        Analysis a = Analysis.of(this);
+        synchronized (this) { analysis = a; }
+        return a;
     }
 
+    // Return the statistics last gathered, or null if there are none.
+    synchronized Analysis analysis() { return analysis; }
+
+    // Return the number of selects which found a record.
+    synchronized long hits() { return hits; }
+
+    // Return the number of selects which didn't find a record.
+    synchronized long misses() { return misses; }
+
+    // Estimate the memory used by the records and their map entries, or by a
+    // store's index and cache, in bytes.
+    synchronized long memory() { return records.memory(); }
+
     // Insert or replace a record in the table.
-    void insert(Record r) {
+    synchronized void insert(Record r) {
         if (r.width() != width()) {
             throw new Error("Wrong number of fields");
         }
-        for (Record r2 : records.values()) if (r2 == r) {
-            throw new Error("Record inserted twice");
-        }
-        records.put(r.get(0).toLowerCase(), r);
+        r.attach(header);
+        // A record's key can't change, so it can only already be in the table
+        // under its own key.
+        String key = r.get(0).toLowerCase();
+        sequence.observe(key);
+        Record old = null;
+        // The record replaced is only needed if a snapshot might want it, or
+        // to check for a bug, so a store on disk can avoid reading it.
+        if (filtering && readers.isEmpty()) records.write(key, r);
+        else old = records.put(key, r);
+        if (old == r) throw new Error("Record inserted twice");
+        index(key, r);
+        filter(key, old, r);
+        changed(key, old);
     }
 
     // Delete the record with the given key from the table.
-    void delete(String key) {
-        Record old = records.remove(key.toLowerCase());
+    synchronized void delete(String key) {
+        key = key.toLowerCase();
+        Record old = records.remove(key);
         if (old == null) throw new Error("Deletion of non-existent record");
+        index(key, null);
+        filter(key, old, null);
+        changed(key, old);
+    }
+
+    // Make a batch of changes, by lowercase key, as one version of the table,
+    // so that a snapshot sees all of them or none. A null record means a
+    // deletion, and deleting a missing record does nothing.
+    synchronized void apply(Map<String,Record> changes) {
+        for (Record r : changes.values()) {
+            if (r != null && r.width() != width()) {
+                throw new Error("Wrong number of fields");
+            }
+        }
+        version++;
+        this.changes++;
+        for (Map.Entry<String,Record> e : changes.entrySet()) {
+            String key = e.getKey();
+            Record r = e.getValue();
+            if (r != null) { r.attach(header); sequence.observe(key); }
+            Record old = r == null ? records.remove(key) : records.put(key, r);
+            if (old != null || r != null) remember(key, old);
+            index(key, r);
+            filter(key, old, r);
+        }
+    }
+
+    // Check whether the record with a given key has been changed since a
+    // snapshot was taken. The snapshot must still be open.
+    synchronized boolean changedSince(String key, Snapshot s) {
+        Version v = history.get(key);
+        return v != null && v.stamp > s.version;
+    }
+
+    // Move on to the next version after a change.
+    private void changed(String key, Record old) {
+        version++;
+        changes++;
+        remember(key, old);
+    }
+
+    // Return the number of changes made to the records or columns, including
+    // edits to live records, e.g. so that a cached result can tell whether it
+    // is out of date.
+    synchronized long changes() { return changes + header.edits(); }
+
+    // Keep a replaced record as an old version, if any snapshot is open.
+    private void remember(String key, Record old) {
+        if (readers.isEmpty()) {
+            if (versions > 0) collect();
+            return;
+        }
+        history.put(key, new Version(version, old, history.get(key)));
+        if (++versions >= limit) collect();
+    }
+
+    // Drop the old versions which no open snapshot can see, i.e. those which
+    // were replaced before the oldest snapshot was taken. Snapshots which
+    // weren't closed disappear from the readers when garbage collected.
+    private void collect() {
+        if (readers.isEmpty()) history.clear();
+        long oldest = version;
+        for (long v : readers.values()) oldest = Math.min(oldest, v);
+        versions = 0;
+        Iterator<Version> it = history.values().iterator();
+        while (it.hasNext()) {
+            Version v = it.next();
+            if (v.stamp <= oldest) {
+                it.remove();
+                continue;
+            }
+            versions++;
+            while (v.older != null && v.older.stamp > oldest) {
+                v = v.older;
+                versions++;
+            }
+            v.older = null;
+        }
+        limit = Math.max(LIMIT, 2 * versions);
+    }
+
+    // Return the number of old versions of records being kept.
+    synchronized int versions() { return versions; }
+
+    // Find the record with a given key, as it was at a given version, from the
+    // latest record, or null.
+    private Record visible(String key, Record latest, long at) {
+        Record r = latest;
+        Version v = history.get(key);
+        for (; v != null && v.stamp > at; v = v.older) r = v.record;
+        return r;
+    }
+
+    // Take a snapshot of the records as they are now. It should be closed
+    // when finished with, so that old versions are no longer kept for it.
+    synchronized Snapshot snapshot() {
+        Snapshot s = new Snapshot(version);
+        readers.put(s, version);
+        return s;
+    }
+
+    private synchronized void release(Snapshot s) {
+        if (readers.remove(s) != null && readers.isEmpty()) collect();
+    }
+
+    // Allow iteration through the records in key order, as they were when the
+    // iteration started, whatever changes are made meanwhile. The snapshot is
+    // closed when the iteration finishes, so a loop which may stop early should
+    // use an explicit snapshot instead, closed with try-with-resources. The
+    // records may be live, as with select.
+    public Iterator<Record> iterator() {
+        return snapshot().scan("", null, true, BATCH);
+    }
+
+    // Allow iteration in key order through the records with keys from one key
+    // up to but not including another, or to the end if that is null. Only
+    // the records in the range are read, a batch at a time, as with iterator.
+    Iterable<Record> range(String from, String to) {
+        String lo = from.toLowerCase();
+        String hi = to == null ? null : to.toLowerCase();
+        return () -> snapshot().scan(lo, hi, true, BATCH);
+    }
+
+    // Allow iteration through the records whose keys start with a prefix,
+    // ignoring case.
+    Iterable<Record> prefix(String p) {
+        p = p.toLowerCase();
+        return range(p, after(p));
+    }
+
+    // Find the least key after all the keys which start with a prefix, or null
+    // if there is none.
+    static String after(String prefix) {
+        int n = prefix.length();
+        while (n > 0 && prefix.charAt(n - 1) == Character.MAX_VALUE) n--;
+        if (n == 0) return null;
+        char last = prefix.charAt(n - 1);
+        return prefix.substring(0, n - 1) + (char) (last + 1);
+    }
+
+    // Allow the records to be split up for processing in parallel, in batches
+    // taken from the iterator.
+    public Spliterator<Record> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(),
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
     }
 
-    // Allow iteration through the records. WARNING: this is a live iterator.
-    // That means no insertions or deletions should be done directly on the
-    // table while an iteration is in progress. On the other hand, a deletion
-    // using the iterator does delete the record from the table.
-    public Iterator<Record> iterator() { return records.values().iterator(); }
+    // A view of the records as they were at one version of the table. It
+    // sees the latest columns, though.
+    class Snapshot implements Iterable<Record>, AutoCloseable {
+        private final long version;
 
-    // Add a column to a table, replacing all the records.
+        private Snapshot(long version) { this.version = version; }
+
+        // Find a record as it was, given its key, or return null.
+        Record select(String key) {
+            key = key.toLowerCase();
+            synchronized (Table.this) {
+                return visible(key, records.get(key), version);
+            }
+        }
+
+        public Iterator<Record> iterator() {
+            return scan("", null, false, BATCH);
+        }
+
+        // Iterate through the records as they were, with lowercase keys from
+        // one key up to but not including another, or to the end if null.
+        Iterable<Record> range(String from, String to) {
+            return range(from, to, BATCH);
+        }
+
+        // Iterate through a range, reading the given number of records from
+        // the store at a time.
+        Iterable<Record> range(String from, String to, int batch) {
+            if (batch < 1) throw new Error("Bad batch size " + batch);
+            return () -> scan(from, to, false, batch);
+        }
+
+        private Iterator<Record> scan(String from, String to, boolean closing,
+            int size) {
+            return new Reader(this, from, to, closing, size);
+        }
+
+        public void close() { release(this); }
+    }
+
+    // Read the records of a snapshot a batch at a time, from a given key up to
+    // an end key if not null. Each batch is read from the store with the table
+    // locked, and merged with the old versions of records with keys in the
+    // same range. Only one batch is held at a time.
+    private class Reader implements Iterator<Record> {
+        private Snapshot snapshot;
+        private boolean closing, done;
+        private String from, end;
+        private int size;
+        private ArrayDeque<Record> batch = new ArrayDeque<>();
+
+        Reader(Snapshot snapshot, String from, String end, boolean closing,
+            int size) {
+            this.snapshot = snapshot;
+            this.from = from;
+            this.end = end;
+            this.closing = closing;
+            this.size = size;
+            done = end != null && from.compareTo(end) >= 0;
+        }
+
+        public boolean hasNext() {
+            while (batch.isEmpty() && ! done) read();
+            if (batch.isEmpty() && closing) {
+                closing = false;
+                snapshot.close();
+            }
+            return ! batch.isEmpty();
+        }
+
+        public Record next() {
+            if (! hasNext()) throw new NoSuchElementException();
+            return batch.remove();
+        }
+
+        private void read() {
+            synchronized (Table.this) {
+                List<Record> latest = records.scan(from, size);
+                String to = null;
+                if (latest.size() == size) {
+                    to = latest.get(size - 1).get(0).toLowerCase();
+                }
+                if (end != null && (to == null || to.compareTo(end) >= 0)) {
+                    int n = 0;
+                    while (n < latest.size() &&
+                        latest.get(n).get(0).toLowerCase().compareTo(end) < 0) {
+                        n++;
+                    }
+                    latest = latest.subList(0, n);
+                    to = null;
+                }
+                SortedMap<String,Version> old = history.tailMap(from);
+                if (to != null) old = history.subMap(from, true, to, true);
+                else if (end != null) old = history.subMap(from, end);
+                Iterator<Record> ls = latest.iterator();
+                Iterator<String> os = old.keySet().iterator();
+                Record l = ls.hasNext() ? ls.next() : null;
+                String o = os.hasNext() ? os.next() : null;
+                while (l != null || o != null) {
+                    String k = l == null ? null : l.get(0).toLowerCase();
+                    int c = l == null ? 1 : o == null ? -1 : k.compareTo(o);
+                    if (c > 0) k = o;
+                    Record r = visible(k, c > 0 ? null : l, snapshot.version);
+                    if (r != null) batch.add(r);
+                    if (c <= 0) l = ls.hasNext() ? ls.next() : null;
+                    if (c >= 0) o = os.hasNext() ? os.next() : null;
+                }
+                if (to == null) done = true;
+                else from = to + "\0";
+            }
+        }
+    }
+
+    // Add a column to a table. Only the header changes. The records see the new
+    // column as blank until they are next changed.
     void addColumn(int c, String name) {
+        addColumn(c, name, "");
+    }
+
+    // Add a column, which has the given value in the existing records.
+    synchronized void addColumn(int c, String name, String initial) {
+        if (name == null || name.length() == 0) throw new Error("No name");
+        columns(header.add(c, name, initial));
+    }
+
+    // Drop a column other than the key. Only the header changes.
+    synchronized void dropColumn(int c) {
+        columns(header.drop(c));
+    }
+
+    // Rename a column. Only the header changes.
+    synchronized void renameColumn(int c, String name) {
         if (name == null || name.length() == 0) throw new Error("No name");
-        columns = columns.addField(c);
-        columns.set(c, name);
-        for (String key : records.keySet()) {
-            Record r = records.get(key);
-            r = r.addField(c);
-            records.put(key, r);
+        columns(header.rename(c, name));
+    }
+
+    // Make a column refer to the keys of a table, or to none if null. Only the
+    // header changes.
+    synchronized void refer(int c, String table) {
+        columns(header.refer(c, table));
+    }
+
+    // Give a column a full text index, or remove it.
+    synchronized void index(int c, boolean on) {
+        if (on && header.codec(c) != Codec.TEXT) throw new Error("Not text");
+        columns(header.index(c, on));
+    }
+
+    // Switch to a new version of the header. Full text indexes are found by
+    // column number, so they are dropped, to be rebuilt when next searched.
+    private void columns(Header h) {
+        header = h;
+        changes++;
+        records.columns(h);
+        indexes.clear();
+    }
+
+    // Find the records whose field in a column with a full text index contains
+    // all the given words, most occurrences first.
+    synchronized List<Record> search(int c, String words) {
+        if (! header.indexed(c)) throw new Error("No index");
+        TextIndex x = indexes.get(c);
+        if (x == null) {
+            x = new TextIndex();
+            for (Record r : records) x.add(r.get(0).toLowerCase(), r.get(c));
+            indexes.put(c, x);
+        }
+        List<Record> found = new ArrayList<>();
+        for (String key : x.search(words)) found.add(records.get(key));
+        return found;
+    }
+
+    // Keep the full text indexes up to date with a change to a record.
+    private void index(String key, Record r) {
+        if (indexes.isEmpty()) return;
+        for (int c : indexes.keySet()) {
+            if (r == null) indexes.get(c).remove(key);
+            else indexes.get(c).add(key, r.get(c));
+        }
+    }
+
+    // Change the type of a column. The values should have been checked first.
+    synchronized void retype(int c, Codec codec) {
+        columns(header.retype(c, codec));
+    }
+
+    // Bring up to date any records which were laid out before a change of
+    // columns, returning how many were rewritten. They are replaced by copies,
+    // in case readers have them. A store on disk brings its records up to date
+    // when it is flushed, instead.
+    synchronized int compact() {
+        if (! (records instanceof MemoryStore)) return 0;
+        int n = 0;
+        for (Record r : records) {
+            if (r.isCurrent()) continue;
+            records.put(r.get(0).toLowerCase(), r.upgraded());
+            n++;
         }
+        return n;
     }
 
     // Create a divider between the columns and the records when printing.
     String divider(int[] lengths) {
-        String[] parts = new String[lengths.length];
-        for (int c = 0; c < columns.width(); c++) {
-            String s = "";
-            for (int i = 0; i < lengths[c]; i++) s = s + "-";
-            parts[c] = s;
-        }
-        return String.join("-+-", parts);
+        return Printer.divider(lengths);
     }
 
-    // Display the table.
+    // Display the table. The column widths and the rows come from the same
+    // snapshot, so that a change made while printing can't upset the widths.
     void print(PrintStream out) {
-        int[] lengths = new int[width()];
-        columns.checkLengths(lengths);
-        for (Record r : records.values()) r.checkLengths(lengths);
-        out.println(columns.display(lengths));
-        out.println(divider(lengths));
-        for (Record r : records.values()) out.println(r.display(lengths));
+        try (Snapshot s = snapshot()) { Printer.print(out, header(), s); }
+    }
+
+    // Return the column names as a record, for use as a header when printing.
+    Record header() {
+        return header.names();
     }
 
     // Test the class.
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         testMethods();
         testChange();
         testTwo();
+        testSchema();
+        testSnapshot();
+        testConcurrent();
+        testApply();
+        testKeys();
+        testRange();
+        testSearch();
+        testFilter();
         testDivider();
+        testPrint();
         System.out.println("Table class OK");
     }
 
@@ -184,9 +691,201 @@ class Table implements Iterable<Record> {
         assert(r.get(3).equals("Ted"));
     }
 
+    // Check dropping, renaming and compacting.
+    private static void testSchema() {
+        Table table = new Table("Username", "Surname", "Forenames");
+        table.insert(new Record("csijh", "Holyer", "Ian"));
+        table.addColumn(3, "Office", "MVB");
+        table.dropColumn(1);
+        table.renameColumn(1, "Names");
+        assert(table.width() == 3);
+        assert(table.column("names") == 1);
+        assert(table.column("surname") == -1);
+        Record r = table.select("csijh");
+        assert(r.get(1).equals("Ian") && r.get(2).equals("MVB"));
+        table.insert(new Record("ted", "Ted", "Cave"));
+        assert(table.compact() == 1);
+        assert(table.compact() == 0);
+        assert(r.get(2).equals("MVB"));
+    }
+
+    // Check that snapshots don't see later changes, and that the old versions
+    // are dropped when the snapshots are closed.
+    private static void testSnapshot() {
+        Table table = new Table("Id", "Name");
+        for (int i = 0; i < 1000; i++) table.insert(new Record("" + i, "a"));
+        Snapshot s = table.snapshot();
+        Iterator<Record> it = table.iterator();
+        table.delete("5");
+        table.insert(new Record("5x", "b"));
+        table.insert(new Record("7", "b"));
+        table.insert(new Record("7", "c"));
+        assert(s.select("5") != null && s.select("5x") == null);
+        assert(s.select("7").get(1).equals("a"));
+        assert(table.select("7").get(1).equals("c"));
+        int n = 0;
+        for (Record r : s) {
+            assert(r.get(1).equals("a"));
+            n++;
+        }
+        assert(n == 1000);
+        for (n = 0; it.hasNext(); n++) assert(it.next().get(1).equals("a"));
+        assert(n == 1000);
+        assert(table.versions() == 4);
+        s.close();
+        assert(table.versions() == 0);
+        table.insert(new Record("8", "b"));
+        assert(table.versions() == 0 && table.height() == 1000);
+    }
+
+    // Delete all the records in one thread while reading them in another.
+    private static void testConcurrent() {
+        Table table = new Table("Id", "Name");
+        for (int i = 0; i < 5000; i++) table.insert(new Record("" + i, "a"));
+        Iterator<Record> it = table.iterator();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 5000; i++) table.delete("" + i);
+        });
+        writer.start();
+        int n = 0;
+        String last = "";
+        while (it.hasNext()) {
+            String key = it.next().get(0);
+            assert(key.compareTo(last) > 0);
+            last = key;
+            n++;
+        }
+        try { writer.join(); }
+        catch (InterruptedException e) { throw new Error(e); }
+        assert(n == 5000 && table.height() == 0);
+        assert(table.versions() == 0);
+    }
+
+    // Check that a batch of changes is seen as a whole.
+    private static void testApply() {
+        Table table = new Table("Id", "Name");
+        table.insert(new Record("a", "x"));
+        table.insert(new Record("b", "x"));
+        Snapshot s = table.snapshot();
+        Map<String,Record> changes = new TreeMap<>();
+        changes.put("a", null);
+        changes.put("c", new Record("C", "y"));
+        changes.put("d", null);
+        table.apply(changes);
+        assert(table.height() == 2 && table.select("a") == null);
+        assert(table.changedSince("a", s) && table.changedSince("c", s));
+        assert(! table.changedSince("b", s) && ! table.changedSince("d", s));
+        assert(s.select("a") != null && s.select("c") == null);
+        s.close();
+    }
+
+    // Check that auto-generated keys skip numeric keys inserted by hand.
+    private static void testKeys() {
+        Table t = new Table("Id", "Name");
+        t.insert(new Record(t.newKey(), "a"));
+        t.insert(new Record("5", "b"));
+        t.insert(new Record("07", "c"));
+        long misses = t.misses();
+        assert(t.newKey().equals("6") && t.misses() == misses);
+        Sequence s = new Sequence(null);
+        t.sequence(s);
+        assert(t.sequence() == s && t.newKey().equals("7"));
+    }
+
+    // Check range and prefix scans, across batches and with old versions.
+    private static void testRange() {
+        Table t = new Table("Id", "Name");
+        for (int i = 0; i < 1000; i++) {
+            t.insert(new Record(String.format("k%04d", i), "x"));
+        }
+        t.insert(new Record("K1000", "y"));
+        Snapshot s = t.snapshot();
+        t.delete("k0100");
+        t.insert(new Record("k0100x", "z"));
+        int n = 0;
+        for (Record r : t.range("k0100", "k0400")) n++;
+        assert(n == 300);
+        n = 0;
+        for (Record r : s.range("k0100", "k0101")) n++;
+        assert(n == 1);
+        n = 0;
+        for (Record r : s.range("k0090", "k0110", 3)) n++;
+        assert(n == 20);
+        n = 0;
+        for (Record r : t.prefix("K09")) n++;
+        assert(n == 100 && t.prefix("k1").iterator().next().get(1).equals("y"));
+        n = 0;
+        for (Record r : t.range("k0998", null)) n++;
+        assert(n == 3);
+        assert(! t.range("k5", "k1").iterator().hasNext());
+        assert(after("ab").equals("ac") && after("") == null);
+        s.close();
+    }
+
+    // Check that a full text index follows changes to records and columns.
+    private static void testSearch() {
+        Table t = new Table("Id", "Notes");
+        t.insert(new Record("1", "fish and chips"));
+        t.index(1, true);
+        t.insert(new Record("2", "fish, fish"));
+        assert(t.search(1, "fish").size() == 2);
+        assert(t.search(1, "FISH").get(0).get(0).equals("2"));
+        t.delete("2");
+        t.apply(Map.of("3", new Record("3", "chips")));
+        assert(t.search(1, "chips").size() == 2);
+        t.addColumn(1, "Name");
+        assert(t.schema().indexed(2) && t.search(2, "fish").size() == 1);
+    }
+
+    // Check that the key filter of a table on disk follows changes, and is
+    // only trusted when it was saved after the last change.
+    private static void testFilter() throws IOException {
+        File file = File.createTempFile("filter", ".btree");
+        File saved = File.createTempFile("filter", ".bloom");
+        saved.delete();
+        Header h = new Header("Id", "Name");
+        Table t = new Table(h, BTreeStore.create(file, h));
+        for (int i = 0; i < 100; i++) t.insert(new Record("k" + i, "x"));
+        assert(t.select("K7") != null && t.select("nope") == null);
+        t.insert(new Record("New", "y"));
+        assert(t.select("new") != null);
+        t.delete("new");
+        assert(t.select("new") == null);
+        t.saveFilter(saved);
+        assert(saved.exists());
+        t.insert(new Record("Later", "z"));
+        assert(! saved.exists());
+        t.saveFilter(saved);
+        t.loadFilter(saved);
+        assert(! saved.exists() && t.select("later") != null);
+        t.close();
+        file.delete();
+    }
+
     private static void testDivider() {
         Table table = new Table("Username", "Surname", "Forenames");
         int[] lengths = {5, 5, 5};
         assert(table.divider(lengths).equals("------+-------+------"));
     }
+
+    // Check that a record inserted once the widths are worked out, as the
+    // header is printed, isn't printed.
+    private static void testPrint() {
+        Table table = new Table("Id", "Name");
+        table.insert(new Record("1", "Fido"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes) {
+            public void println(String s) {
+                if (table.select("2") == null) {
+                    table.insert(new Record("2", "Long name for a dog"));
+                }
+                super.println(s);
+            }
+        };
+        table.print(out);
+        out.flush();
+        assert(! bytes.toString().contains("Long"));
+        assert(bytes.toString().lines().count() == 3);
+        assert(table.versions() == 0);
+    }
 }
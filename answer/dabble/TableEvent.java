@@ -0,0 +1,18 @@
+/* A TableEvent is recorded by Java Flight Recorder when a table file is loaded
+or saved, while a recording is running. It holds the operation, the table name
+and the number of rows, and JFR records its duration. */
+import jdk.jfr.*;
+
+@Name("dabble.Table")
+@Label("Dabble Table Load or Save")
+@Category("Dabble")
+class TableEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Table")
+    String table;
+
+    @Label("Rows")
+    int rows;
+}
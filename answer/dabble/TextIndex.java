@@ -0,0 +1,217 @@
+/* A TextIndex is a full text index on one column of a table. A field is split
+into words, i.e. runs of letters and digits, compared ignoring case. For each
+word, a posting list holds the records which contain it, with how many times.
+
+Each record is given a document number, and the posting lists hold document
+numbers in increasing order, so each one is stored as the gap from the one
+before. Gaps and counts are stored in a byte array, seven bits per byte, with
+the top bit set on all but the last byte of a number, so most entries take two
+bytes. When a record changes, it gets a new document number, so entries are
+only ever added at the ends of the lists. The old number is marked as dead,
+and when there are more dead numbers than live ones, the lists are rewritten
+with the live documents renumbered.
+
+A search finds the records containing all of the given words, and ranks them
+by the total number of times the words occur in them. */
+import java.util.*;
+
+class TextIndex {
+    private Map<String,Postings> words = new HashMap<>();
+    private Map<String,Integer> docs = new HashMap<>();
+    private List<String> keys = new ArrayList<>();
+    private int dead;
+
+    // A posting list, as gaps and counts in a growing byte array.
+    private static class Postings {
+        byte[] bytes = new byte[8];
+        int size, last;
+
+        void add(int doc, int count) {
+            write(doc - last);
+            write(count);
+            last = doc;
+        }
+
+        private void write(int n) {
+            if (size + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while (n >= 0x80) {
+                bytes[size++] = (byte) (n | 0x80);
+                n >>>= 7;
+            }
+            bytes[size++] = (byte) n;
+        }
+
+        // Decode the list into pairs of document numbers and counts.
+        int[] decode() {
+            int[] pairs = new int[2 * size];
+            int n = 0, doc = 0;
+            for (int i = 0; i < size; ) {
+                int gap = 0, count = 0, shift = 0;
+                for (byte b = -1; b < 0; shift += 7) {
+                    b = bytes[i++];
+                    gap |= (b & 0x7f) << shift;
+                }
+                shift = 0;
+                for (byte b = -1; b < 0; shift += 7) {
+                    b = bytes[i++];
+                    count |= (b & 0x7f) << shift;
+                }
+                doc += gap;
+                pairs[n++] = doc;
+                pairs[n++] = count;
+            }
+            return Arrays.copyOf(pairs, n);
+        }
+    }
+
+    // Split text into lowercase words.
+    static List<String> split(String text) {
+        List<String> list = new ArrayList<>();
+        int n = text.length(), start = -1;
+        for (int i = 0; i <= n; i++) {
+            boolean in = i < n && Character.isLetterOrDigit(text.charAt(i));
+            if (in && start < 0) start = i;
+            else if (! in && start >= 0) {
+                list.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return list;
+    }
+
+    // Index a record's field, given the record's lowercase key, replacing any
+    // previous field for the same record.
+    void add(String key, String text) {
+        remove(key);
+        Map<String,Integer> counts = new HashMap<>();
+        for (String w : split(text)) counts.merge(w, 1, Integer::sum);
+        if (counts.isEmpty()) return;
+        int doc = keys.size();
+        keys.add(key);
+        docs.put(key, doc);
+        for (String w : counts.keySet()) {
+            Postings p = words.computeIfAbsent(w, k -> new Postings());
+            p.add(doc, counts.get(w));
+        }
+    }
+
+    // Remove a record from the index, given its lowercase key.
+    void remove(String key) {
+        Integer doc = docs.remove(key);
+        if (doc == null) return;
+        keys.set(doc, null);
+        dead++;
+        if (dead > 1000 && dead > docs.size()) renumber();
+    }
+
+    // Rewrite the posting lists without the dead documents.
+    private void renumber() {
+        int[] numbers = new int[keys.size()];
+        List<String> live = new ArrayList<>();
+        for (int d = 0; d < numbers.length; d++) {
+            String key = keys.get(d);
+            numbers[d] = key == null ? -1 : live.size();
+            if (key != null) {
+                docs.put(key, live.size());
+                live.add(key);
+            }
+        }
+        Iterator<Postings> it = words.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next(), q = new Postings();
+            int[] pairs = p.decode();
+            for (int i = 0; i < pairs.length; i += 2) {
+                int d = numbers[pairs[i]];
+                if (d >= 0) q.add(d, pairs[i + 1]);
+            }
+            if (q.size == 0) it.remove();
+            else { p.bytes = q.bytes; p.size = q.size; p.last = q.last; }
+        }
+        keys = live;
+        dead = 0;
+    }
+
+    // Find the keys of the records which contain all the words in some text,
+    // most occurrences first, then in key order.
+    List<String> search(String text) {
+        Set<String> ws = new LinkedHashSet<>(split(text));
+        if (ws.isEmpty()) return new ArrayList<>();
+        List<int[]> lists = new ArrayList<>();
+        for (String w : ws) {
+            Postings p = words.get(w);
+            if (p == null) return new ArrayList<>();
+            lists.add(p.decode());
+        }
+        lists.sort((a, b) -> a.length - b.length);
+        Map<Integer,Integer> scores = new HashMap<>();
+        int[] first = lists.get(0);
+        for (int i = 0; i < first.length; i += 2) {
+            if (keys.get(first[i]) != null) {
+                scores.put(first[i], first[i + 1]);
+            }
+        }
+        for (int[] pairs : lists.subList(1, lists.size())) {
+            Map<Integer,Integer> both = new HashMap<>();
+            for (int i = 0; i < pairs.length; i += 2) {
+                Integer s = scores.get(pairs[i]);
+                if (s != null) both.put(pairs[i], s + pairs[i + 1]);
+            }
+            scores = both;
+        }
+        List<Integer> found = new ArrayList<>(scores.keySet());
+        Map<Integer,Integer> score = scores;
+        found.sort((a, b) -> score.get(a).equals(score.get(b)) ?
+            keys.get(a).compareTo(keys.get(b)) : score.get(b) - score.get(a));
+        List<String> result = new ArrayList<>();
+        for (int d : found) result.add(keys.get(d));
+        return result;
+    }
+
+    // Return the number of distinct words, for testing.
+    int size() { return words.size(); }
+
+    private static void testSplit() {
+        assert(split("The cat, the HAT.\n42x").equals(
+            List.of("the", "cat", "the", "hat", "42x")));
+        assert(split(" , ").isEmpty());
+    }
+
+    private static void testSearch() {
+        TextIndex x = new TextIndex();
+        x.add("a", "red fish, blue fish");
+        x.add("b", "one fish");
+        x.add("c", "red red red");
+        assert(x.search("fish").equals(List.of("a", "b")));
+        assert(x.search("RED").equals(List.of("c", "a")));
+        assert(x.search("red fish").equals(List.of("a")));
+        assert(x.search("green").isEmpty() && x.search("").isEmpty());
+        x.add("a", "green");
+        assert(x.search("fish").equals(List.of("b")));
+        x.remove("b");
+        assert(x.search("fish").isEmpty());
+    }
+
+    // Check that the lists are compact, and survive renumbering.
+    private static void testRenumber() {
+        TextIndex x = new TextIndex();
+        for (int i = 0; i < 5000; i++) x.add("k" + i, "word w" + i);
+        assert(x.words.get("word").size < 2 * 5000 + 100);
+        for (int i = 0; i < 4000; i++) x.remove("k" + i);
+        assert(x.keys.size() < 5000);
+        assert(x.search("word").size() == 1000);
+        assert(x.search("w4500").equals(List.of("k4500")));
+        assert(x.search("w10").isEmpty() && x.size() < 1500);
+        x.add("k1", "word");
+        assert(x.search("word").size() == 1001);
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testSplit();
+        testSearch();
+        testRenumber();
+        System.out.println("TextIndex class OK");
+    }
+}
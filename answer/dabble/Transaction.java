@@ -0,0 +1,248 @@
+/* A Transaction groups changes to the tables of a database, so that they take
+effect together or not at all. The changes are kept in a write set until the
+transaction commits. The transaction reads each table from a snapshot taken
+when it first uses the table, with its own changes on top, so it doesn't see
+changes committed meanwhile by other sessions. At commit, if another session
+has changed any of the same records since the snapshot, the transaction fails
+and nothing changes, i.e. the first to commit wins. Otherwise, the changes are
+written to the database's journal as one entry, forced out to disk once, and
+then applied to each table as a single version. Foreign keys are checked once
+for the whole transaction, at commit, so that related records can be inserted
+or deleted in any order. */
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+class Transaction {
+    private Database db;
+    private Map<String,Writes> tables = new TreeMap<>();
+
+    // The changes to one table, by lowercase key, with null for a deletion,
+    // and the snapshot which the table is read from.
+    private static class Writes {
+        Table table;
+        Table.Snapshot snapshot;
+        TreeMap<String,Record> records = new TreeMap<>();
+    }
+
+    Transaction(Database db) { this.db = db; }
+
+    // Find the changes to a table, taking a snapshot when it is first used.
+    private Writes writes(String name) {
+        Writes w = tables.get(name);
+        if (w != null) return w;
+        Table t = db.getTable(name);
+        if (t == null) throw new Error("No table " + name);
+        w = new Writes();
+        w.table = t;
+        w.snapshot = t.snapshot();
+        tables.put(name, w);
+        return w;
+    }
+
+    // Find a record, given its table and key, as the transaction sees it.
+    Record select(String name, String key) {
+        Writes w = writes(name);
+        key = key.toLowerCase();
+        if (w.records.containsKey(key)) return w.records.get(key);
+        return w.snapshot.select(key);
+    }
+
+    // Insert or replace a record.
+    void insert(String name, Record r) {
+        Writes w = writes(name);
+        if (r.width() != w.table.width()) {
+            throw new Error("Wrong number of fields");
+        }
+        w.records.put(r.get(0).toLowerCase(), r);
+    }
+
+    // Delete a record, given its key.
+    void delete(String name, String key) {
+        if (select(name, key) == null) {
+            throw new Error("Deletion of non-existent record");
+        }
+        writes(name).records.put(key.toLowerCase(), null);
+    }
+
+    // Iterate through the records of a table in key order, as the transaction
+    // sees them, by merging the snapshot with the changes.
+    Iterable<Record> records(String name) {
+        return records(name, "", null);
+    }
+
+    // Iterate through the records with keys from one key up to but not
+    // including another, or to the end if that is null.
+    Iterable<Record> records(String name, String from, String to) {
+        Writes w = writes(name);
+        String lo = from.toLowerCase();
+        String hi = to == null ? null : to.toLowerCase();
+        SortedMap<String,Record> mine = hi == null ? w.records.tailMap(lo) :
+            lo.compareTo(hi) >= 0 ? Collections.emptySortedMap() :
+            w.records.subMap(lo, hi);
+        return () -> new Iterator<Record>() {
+            private Iterator<Record> old =
+                w.snapshot.range(lo, hi).iterator();
+            private Iterator<Map.Entry<String,Record>> changes =
+                mine.entrySet().iterator();
+            private Record record = step(old);
+            private Map.Entry<String,Record> change = step(changes);
+            private Record next;
+
+            public boolean hasNext() {
+                while (next == null && (record != null || change != null)) {
+                    int c = record == null ? 1 : change == null ? -1 :
+                        record.get(0).toLowerCase().compareTo(change.getKey());
+                    if (c < 0) next = record;
+                    else next = change.getValue();
+                    if (c <= 0) record = step(old);
+                    if (c >= 0) change = step(changes);
+                }
+                return next != null;
+            }
+
+            public Record next() {
+                if (! hasNext()) throw new NoSuchElementException();
+                Record r = next;
+                next = null;
+                return r;
+            }
+        };
+    }
+
+    private static <T> T step(Iterator<T> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    // Commit the changes, returning null, or return the reason why not, in
+    // which case nothing is changed. Either way, the transaction is finished.
+    // Checked changes are made while holding the lock on the database's
+    // references, which is always taken before any table locks.
+    String commit() {
+        String problem;
+        synchronized (db.references()) {
+            problem = commit(new ArrayList<>(tables.values()), 0);
+        }
+        rollback();
+        return problem;
+    }
+
+    // Lock the tables one at a time, in name order so that two commits can't
+    // deadlock, then check for conflicts and make the changes.
+    private String commit(List<Writes> list, int i) {
+        if (i < list.size()) {
+            synchronized (list.get(i).table) { return commit(list, i + 1); }
+        }
+        List<String> lines = new ArrayList<>();
+        Map<Table,Map<String,Record>> batch = new HashMap<>();
+        for (String name : tables.keySet()) {
+            Writes w = tables.get(name);
+            for (String key : w.records.keySet()) {
+                if (w.table.changedSince(key, w.snapshot)) {
+                    return "Changed by another session: " + key;
+                }
+                lines.add(line(name, key, w.records.get(key)));
+            }
+            batch.put(w.table, w.records);
+        }
+        if (lines.isEmpty()) return null;
+        String problem = db.references().check(batch);
+        if (problem != null) return problem;
+        db.journal(lines);
+        db.references().apply(batch);
+        return null;
+    }
+
+    // Describe a change as a journal line: the table name, then + and the
+    // record's fields, or - and the key.
+    private static String line(String name, String key, Record r) {
+        if (r == null) return new Record(name, "-", key).save();
+        String[] fields = new String[r.width() + 2];
+        fields[0] = name;
+        fields[1] = "+";
+        for (int i = 0; i < r.width(); i++) fields[i + 2] = r.get(i);
+        return new Record(fields).save();
+    }
+
+    // Abandon any changes which haven't been committed, and finish.
+    void rollback() {
+        for (Writes w : tables.values()) w.snapshot.close();
+        tables.clear();
+    }
+
+    // Check that changes are invisible to others until committed, and that
+    // the transaction doesn't see changes made by others.
+    private static void testIsolation(Database db) {
+        Table t = db.getTable("pets");
+        Transaction tx = new Transaction(db);
+        tx.insert("pets", new Record("2", "Rex"));
+        tx.delete("pets", "1");
+        assert(tx.select("pets", "2") != null);
+        assert(tx.select("pets", "1") == null);
+        assert(t.select("2") == null && t.select("1") != null);
+        t.insert(new Record("3", "Tom"));
+        assert(tx.select("pets", "3") == null);
+        String keys = "";
+        for (Record r : tx.records("pets")) keys += r.get(0);
+        assert(keys.equals("2"));
+        keys = "";
+        for (Record r : tx.records("pets", "0", "2")) keys += r.get(0);
+        assert(keys.equals(""));
+        assert(tx.commit() == null);
+        assert(t.select("2") != null && t.select("1") == null);
+        assert(t.height() == 2);
+    }
+
+    // Check that the second of two conflicting transactions fails.
+    private static void testConflict(Database db) {
+        Transaction a = new Transaction(db), b = new Transaction(db);
+        a.insert("pets", new Record("3", "Tib"));
+        b.insert("pets", new Record("3", "Tab"));
+        b.insert("pets", new Record("4", "Tab"));
+        assert(a.commit() == null);
+        assert(b.commit() != null);
+        Table t = db.getTable("pets");
+        assert(t.select("3").get(1).equals("Tib") && t.select("4") == null);
+        Transaction c = new Transaction(db);
+        c.insert("pets", new Record("4", "Tab"));
+        c.rollback();
+        assert(t.select("4") == null && t.versions() == 0);
+    }
+
+    // Check that committed changes are recovered from the journal.
+    private static void testJournal(File folder) {
+        Database db = new Database(folder);
+        Table t = db.getTable("pets");
+        assert(t.height() == 2 && t.select("3").get(1).equals("Tib"));
+        db.save();
+        assert(! new File(folder, "journal.log").exists());
+    }
+
+    // Check that saving a table removes its changes from the journal, so
+    // that a later change made outside a transaction isn't undone on reopening.
+    private static void testCheckpoint(File folder) {
+        Database db = new Database(folder);
+        Transaction tx = new Transaction(db);
+        tx.insert("pets", new Record("5", "Rex"));
+        assert(tx.commit() == null);
+        db.getTable("pets").insert(new Record("5", "Max"));
+        db.save("pets");
+        assert(! new File(folder, "journal.log").exists());
+        db = new Database(folder);
+        assert(db.getTable("pets").select("5").get(1).equals("Max"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        File folder = Files.createTempDirectory("tx").toFile();
+        File file = new File(folder, "pets.txt");
+        Files.write(file.toPath(), List.of("Id, Name", "1, Fido"));
+        Database db = new Database(folder);
+        testIsolation(db);
+        testConflict(db);
+        testJournal(folder);
+        testCheckpoint(folder);
+        for (File f : folder.listFiles()) f.delete();
+        folder.delete();
+        System.out.println("Transaction class OK");
+    }
+}
@@ -0,0 +1,91 @@
+/* The Values class gathers together the few operations which treat field
+strings as values rather than just text. A field which looks like a number is
+compared and summed numerically, and anything else is compared as text. In a
+column holding both, all the numbers come before all the text, so that the
+comparison is a consistent order, as sorting needs. */
+import java.util.*;
+
+class Values {
+    // Check whether a field holds a number.
+    static boolean isNumber(String s) {
+        if (s.length() == 0) return false;
+        char c = s.charAt(s.length() - 1);
+        if (c != '.' && (c < '0' || c > '9')) return false;
+        try { Double.parseDouble(s); return true; }
+        catch (NumberFormatException e) { return false; }
+    }
+
+    // Compare two fields, numerically if both are numbers, otherwise as text,
+    // with numbers before text. Equal numbers, e.g. 1 and 1.0, are compared
+    // as text, so that only identical fields are equal.
+    static int compare(String a, String b) {
+        boolean an = isNumber(a), bn = isNumber(b);
+        if (an != bn) return an ? -1 : 1;
+        if (an) {
+            double x = Double.parseDouble(a), y = Double.parseDouble(b);
+            int n = Double.compare(x, y);
+            if (n != 0) return n;
+        }
+        return a.compareTo(b);
+    }
+
+    // Format a calculated number, without a fraction if it is whole.
+    static String format(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) return "" + (long) d;
+        return "" + d;
+    }
+
+    private static void testIsNumber() {
+        assert(isNumber("42"));
+        assert(isNumber("-4.5"));
+        assert(! isNumber(""));
+        assert(! isNumber("dog"));
+        assert(! isNumber("NaN"));
+        assert(! isNumber("1e"));
+    }
+
+    private static void testCompare() {
+        assert(compare("9", "10") < 0);
+        assert(compare("10", "9") > 0);
+        assert(compare("b", "a") > 0);
+        assert(compare("10", "10") == 0);
+        assert(compare("1.0", "1") > 0);
+        assert(compare("10", "1a") < 0 && compare("1a", "2") > 0);
+        assert(compare("", "5") > 0);
+    }
+
+    // Check that a column of numbers and text sorts consistently, whatever
+    // order it starts in.
+    private static void testMixed() {
+        List<String> expected = List.of("-1", "2", "10", "", "1a", "b");
+        List<String> list = new ArrayList<>(expected);
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            Collections.shuffle(list, random);
+            list.sort(Values::compare);
+            assert(list.equals(expected));
+        }
+        for (String a : expected) for (String b : expected) {
+            for (String c : expected) {
+                if (compare(a, b) < 0 && compare(b, c) < 0) {
+                    assert(compare(a, c) < 0);
+                }
+            }
+        }
+    }
+
+    private static void testFormat() {
+        assert(format(3).equals("3"));
+        assert(format(2.5).equals("2.5"));
+        assert(format(-7).equals("-7"));
+    }
+
+    // Run the tests.
+    public static void main(String[] args) {
+        testIsNumber();
+        testCompare();
+        testMixed();
+        testFormat();
+        System.out.println("Values class OK");
+    }
+}